@@ -0,0 +1,62 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Workbooks the benchmarks run on, written to temp files by
+ * {@link WorkbookGenerator}: one sheet of rows x cols cells in four styles.
+ * A changed copy has about one cell in a hundred changed.
+ */
+class BenchWorkbooks {
+
+	static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	static File write(String format, int rows, int cols, boolean changed) throws Exception {
+		File file = File.createTempFile("excel_cmp_bench", "." + format);
+		file.deleteOnExit();
+		WorkbookGenerator generator = new WorkbookGenerator();
+		generator.rows = rows;
+		generator.cols = cols;
+		generator.styles = 4;
+		generator.write(file, changed);
+		return file;
+	}
+
+	/**
+	 * The cells of all sheets of ss, keeping their sheets.
+	 */
+	static List<CellPos> cells(ISpreadSheet ss) {
+		final List<CellPos> cells = new ArrayList<CellPos>();
+		for (Iterator<ISheet> it = ss.getSheetIterator(); it.hasNext();) {
+			final ISheet sheet = it.next();
+			sheet.forEachCell(new CellVisitor() {
+				@Override
+				public boolean visitCell(ICellCursor cell) {
+					cells.add(new CellPos(sheet, cell.snapshot()));
+					return true;
+				}
+			});
+		}
+		return cells;
+	}
+
+	static void delete(File... files) {
+		for (File file : files) {
+			if (file != null) {
+				file.delete();
+			}
+		}
+	}
+}
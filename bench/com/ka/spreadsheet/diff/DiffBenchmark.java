@@ -0,0 +1,67 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Diffs a workbook with a changed copy end to end, as excel_cmp does: read,
+ * compare and report in text, with the output thrown away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DiffBenchmark {
+
+	@Param({"xlsx", "xls", "ods"})
+	public String format;
+
+	@Param({"5000"})
+	public int rows;
+
+	@Param({"", "--align-rows", "--diff-style"})
+	public String option;
+
+	private File file1;
+	private File file2;
+	private String[] args;
+
+	@Setup
+	public void setUp() throws Exception {
+		file1 = BenchWorkbooks.write(format, rows, 10, false);
+		file2 = BenchWorkbooks.write(format, rows, 10, true);
+		args = option.isEmpty()
+			? new String[]{file1.getPath(), file2.getPath()}
+			: new String[]{file1.getPath(), file2.getPath(), option};
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchWorkbooks.delete(file1, file2);
+	}
+
+	@Benchmark
+	public int diff() throws Exception {
+		ReportSpreadSheetDiffCallback diffCallback = SpreadSheetDiffer.newDiffCallback(args, BenchWorkbooks.NULL_OUTPUT);
+		try {
+			return SpreadSheetDiffer.doDiff(args, diffCallback);
+		} finally {
+			diffCallback.close();
+		}
+	}
+}
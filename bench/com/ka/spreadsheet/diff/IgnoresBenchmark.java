@@ -0,0 +1,76 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parses a sheet ignore spec of many row, column and cell ranges, and looks
+ * up random cells in it, one operation per cell.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IgnoresBenchmark {
+
+	private static final int LOOKUPS = 1 << 16;
+
+	@Param({"100", "10000"})
+	public int ranges;
+
+	private String spec;
+	private SheetIgnores ignores;
+	private final int[] rows = new int[LOOKUPS];
+	private final int[] cols = new int[LOOKUPS];
+
+	@Setup
+	public void setUp() {
+		StringBuilder rowSpec = new StringBuilder();
+		StringBuilder colSpec = new StringBuilder();
+		StringBuilder cellSpec = new StringBuilder();
+		for (int i = 0; i < ranges; i++) {
+			String sep = (i == 0) ? "" : ",";
+			rowSpec.append(sep).append(i * 10 + 1).append('-').append(i * 10 + 3);
+			colSpec.append(sep).append(SpreadSheetUtils.convertToLetter(i * 4));
+			cellSpec.append(sep).append(SpreadSheetUtils.CELL_INTERNAL_TO_USER(i * 10 + 5, i % 50))
+				.append('-').append(SpreadSheetUtils.CELL_INTERNAL_TO_USER(i * 10 + 7, i % 50 + 3));
+		}
+		spec = "Sheet1:" + rowSpec + ":" + colSpec + ":" + cellSpec;
+		ignores = SheetIgnores.newSheetIgnore(spec);
+		Random random = new Random(42);
+		for (int i = 0; i < LOOKUPS; i++) {
+			rows[i] = random.nextInt(ranges * 10);
+			cols[i] = random.nextInt(ranges * 4);
+		}
+	}
+
+	@Benchmark
+	public SheetIgnores parse() {
+		return SheetIgnores.newSheetIgnore(spec);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void lookup(Blackhole bh) {
+		for (int i = 0; i < LOOKUPS; i++) {
+			bh.consume(ignores.isRowIgnored(rows[i]) || ignores.isColIgnored(cols[i])
+				|| ignores.isCellIgnored(rows[i], cols[i]));
+		}
+	}
+}
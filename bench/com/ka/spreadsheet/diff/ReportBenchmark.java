@@ -0,0 +1,71 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reports diffs of cells in each output format, to a stream throwing the
+ * bytes away, one operation per diff; summary and close included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReportBenchmark {
+
+	private static final int DIFFS = 20000;
+
+	@Param({"text", "jsonl", "csv"})
+	public String format;
+
+	@Param({"false", "true"})
+	public boolean gzip;
+
+	private File file1;
+	private File file2;
+	private String[] args;
+	private List<CellPos> cells1;
+	private List<CellPos> cells2;
+
+	@Setup
+	public void setUp() throws Exception {
+		file1 = BenchWorkbooks.write("xlsx", DIFFS / 10, 10, false);
+		file2 = BenchWorkbooks.write("xlsx", DIFFS / 10, 10, true);
+		cells1 = BenchWorkbooks.cells(SpreadSheetDiffer.loadSpreadSheet(file1));
+		cells2 = BenchWorkbooks.cells(SpreadSheetDiffer.loadSpreadSheet(file2));
+		args = gzip ? new String[]{"--format", format, "--gzip"} : new String[]{"--format", format};
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchWorkbooks.delete(file1, file2);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DIFFS)
+	public void report() {
+		ReportSpreadSheetDiffCallback diffCallback = SpreadSheetDiffer.newDiffCallback(args, BenchWorkbooks.NULL_OUTPUT);
+		for (int i = 0; i < DIFFS; i++) {
+			diffCallback.reportDiffCell(cells1.get(i), cells2.get(i));
+		}
+		diffCallback.reportWorkbooksDiffer(true, file1, file2);
+		diffCallback.close();
+	}
+}
@@ -0,0 +1,84 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the styles of the cells of an xlsx workbook with those of a
+ * changed xls copy, one operation per cell, with the pair cache of a
+ * {@link StyleEquivalence} filled (warm) and empty (cold).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StyleBenchmark {
+
+	private static final int CELLS = 20000;
+
+	private File file1;
+	private File file2;
+	private ISpreadSheet ss1;
+	private ISpreadSheet ss2;
+	private ISheet sheet1;
+	private ISheet sheet2;
+	private List<CellPos> cells1;
+	private List<CellPos> cells2;
+	private StyleEquivalence warm;
+
+	@Setup
+	public void setUp() throws Exception {
+		file1 = BenchWorkbooks.write("xlsx", CELLS / 10, 10, false);
+		file2 = BenchWorkbooks.write("xls", CELLS / 10, 10, true);
+		ss1 = SpreadSheetDiffer.loadSpreadSheet(file1);
+		ss2 = SpreadSheetDiffer.loadSpreadSheet(file2);
+		sheet1 = ss1.getSheetIterator().next();
+		sheet2 = ss2.getSheetIterator().next();
+		cells1 = BenchWorkbooks.cells(ss1);
+		cells2 = BenchWorkbooks.cells(ss2);
+		warm = new StyleEquivalence(ss1, ss2);
+		for (int i = 0; i < CELLS; i++) {
+			warm.diff(sheet1, cells1.get(i).getCell(), sheet2, cells2.get(i).getCell());
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchWorkbooks.delete(file1, file2);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CELLS)
+	public void warm(Blackhole bh) {
+		compare(warm, bh);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(CELLS)
+	public void cold(Blackhole bh) {
+		compare(new StyleEquivalence(ss1, ss2), bh);
+	}
+
+	private void compare(StyleEquivalence styles, Blackhole bh) {
+		for (int i = 0; i < CELLS; i++) {
+			bh.consume(styles.diff(sheet1, cells1.get(i).getCell(), sheet2, cells2.get(i).getCell()));
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.poi.ss.usermodel.WorkbookFactory;
+import org.odftoolkit.simple.SpreadsheetDocument;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Walks every cell of a workbook: read by the streaming reader of its
+ * format, as a diff does, and through the full models ({@link SpreadSheetExcel},
+ * {@link SpreadSheetOdf}) loaded beforehand.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TraversalBenchmark {
+
+	@Param({"xlsx", "xls", "ods"})
+	public String format;
+
+	// SpreadSheetOdf walks the ODF DOM, minutes per pass on a few thousand rows
+	@Param({"500"})
+	public int rows;
+
+	private File file;
+	private ISpreadSheet model;
+
+	@Setup
+	public void setUp() throws Exception {
+		file = BenchWorkbooks.write(format, rows, 10, false);
+		model = "ods".equals(format)
+			? new SpreadSheetOdf(SpreadsheetDocument.loadDocument(file))
+			: new SpreadSheetExcel(WorkbookFactory.create(file));
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchWorkbooks.delete(file);
+	}
+
+	@Benchmark
+	public void streaming(Blackhole bh) throws Exception {
+		walk(SpreadSheetDiffer.loadSpreadSheet(file), bh);
+	}
+
+	@Benchmark
+	public void model(Blackhole bh) {
+		walk(model, bh);
+	}
+
+	private static void walk(ISpreadSheet ss, final Blackhole bh) {
+		for (Iterator<ISheet> it = ss.getSheetIterator(); it.hasNext();) {
+			it.next().forEachCell(new CellVisitor() {
+				@Override
+				public boolean visitCell(ICellCursor cell) {
+					bh.consume(cell.getColumnIndex());
+					switch (cell.getValueKind()) {
+					case NUMERIC:
+						bh.consume(cell.getNumericValue());
+						break;
+					case BOOLEAN:
+						bh.consume(cell.getBooleanValue());
+						break;
+					default:
+						bh.consume(cell.getStringValue());
+					}
+					return true;
+				}
+			});
+		}
+	}
+}
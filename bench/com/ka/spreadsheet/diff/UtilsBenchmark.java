@@ -0,0 +1,75 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Converts cell addresses between indexes and Excel notation with
+ * {@link SpreadSheetUtils}, one operation per address, over columns A to
+ * AMJ (0 to 1023).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilsBenchmark {
+
+	private static final int N = 1024;
+
+	private final String[] letters = new String[N];
+	private final String[] cells = new String[N];
+
+	@Setup
+	public void setUp() {
+		for (int i = 0; i < N; i++) {
+			letters[i] = SpreadSheetUtils.convertToLetter(i);
+			cells[i] = SpreadSheetUtils.CELL_INTERNAL_TO_USER(i * 97, i);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public void toLetter(Blackhole bh) {
+		for (int i = 0; i < N; i++) {
+			bh.consume(SpreadSheetUtils.convertToLetter(i));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public void fromLetter(Blackhole bh) {
+		for (int i = 0; i < N; i++) {
+			bh.consume(SpreadSheetUtils.convertFromLetter(letters[i]));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public void cellToUser(Blackhole bh) {
+		for (int i = 0; i < N; i++) {
+			bh.consume(SpreadSheetUtils.CELL_INTERNAL_TO_USER(i * 97, i));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(N)
+	public void cellFromUser(Blackhole bh) {
+		for (int i = 0; i < N; i++) {
+			bh.consume(SpreadSheetUtils.CELL_USER_TO_INTERNAL(cells[i]));
+		}
+	}
+}
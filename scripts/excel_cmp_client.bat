@@ -0,0 +1,5 @@
+@ECHO OFF
+SETLOCAL
+set dirname=%~dp0
+java -ea -Xmx512m -cp "%dirname%\dist\*;" com.ka.spreadsheet.diff.DiffClient %*
+ENDLOCAL
\ No newline at end of file
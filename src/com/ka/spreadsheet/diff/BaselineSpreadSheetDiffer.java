@@ -0,0 +1,171 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Diffs one baseline workbook with many candidates in one run.
+ *
+ * The baseline is read once, into a snapshot ({@link SpreadSheetSnapshot})
+ * which every diff maps and reads from at the same time. The workbook
+ * readers are not made for cursors on several threads, so where there is
+ * no snapshot to share (styles diffed, as snapshots have no styles, or the
+ * snapshot could not be written) each diff reads the baseline again.
+ * Candidates are diffed on a fixed number of threads, each into
+ * a report file of its own named after the candidate, and for each one line
+ * is printed, in the order given, as each diff is done.
+ */
+public class BaselineSpreadSheetDiffer {
+
+	private final File baseline;
+	private final List<File> candidates;
+	private final String[] args;
+	private final int threads;
+	private final File reportDir;
+
+	/**
+	 * args are the options, as for a diff of two workbooks.
+	 */
+	public BaselineSpreadSheetDiffer(File baseline, List<File> candidates, String[] args, int threads, File reportDir) {
+		this.baseline = baseline;
+		this.candidates = candidates;
+		this.args = args;
+		this.threads = threads;
+		this.reportDir = reportDir;
+	}
+
+	/**
+	 * Returns 0 if all candidates match the baseline, -1 if any diff failed,
+	 * 1 otherwise.
+	 */
+	public int diff() throws Exception {
+		if (!SpreadSheetDiffer.verifyFile(baseline)) {
+			return -1;
+		}
+		if (!reportDir.isDirectory() && !reportDir.mkdirs()) {
+			throw new IOException("Cannot create report directory " + reportDir);
+		}
+		File snapshot = null;
+		ISpreadSheet ss1 = null;
+		File cacheDir = SpreadSheetDiffer.parseCacheDir(args);
+		FormulaMode formulas = SpreadSheetDiffer.parseFormulaMode(args);
+		if (!SpreadSheetDiffer.hasOption(args, "--diff-style")) {
+			if (cacheDir != null) {
+				ss1 = SpreadSheetDiffer.loadSpreadSheet(baseline, cacheDir, null, formulas, threads);
+			} else {
+				ISpreadSheet read = SpreadSheetDiffer.loadSpreadSheet(baseline, null, formulas, threads);
+				try {
+					snapshot = File.createTempFile("excel_cmp", ".snapshot");
+					if (SpreadSheetSnapshot.write(read, snapshot)) {
+						ss1 = SpreadSheetSnapshot.open(snapshot);
+					}
+				} finally {
+					read.close();
+				}
+			}
+			if ((ss1 != null) && !(ss1 instanceof SpreadSheetSnapshot)) {
+				// a reader as read, not to be shared
+				ss1.close();
+				ss1 = null;
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Integer>> diffs = new ArrayList<Future<Integer>>(candidates.size());
+			Set<String> reportNames = new HashSet<String>();
+			for (int i = 0; i < candidates.size(); i++) {
+				File candidate = candidates.get(i);
+				String name = candidate.getName();
+				if (!reportNames.add(name)) {
+					name = name + "-" + (i + 1);
+					reportNames.add(name);
+				}
+				File report = new File(reportDir, name + reportExtension());
+				diffs.add(pool.submit(new CandidateDiff(ss1, candidate, report)));
+			}
+			int ret = 0;
+			for (int i = 0; i < candidates.size(); i++) {
+				int r;
+				try {
+					r = diffs.get(i).get().intValue();
+				} catch (ExecutionException e) {
+					System.err.println("Diff of " + candidates.get(i) + " failed: " + e.getCause().getMessage());
+					r = -1;
+				}
+				if (r >= 0) {
+					System.out.println("Excel files " + baseline + " and " + candidates.get(i) + ((r == 0) ? " match" : " differ"));
+				}
+				ret = ((r < 0) || (ret < 0)) ? -1 : Math.max(ret, r);
+			}
+			return ret;
+		} finally {
+			pool.shutdownNow();
+			if (ss1 != null) {
+				ss1.close();
+			}
+			if (snapshot != null) {
+				snapshot.delete();
+			}
+		}
+	}
+
+	private String reportExtension() {
+		String format = SpreadSheetDiffer.parseFormat(args);
+		String extension = "text".equals(format) ? ".txt" : "." + format;
+		return SpreadSheetDiffer.hasOption(args, "--gzip") ? extension + ".gz" : extension;
+	}
+
+	/**
+	 * Diff of a candidate with the baseline shared as ss1, or read by the
+	 * diff itself if ss1 is null.
+	 */
+	private class CandidateDiff implements Callable<Integer> {
+
+		private final ISpreadSheet ss1;
+		private final File candidate;
+		private final File report;
+
+		CandidateDiff(ISpreadSheet ss1, File candidate, File report) {
+			this.ss1 = ss1;
+			this.candidate = candidate;
+			this.report = report;
+		}
+
+		@Override
+		public Integer call() throws Exception {
+			if (!candidate.isFile() || !candidate.canRead()) {
+				throw new IOException("File: " + candidate + " is not a readable file.");
+			}
+			OutputStream out = new FileOutputStream(report);
+			boolean done = false;
+			try {
+				ReportSpreadSheetDiffCallback diffCallback = SpreadSheetDiffer.newDiffCallback(args, out);
+				try {
+					int ret = SpreadSheetDiffer.diff(baseline, ss1, candidate, args, 1, Math.min(threads, candidates.size()), diffCallback);
+					done = true;
+					return Integer.valueOf(ret);
+				} finally {
+					diffCallback.close();
+				}
+			} finally {
+				out.close();
+				// no half report of a failed diff
+				if (!done) {
+					report.delete();
+				}
+			}
+		}
+	}
+}
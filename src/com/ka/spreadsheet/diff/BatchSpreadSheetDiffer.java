@@ -0,0 +1,308 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * Diffs the workbooks of two directory trees, paired by their path relative
+ * to the tree, in one run.
+ *
+ * Pairs are diffed on a number of worker threads. A pair is only started
+ * once its estimated memory (see {@link #estimateMemory(File, FormulaMode)}) fits in
+ * what the pairs running leave of the memory budget: a worker takes the
+ * first pair in path order which fits, so small pairs keep the workers busy
+ * while a big one waits for memory. A pair estimated above the whole budget
+ * runs alone.
+ *
+ * One line with the exit status of every pair is printed in path order,
+ * then a summary. Reports of the pairs are written only if a report
+ * directory is given, to the same relative path there.
+ */
+public class BatchSpreadSheetDiffer {
+
+	private static final String[] EXTENSIONS = { ".xls", ".xlsx", ".xlsm", ".ods" };
+	private static final long FILE_OVERHEAD = 8L << 20;
+
+	private static final int MATCH = 0, DIFFER = 1, ONLY_A = 2, ONLY_B = 3, FAILED = 4;
+	private static final String[] RESULTS = { "match", "differ", "only in A", "only in B", "failed" };
+
+	private final File dirA;
+	private final File dirB;
+	private final String[] args;
+	private final int threads;
+	private final long memoryBudget;
+	private final File reportDir;
+
+	private final LinkedList<Pair> pending = new LinkedList<Pair>();
+	private long freeMemory;
+
+	/**
+	 * args are the options, as for a diff of two workbooks; reportDir may be
+	 * null.
+	 */
+	public BatchSpreadSheetDiffer(File dirA, File dirB, String[] args, int threads, long memoryBudget, File reportDir) {
+		this.dirA = dirA;
+		this.dirB = dirB;
+		this.args = args;
+		this.threads = threads;
+		this.memoryBudget = memoryBudget;
+		this.reportDir = reportDir;
+	}
+
+	/**
+	 * Returns 0 if all pairs match, -1 if any diff failed, 1 otherwise.
+	 */
+	public int diff() throws Exception {
+		for (File dir : new File[]{dirA, dirB}) {
+			if (!dir.isDirectory()) {
+				throw new IOException("Directory: " + dir + " does not exist.");
+			}
+		}
+		TreeMap<String,File> filesA = new TreeMap<String,File>();
+		TreeMap<String,File> filesB = new TreeMap<String,File>();
+		listWorkbooks(dirA, "", filesA);
+		listWorkbooks(dirB, "", filesB);
+		TreeMap<String,Pair> pairs = new TreeMap<String,Pair>();
+		for (String path : filesA.keySet()) {
+			pairs.put(path, new Pair(path, filesA.get(path), filesB.get(path)));
+		}
+		for (String path : filesB.keySet()) {
+			if (!pairs.containsKey(path)) {
+				pairs.put(path, new Pair(path, null, filesB.get(path)));
+			}
+		}
+		pending.addAll(pairs.values());
+		freeMemory = memoryBudget;
+
+		for (int i = 0; i < Math.min(threads, pending.size()); i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Pair pair;
+					while ((pair = take()) != null) {
+						try {
+							pair.run();
+						} finally {
+							release(pair);
+						}
+					}
+				}
+			}, "batch diff " + i);
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		int[] counts = new int[5];
+		int ret = 0;
+		for (Pair pair : pairs.values()) {
+			pair.await();
+			System.out.println(pair);
+			counts[pair.result]++;
+			ret = ((pair.status < 0) || (ret < 0)) ? -1 : Math.max(ret, pair.status);
+		}
+		System.out.println("----------------- SUMMARY -------------------");
+		System.out.println("Pairs: " + pairs.size() + ", match: " + counts[MATCH] + ", differ: " + counts[DIFFER]
+			+ ", only in A: " + counts[ONLY_A] + ", only in B: " + counts[ONLY_B] + ", failed: " + counts[FAILED]);
+		System.out.println("-----------------------------------------");
+		return ret;
+	}
+
+	/**
+	 * Rough heap taken while a workbook is read: the streaming readers keep
+	 * the shared strings and styles, which grow with the file, zipped xlsx /
+	 * ods files more than xls. Formulas evaluated need the full POI model of
+	 * an xls / xlsx file, all its cells as objects.
+	 */
+	static long estimateMemory(File file, FormulaMode formulas) {
+		String name = file.getName().toLowerCase(Locale.ROOT);
+		long factor;
+		if (name.endsWith(".ods")) {
+			factor = 4;
+		} else if (name.endsWith(".xls")) {
+			factor = (formulas == FormulaMode.EVALUATE) ? 12 : 3;
+		} else {
+			factor = (formulas == FormulaMode.EVALUATE) ? 60 : 6;
+		}
+		return FILE_OVERHEAD + factor * file.length();
+	}
+
+	private static void listWorkbooks(File dir, String prefix, TreeMap<String,File> files) {
+		File[] entries = dir.listFiles();
+		if (entries == null) {
+			return;
+		}
+		Arrays.sort(entries);
+		for (File entry : entries) {
+			if (entry.isDirectory()) {
+				listWorkbooks(entry, prefix + entry.getName() + "/", files);
+			} else if (entry.isFile() && isWorkbook(entry.getName())) {
+				files.put(prefix + entry.getName(), entry);
+			}
+		}
+	}
+
+	private static boolean isWorkbook(String name) {
+		// ~$ files are the lock files of open workbooks
+		if (name.startsWith("~$")) {
+			return false;
+		}
+		String lower = name.toLowerCase(Locale.ROOT);
+		for (String extension : EXTENSIONS) {
+			if (lower.endsWith(extension)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The first pending pair which fits in the memory left, null once there
+	 * are none left. A worker interrupted fails the pairs still pending, as
+	 * there may be no worker left to run them.
+	 */
+	private synchronized Pair take() {
+		while (!pending.isEmpty()) {
+			for (Iterator<Pair> it = pending.iterator(); it.hasNext();) {
+				Pair pair = it.next();
+				if (pair.memory <= freeMemory) {
+					it.remove();
+					freeMemory -= pair.memory;
+					return pair;
+				}
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				for (Pair pair : pending) {
+					pair.fail("Interrupted");
+				}
+				pending.clear();
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return null;
+	}
+
+	private synchronized void release(Pair pair) {
+		freeMemory += pair.memory;
+		notifyAll();
+	}
+
+	private String reportExtension() {
+		String format = SpreadSheetDiffer.parseFormat(args);
+		String extension = "text".equals(format) ? ".txt" : "." + format;
+		return SpreadSheetDiffer.hasOption(args, "--gzip") ? extension + ".gz" : extension;
+	}
+
+	private class Pair {
+
+		final String path;
+		final File fileA;
+		final File fileB;
+		final long memory;
+
+		int status;
+		int result;
+		String message;
+		private boolean done;
+
+		Pair(String path, File fileA, File fileB) {
+			this.path = path;
+			this.fileA = fileA;
+			this.fileB = fileB;
+			FormulaMode formulas = SpreadSheetDiffer.parseFormulaMode(args);
+			long memory = 0;
+			if (fileA != null) {
+				memory += estimateMemory(fileA, formulas);
+			}
+			if (fileB != null) {
+				memory += estimateMemory(fileB, formulas);
+			}
+			if (SpreadSheetDiffer.hasOption(args, "--key")) {
+				memory += SpreadSheetDiffer.parseKeyMemory(args);
+			}
+			this.memory = Math.min(memory, memoryBudget);
+		}
+
+		void run() {
+			try {
+				if ((fileA == null) || (fileB == null)) {
+					status = 1;
+					result = (fileA == null) ? ONLY_B : ONLY_A;
+				} else {
+					status = diff();
+					result = (status == 0) ? MATCH : ((status > 0) ? DIFFER : FAILED);
+				}
+			} catch (Exception e) {
+				status = -1;
+				result = FAILED;
+				message = e.getMessage();
+			} catch (Error e) {
+				// what the pair took is garbage by now, the others go on
+				status = -1;
+				result = FAILED;
+				message = (e instanceof OutOfMemoryError) ? "Out of memory" : e.toString();
+			} finally {
+				finish();
+			}
+		}
+
+		/**
+		 * Ends the pair as failed without running it.
+		 */
+		void fail(String message) {
+			status = -1;
+			result = FAILED;
+			this.message = message;
+			finish();
+		}
+
+		private synchronized void finish() {
+			done = true;
+			notifyAll();
+		}
+
+		private int diff() throws Exception {
+			if (reportDir == null) {
+				// writes nothing to System.out
+				return SpreadSheetDiffer.diff(fileA, null, fileB, args, 1, 1, new QuietSpreadSheetDiffCallback(System.out));
+			}
+			File report = new File(reportDir, path + reportExtension());
+			File parent = report.getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs()) {
+				throw new IOException("Cannot create report directory " + parent);
+			}
+			OutputStream out = new FileOutputStream(report);
+			try {
+				ReportSpreadSheetDiffCallback diffCallback = SpreadSheetDiffer.newDiffCallback(args, out);
+				try {
+					return SpreadSheetDiffer.diff(fileA, null, fileB, args, 1, 1, diffCallback);
+				} finally {
+					diffCallback.close();
+				}
+			} finally {
+				out.close();
+			}
+		}
+
+		synchronized void await() throws InterruptedException {
+			while (!done) {
+				wait();
+			}
+		}
+
+		@Override
+		public String toString() {
+			String line = String.format("%-3d%-11s%s", status, RESULTS[result], path);
+			return (message == null) ? line : line + ": " + message;
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Glue between cell cursors and the row / cell iterators of {@link ISheet}.
+ */
+public class CellCursors {
+
+	/**
+	 * Runs visitor over the cells of cursor and closes it.
+	 */
+	static void forEachCell(ICellCursor cursor, CellVisitor visitor) {
+		try {
+			while (cursor.next()) {
+				if (!visitor.visitCell(cursor)) {
+					break;
+				}
+			}
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Groups the cells of cursor into rows, for readers which only have a
+	 * cursor. Rows without cells are not seen.
+	 */
+	static Iterator<IRow> rowIterator(ICellCursor cursor) {
+		return new CursorRowIterator(cursor);
+	}
+
+	/**
+	 * Cursor over the cells of rows, for readers which only have iterators.
+	 */
+	static ICellCursor cellCursor(Iterator<IRow> rows) {
+		return new RowIteratorCellCursor(rows);
+	}
+
+	private static class CursorRowIterator implements Iterator<IRow> {
+
+		private final ICellCursor cursor;
+		private boolean hasCell;
+
+		CursorRowIterator(ICellCursor cursor) {
+			this.cursor = cursor;
+			this.hasCell = cursor.next();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return hasCell;
+		}
+
+		@Override
+		public IRow next() {
+			if (!hasCell) {
+				throw new NoSuchElementException();
+			}
+			final int rowIdx = cursor.getRowIndex();
+			final List<ICell> cells = new ArrayList<ICell>();
+			do {
+				cells.add(cursor.snapshot());
+				hasCell = cursor.next();
+			} while (hasCell && (cursor.getRowIndex() == rowIdx));
+
+			return new IRow() {
+
+				@Override
+				public int getRowIndex() {
+					return rowIdx;
+				}
+
+				@Override
+				public Iterator<ICell> getCellIterator() {
+					return cells.iterator();
+				}
+			};
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static class RowIteratorCellCursor implements ICellCursor {
+
+		private final Iterator<IRow> rows;
+		private Iterator<ICell> cells;
+		private ICell cell;
+
+		RowIteratorCellCursor(Iterator<IRow> rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public boolean next() {
+			while ((cells == null) || !cells.hasNext()) {
+				if (!rows.hasNext()) {
+					cell = null;
+					return false;
+				}
+				cells = rows.next().getCellIterator();
+			}
+			cell = cells.next();
+			return true;
+		}
+
+		@Override
+		public ICell snapshot() {
+			return cell;
+		}
+
+		@Override
+		public void close() {
+		}
+
+		@Override
+		public int getRowIndex() {
+			return cell.getRowIndex();
+		}
+
+		@Override
+		public int getColumnIndex() {
+			return cell.getColumnIndex();
+		}
+
+		@Override
+		public ICellStyle getCellStyle() {
+			return cell.getCellStyle();
+		}
+
+		@Override
+		public int getStyleIndex() {
+			return cell.getStyleIndex();
+		}
+
+		@Override
+		public String getStringValue() {
+			return cell.getStringValue();
+		}
+
+		@Override
+		public CellValueKind getValueKind() {
+			return cell.getValueKind();
+		}
+
+		@Override
+		public double getNumericValue() {
+			return cell.getNumericValue();
+		}
+
+		@Override
+		public boolean getBooleanValue() {
+			return cell.getBooleanValue();
+		}
+	}
+}
@@ -0,0 +1,127 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes one CSV record per event, in UTF-8, under the header
+ *
+ * <pre>
+ * kind,sheet,row,col,value1,value2,style,row2
+ * </pre>
+ *
+ * with the same kinds and fields as {@link JsonLinesSpreadSheetDiffCallback};
+ * fields an event does not have are left empty. Fields holding a comma, a
+ * quote or a line break are quoted as of RFC 4180, records end with \n.
+ */
+public class CsvSpreadSheetDiffCallback extends ReportSpreadSheetDiffCallback {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private boolean headerWritten;
+
+    public CsvSpreadSheetDiffCallback() {
+        this(System.out, false);
+    }
+
+    public CsvSpreadSheetDiffCallback(OutputStream stream, boolean gzip) {
+        super(stream, gzip, UTF_8);
+    }
+
+    public CsvSpreadSheetDiffCallback(WritableByteChannel channel) {
+        super(channel, UTF_8);
+    }
+
+    private void writeHeader() {
+        if (!headerWritten) {
+            out.append("kind,sheet,row,col,value1,value2,style,row2").append('\n');
+            headerWritten = true;
+        }
+    }
+
+    @Override
+    public void reportDiffCell(CellPos c1, CellPos c2) {
+        writeRecord("diff", c1, c2, c1.getStringValue(), c2.getStringValue(), null);
+    }
+
+    @Override
+    public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+        if (inFirstSpreadSheet) {
+            writeRecord("extra1", c, null, c.getStringValue(), null, null);
+        } else {
+            writeRecord("extra2", c, null, null, c.getStringValue(), null);
+        }
+    }
+
+    @Override
+    public void reportExtraRow(boolean inFirstSpreadSheet, String sheetName, int rowIndex) {
+        writeHeader();
+        out.append(inFirstSpreadSheet ? "extrarow1" : "extrarow2");
+        appendField(sheetName);
+        out.append(',').append(SpreadSheetUtils.ROW_INTERNAL_TO_USER(rowIndex));
+        out.append(",,,,,").append('\n');
+    }
+
+    @Override
+    public void reportStyleDiff(String diff, CellPos c1, CellPos c2) {
+        writeRecord("style", c1, c2, c1.getStringValue(), c2.getStringValue(), diff);
+    }
+
+    @Override
+    public void reportWorkbooksDiffer(boolean differ, File file1, File file2) {
+        writeHeader();
+        out.append(differ ? "differ" : "match").append(",,,");
+        appendField(String.valueOf(file1));
+        appendField(String.valueOf(file2));
+        out.append(",,").append('\n');
+        flush();
+    }
+
+    private void writeRecord(String kind, CellPos c, CellPos c2, String value1, String value2, String style) {
+        ICell cell = c.getCell();
+        writeHeader();
+        out.append(kind);
+        appendField(c.getSheetName());
+        out.append(',').append(SpreadSheetUtils.ROW_INTERNAL_TO_USER(cell.getRowIndex()));
+        out.append(',').appendColumn(cell.getColumnIndex());
+        appendField(value1);
+        appendField(value2);
+        appendField(style);
+        out.append(',');
+        if ((c2 != null) && (c2.getCell().getRowIndex() != cell.getRowIndex())) {
+            out.append(SpreadSheetUtils.ROW_INTERNAL_TO_USER(c2.getCell().getRowIndex()));
+        }
+        out.append('\n');
+    }
+
+    /**
+     * Appends a comma and value, quoted if need be.
+     */
+    private void appendField(String value) {
+        out.append(',');
+        if (value == null) {
+            return;
+        }
+        int len = value.length();
+        boolean quote = false;
+        for (int i = 0; (i < len) && !quote; i++) {
+            char ch = value.charAt(i);
+            quote = (ch == ',') || (ch == '"') || (ch == '\n') || (ch == '\r');
+        }
+        if (!quote) {
+            out.append(value);
+            return;
+        }
+        out.append('"');
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            if (value.charAt(i) == '"') {
+                out.append(value, start, i + 1).append('"');
+                start = i + 1;
+            }
+        }
+        out.append(value, start, len).append('"');
+    }
+}
@@ -0,0 +1,112 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Has a {@link DiffServer} on the loopback port EXCEL_CMP_PORT (default
+ * {@link DiffServer#DEFAULT_PORT}) diff, with the same arguments, output and
+ * exit code as excel_cmp. The server's key is read from its key file, which
+ * only the user running the server can read; the server has to prove it
+ * holds the key before the client proves it does and sends its request.
+ * With no server running for this user the diff is done in this process.
+ *
+ * The client is a JVM too, started for every diff: what the server saves is
+ * loading and compiling the readers and POI, which takes much longer than
+ * starting a JVM which only runs this class.
+ */
+public class DiffClient {
+
+	public static void main(String[] args) {
+		String port = System.getenv("EXCEL_CMP_PORT");
+		System.exit(run((port != null) ? Integer.parseInt(port) : DiffServer.DEFAULT_PORT, args));
+	}
+
+	/**
+	 * Diffs args on the server on port, or in this process if there is none,
+	 * and returns the exit code.
+	 */
+	static int run(int port, String[] args) {
+		try {
+			return diff(port, args);
+		} catch (ConnectException e) {
+			return SpreadSheetDiffer.doDiff(args);
+		} catch (IOException e) {
+			System.err.println("Diff failed: " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Sends args to the server on port, copies what it prints to stdout and
+	 * stderr and returns the exit code.
+	 */
+	public static int diff(int port, String[] args) throws IOException {
+		String key;
+		try {
+			key = DiffServer.readKey(port);
+		} catch (IOException e) {
+			throw new ConnectException("No key file for a server on port " + port);
+		}
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			DataInputStream frames = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			byte[] clientNonce = new byte[DiffServer.NONCE_BYTES];
+			new SecureRandom().nextBytes(clientNonce);
+			request.write(clientNonce);
+			request.flush();
+			byte[] serverNonce = new byte[DiffServer.NONCE_BYTES];
+			byte[] serverProof = new byte[DiffServer.PROOF_BYTES];
+			frames.readFully(serverNonce);
+			frames.readFully(serverProof);
+			if (!MessageDigest.isEqual(DiffServer.proof(key, DiffServer.SERVER_PROOF, clientNonce), serverProof)) {
+				throw new IOException("The process on the server port does not hold the key of the server, nothing was sent to it");
+			}
+			request.write(DiffServer.proof(key, DiffServer.CLIENT_PROOF, serverNonce));
+			request.writeUTF(System.getProperty("user.dir"));
+			request.writeInt(args.length);
+			for (String arg : args) {
+				request.writeUTF(arg);
+			}
+			request.flush();
+
+			byte[] buf = new byte[1 << 16];
+			while (true) {
+				int channel = frames.readByte();
+				if (channel == DiffServer.EXIT) {
+					int ret = frames.readInt();
+					System.out.flush();
+					return ret;
+				}
+				PrintStream out = (channel == DiffServer.STDOUT) ? System.out : System.err;
+				for (int len = frames.readInt(); len > 0;) {
+					int n = frames.read(buf, 0, Math.min(len, buf.length));
+					if (n < 0) {
+						throw new EOFException();
+					}
+					out.write(buf, 0, n);
+					len -= n;
+				}
+				if (channel == DiffServer.STDERR) {
+					System.err.flush();
+				}
+			}
+		} catch (EOFException e) {
+			System.out.flush();
+			throw new IOException("Server closed the connection before the diff ended");
+		} finally {
+			socket.close();
+		}
+	}
+}
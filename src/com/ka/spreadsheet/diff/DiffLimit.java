@@ -0,0 +1,99 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+
+/**
+ * Stops a diff once it has reported a number of events: diff cells, extra
+ * cells, extra rows and style diffs. Set by --max-diffs, and to one event by
+ * --quiet.
+ *
+ * The differs ask {@link #isReached()} as they go and stop walking their
+ * sheets, which closes the readers, so the rest of the workbooks is never
+ * parsed; the sheet pairs after are not diffed at all. Events past the limit
+ * are not passed on, so the report holds exactly the first events of a full
+ * diff.
+ *
+ * In a parallel diff each sheet pair counts its own events against a limit
+ * of its own ({@link #forSheetPair()}), as the pairs before it may report
+ * fewer. Once the events replayed in sheet order reach the limit of the
+ * whole diff, the pairs still running stop as well.
+ */
+public class DiffLimit {
+
+	private final long maxEvents;
+	private final DiffLimit parent;
+	private long events;
+	private volatile boolean reached;
+
+	public DiffLimit(long maxEvents) {
+		this(maxEvents, null);
+	}
+
+	private DiffLimit(long maxEvents, DiffLimit parent) {
+		this.maxEvents = maxEvents;
+		this.parent = parent;
+	}
+
+	/**
+	 * A limit of the same number of events for one sheet pair of a parallel
+	 * diff, reached also when this one is.
+	 */
+	DiffLimit forSheetPair() {
+		return new DiffLimit(maxEvents, this);
+	}
+
+	boolean isReached() {
+		return reached || ((parent != null) && parent.reached);
+	}
+
+	/**
+	 * The callback passing events on to diffCallback until the limit is
+	 * reached, and counting them.
+	 */
+	SpreadSheetDiffCallback limited(final SpreadSheetDiffCallback diffCallback) {
+		return new SpreadSheetDiffCallback() {
+			@Override
+			public void reportDiffCell(CellPos c1, CellPos c2) {
+				if (!isReached()) {
+					diffCallback.reportDiffCell(c1, c2);
+					count();
+				}
+			}
+
+			@Override
+			public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+				if (!isReached()) {
+					diffCallback.reportExtraCell(inFirstSpreadSheet, c);
+					count();
+				}
+			}
+
+			@Override
+			public void reportExtraRow(boolean inFirstSpreadSheet, String sheetName, int rowIndex) {
+				if (!isReached()) {
+					diffCallback.reportExtraRow(inFirstSpreadSheet, sheetName, rowIndex);
+					count();
+				}
+			}
+
+			@Override
+			public void reportStyleDiff(String diff, CellPos c1, CellPos c2) {
+				if (!isReached()) {
+					diffCallback.reportStyleDiff(diff, c1, c2);
+					count();
+				}
+			}
+
+			@Override
+			public void reportWorkbooksDiffer(boolean differ, File file1, File file2) {
+				diffCallback.reportWorkbooksDiffer(differ, file1, file2);
+			}
+		};
+	}
+
+	private void count() {
+		if (++events >= maxEvents) {
+			reached = true;
+		}
+	}
+}
@@ -0,0 +1,521 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Keeps a JVM with the readers loaded and compiled, and diffs for clients
+ * ({@link DiffClient}) connecting on a loopback port, saving every diff the
+ * start of a JVM.
+ *
+ * The key of the server is made up when it binds and written to a file
+ * only its user may read, see {@link #keyFile(int)}. It never goes over the
+ * socket: the client sends a nonce, the server answers with a nonce of its
+ * own and an HMAC of the client's nonce under the key, and only once that
+ * proves the server holds the key does the client answer with the HMAC of
+ * the server's nonce, see {@link #proof(String, int, byte[])}. So a process
+ * which took the port first learns nothing of the key, and a client without
+ * the key is refused: other users cannot have the server read or write
+ * files for them.
+ *
+ * A request then is the client's working directory and its command line,
+ * as given to excel_cmp. Relative paths in
+ * the command line are resolved against the client's directory before the
+ * diff, see {@link #resolvePaths(String[], File)}.
+ *
+ * The answer streams back what the diff prints, in
+ * frames: a channel byte (1 stdout, 2 stderr) with an int length and the
+ * bytes, and at the end the channel byte 0 with the exit code. Requests are
+ * diffed on a fixed number of threads; one starts only once its estimated
+ * memory fits in what the requests running leave of the server's memory,
+ * and one estimated above the per request limit is refused. A request which
+ * runs out of memory all the same stops the server: the JVM shared by all
+ * requests cannot be trusted after an OutOfMemoryError, its clients see the
+ * connection closed.
+ */
+public class DiffServer {
+
+	public static final int DEFAULT_PORT = 17171;
+
+	static final int EXIT = 0, STDOUT = 1, STDERR = 2;
+
+	static final int NONCE_BYTES = 32;
+	static final int PROOF_BYTES = 32;
+	static final int SERVER_PROOF = 1, CLIENT_PROOF = 2;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final InheritableThreadLocal<PrintStream> OUT = new InheritableThreadLocal<PrintStream>();
+	private static final InheritableThreadLocal<PrintStream> ERR = new InheritableThreadLocal<PrintStream>();
+
+	private final int port;
+	private final int threads;
+	private final long memoryBudget;
+	private final long requestMemory;
+
+	private final SecureRandom random = new SecureRandom();
+
+	private ServerSocket serverSocket;
+	private File keyFile;
+	private String key;
+	private long freeMemory;
+
+	public DiffServer(int port, int threads, long memoryBudget, long requestMemory) {
+		this.port = port;
+		this.threads = threads;
+		this.memoryBudget = memoryBudget;
+		this.requestMemory = requestMemory;
+	}
+
+	/**
+	 * Runs a server with the options in args until the process is killed.
+	 */
+	static int serve(String[] args) {
+		int port = DEFAULT_PORT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		long memory = Runtime.getRuntime().maxMemory() / 4 * 3;
+		long requestMemory = -1;
+		try {
+			for (int i = 1; i < args.length - 1; i++) {
+				if ("--port".equals(args[i])) {
+					port = Integer.parseInt(args[i + 1]);
+				} else if ("--threads".equals(args[i])) {
+					threads = Integer.parseInt(args[i + 1]);
+				} else if ("--server-memory".equals(args[i])) {
+					memory = Long.parseLong(args[i + 1]) << 20;
+				} else if ("--request-memory".equals(args[i])) {
+					requestMemory = Long.parseLong(args[i + 1]) << 20;
+				}
+			}
+			if (threads < 1) {
+				throw new IllegalArgumentException("Illegal number of threads " + threads);
+			}
+			DiffServer server = new DiffServer(port, threads, memory, (requestMemory < 0) ? memory : requestMemory);
+			System.out.println("Serving diffs on port " + server.bind());
+			server.serve();
+			return 0;
+		} catch (Exception e) {
+			System.err.println("Server failed: " + e.getMessage());
+			return -1;
+		}
+	}
+
+	/**
+	 * Binds the loopback port and writes its key file, returns the port (the
+	 * one picked when port is 0).
+	 */
+	public int bind() throws IOException {
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		byte[] secret = new byte[32];
+		random.nextBytes(secret);
+		StringBuilder hex = new StringBuilder();
+		for (byte b : secret) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		key = hex.toString();
+		keyFile = keyFile(serverSocket.getLocalPort());
+		try {
+			writeKeyFile(keyFile, key);
+			keyFile.deleteOnExit();
+		} catch (IOException e) {
+			serverSocket.close();
+			throw e;
+		}
+		freeMemory = memoryBudget;
+		installStreams();
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * The file holding the key of the server on port, in the .excel_cmp
+	 * directory of the user's home.
+	 */
+	static File keyFile(int port) {
+		return new File(new File(System.getProperty("user.home"), ".excel_cmp"), "server-" + port + ".key");
+	}
+
+	/**
+	 * Writes key to file, which is made anew readable and writable by its
+	 * owner only (0600), in a directory only the owner may enter (0700).
+	 */
+	private static void writeKeyFile(File file, String key) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create key directory " + dir);
+		}
+		Files.deleteIfExists(file.toPath());
+		if (Files.getFileStore(dir.toPath()).supportsFileAttributeView("posix")) {
+			Files.setPosixFilePermissions(dir.toPath(), PosixFilePermissions.fromString("rwx------"));
+			Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} else {
+			// no POSIX permissions (Windows), the home directory is the user's own
+			Files.createFile(file.toPath());
+			if (!file.setReadable(false, false) || !file.setReadable(true, true)
+					|| !file.setWritable(false, false) || !file.setWritable(true, true)) {
+				throw new IOException("Cannot restrict access to key file " + file);
+			}
+		}
+		Files.write(file.toPath(), key.getBytes(UTF_8));
+	}
+
+	/**
+	 * The key of the server on port, as its key file holds it.
+	 */
+	static String readKey(int port) throws IOException {
+		return new String(Files.readAllBytes(keyFile(port).toPath()), UTF_8);
+	}
+
+	/**
+	 * The HMAC-SHA256 of nonce under key, for the side role
+	 * ({@link #SERVER_PROOF} or {@link #CLIENT_PROOF}), so that one side's
+	 * proof cannot be sent back as the other's.
+	 */
+	static byte[] proof(String key, int role, byte[] nonce) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(key.getBytes(UTF_8), "HmacSHA256"));
+			mac.update((byte) role);
+			return mac.doFinal(nonce);
+		} catch (GeneralSecurityException e) {
+			// every JRE has HmacSHA256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Serves requests until {@link #close()}.
+	 */
+	public void serve() throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			while (true) {
+				final Socket socket;
+				try {
+					socket = serverSocket.accept();
+				} catch (SocketException e) {
+					if (serverSocket.isClosed()) {
+						return;
+					}
+					throw e;
+				}
+				pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							handle(socket);
+						} catch (IOException e) {
+							// the client went away, nothing to answer
+						} catch (Error e) {
+							stop(e);
+						} finally {
+							try {
+								socket.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+		if (keyFile != null) {
+			keyFile.delete();
+		}
+	}
+
+	/**
+	 * Ends the process after error, out of memory mostly, left the JVM in a
+	 * state no request should run in; the requests running are cut off.
+	 */
+	private void stop(Error error) {
+		try {
+			System.err.println("Server failed: " + error);
+			close();
+		} catch (Throwable e) {
+			// stopping anyway
+		}
+		Runtime.getRuntime().halt(-1);
+	}
+
+	private void handle(Socket socket) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream frames = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		byte[] clientNonce = new byte[NONCE_BYTES];
+		in.readFully(clientNonce);
+		byte[] serverNonce = new byte[NONCE_BYTES];
+		random.nextBytes(serverNonce);
+		frames.write(serverNonce);
+		frames.write(proof(key, SERVER_PROOF, clientNonce));
+		frames.flush();
+		byte[] clientProof = new byte[PROOF_BYTES];
+		in.readFully(clientProof);
+		if (!MessageDigest.isEqual(proof(key, CLIENT_PROOF, serverNonce), clientProof)) {
+			byte[] refused = ("Diff refused: wrong server key" + System.getProperty("line.separator")).getBytes(UTF_8);
+			frames.writeByte(STDERR);
+			frames.writeInt(refused.length);
+			frames.write(refused);
+			frames.writeByte(EXIT);
+			frames.writeInt(-1);
+			frames.flush();
+			return;
+		}
+		File cwd = new File(in.readUTF());
+		String[] args = new String[in.readInt()];
+		for (int i = 0; i < args.length; i++) {
+			args[i] = in.readUTF();
+		}
+		args = resolvePaths(args, cwd);
+
+		PrintStream out = new PrintStream(new BufferedOutputStream(new FrameOutputStream(frames, STDOUT), 1 << 16));
+		PrintStream err = new PrintStream(new FrameOutputStream(frames, STDERR), true);
+		OUT.set(out);
+		ERR.set(err);
+		int ret;
+		try {
+			long memory = estimateMemory(args);
+			if (memory > requestMemory) {
+				err.println("Diff failed: estimated to take " + (memory >> 20) + " MB, over the limit of "
+					+ (requestMemory >> 20) + " MB per request");
+				ret = -1;
+			} else {
+				acquire(memory);
+				try {
+					ret = diff(args, out);
+				} finally {
+					release(memory);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ret = -1;
+		} catch (RuntimeException e) {
+			err.println("Diff failed: " + e.getMessage());
+			ret = -1;
+		} finally {
+			OUT.remove();
+			ERR.remove();
+		}
+		out.flush();
+		synchronized (frames) {
+			frames.writeByte(EXIT);
+			frames.writeInt(ret);
+			frames.flush();
+		}
+	}
+
+	/**
+	 * As {@link SpreadSheetDiffer#doDiff(String[])}, with the report on out.
+	 */
+	private static int diff(String[] args, PrintStream out) {
+		if (((args.length > 0) && "--baseline".equals(args[0]))
+				|| SpreadSheetDiffer.hasOption(args, "--dir-a") || SpreadSheetDiffer.hasOption(args, "--dir-b")) {
+			return SpreadSheetDiffer.doDiff(args);
+		}
+		int ret = -1;
+		ReportSpreadSheetDiffCallback diffCallback = null;
+		try {
+			diffCallback = SpreadSheetDiffer.newDiffCallback(args, out);
+			ret = SpreadSheetDiffer.doDiff(args, diffCallback);
+		} catch (Exception e) {
+			System.err.println("Diff failed: " + e.getMessage());
+		} finally {
+			if (diffCallback != null) {
+				diffCallback.close();
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * What reading the workbooks named in args takes, see
+	 * {@link BatchSpreadSheetDiffer#estimateMemory(File, FormulaMode)}; a batch of
+	 * directories takes its --batch-memory, or all the server has.
+	 */
+	private long estimateMemory(String[] args) {
+		if (SpreadSheetDiffer.hasOption(args, "--dir-a") || SpreadSheetDiffer.hasOption(args, "--dir-b")) {
+			for (int i = 0; i < args.length - 1; i++) {
+				if ("--batch-memory".equals(args[i])) {
+					return Long.parseLong(args[i + 1]) << 20;
+				}
+			}
+			return memoryBudget;
+		}
+		FormulaMode formulas = SpreadSheetDiffer.parseFormulaMode(args);
+		long memory = 0;
+		for (String arg : args) {
+			File file = new File(arg);
+			if (!arg.startsWith("--") && file.isFile()) {
+				memory += BatchSpreadSheetDiffer.estimateMemory(file, formulas);
+			}
+		}
+		if (SpreadSheetDiffer.hasOption(args, "--key")) {
+			memory += SpreadSheetDiffer.parseKeyMemory(args);
+		}
+		return memory;
+	}
+
+	private synchronized void acquire(long memory) throws InterruptedException {
+		memory = Math.min(memory, memoryBudget);
+		while (memory > freeMemory) {
+			wait();
+		}
+		freeMemory -= memory;
+	}
+
+	private synchronized void release(long memory) {
+		freeMemory += Math.min(memory, memoryBudget);
+		notifyAll();
+	}
+
+	/**
+	 * The command line of a client in cwd, with the relative paths in it
+	 * made absolute: the workbooks, --baseline and its candidates, and the
+	 * directories and files of --dir-a, --dir-b, --report-dir, --cache and
+	 * --ignore-file. A baseline diff without --report-dir reports to cwd.
+	 * If the server runs in cwd too the paths are left as given, so they are
+	 * printed as the client named them.
+	 */
+	static String[] resolvePaths(String[] args, File cwd) {
+		if (cwd.getAbsoluteFile().equals(new File(System.getProperty("user.dir")).getAbsoluteFile())) {
+			return args;
+		}
+		List<String> ret = new ArrayList<String>(Arrays.asList(args));
+		int positional;
+		if ((args.length > 0) && "--baseline".equals(args[0])) {
+			positional = 1;
+			while ((positional < args.length) && !args[positional].startsWith("--")) {
+				positional++;
+			}
+			if (!SpreadSheetDiffer.hasOption(args, "--report-dir")) {
+				ret.add("--report-dir");
+				ret.add(cwd.getPath());
+			}
+		} else if (SpreadSheetDiffer.hasOption(args, "--dir-a") || SpreadSheetDiffer.hasOption(args, "--dir-b")) {
+			positional = 0;
+		} else {
+			positional = Math.min(2, args.length);
+		}
+		for (int i = 0; i < args.length; i++) {
+			boolean isPath = (i < positional) && !args[i].startsWith("--");
+			if ((i > 0) && (i >= positional)) {
+				String opt = args[i - 1];
+				isPath = "--dir-a".equals(opt) || "--dir-b".equals(opt) || "--report-dir".equals(opt)
+					|| "--cache".equals(opt) || "--ignore-file".equals(opt);
+			}
+			if (isPath && !new File(args[i]).isAbsolute()) {
+				ret.set(i, new File(cwd, args[i]).getPath());
+			}
+		}
+		return ret.toArray(new String[ret.size()]);
+	}
+
+	/**
+	 * Routes System.out and System.err to the request the printing thread
+	 * works for, or where they went before outside of requests.
+	 */
+	private static synchronized void installStreams() {
+		if (!(System.out instanceof RequestPrintStream)) {
+			System.setOut(new RequestPrintStream(System.out, OUT));
+		}
+		if (!(System.err instanceof RequestPrintStream)) {
+			System.setErr(new RequestPrintStream(System.err, ERR));
+		}
+	}
+
+	/**
+	 * Writes everything as frames of one channel.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+
+		private final DataOutputStream frames;
+		private final int channel;
+
+		FrameOutputStream(DataOutputStream frames, int channel) {
+			this.frames = frames;
+			this.channel = channel;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			synchronized (frames) {
+				frames.writeByte(channel);
+				frames.writeInt(len);
+				frames.write(b, off, len);
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			synchronized (frames) {
+				frames.flush();
+			}
+		}
+	}
+}
+
+/**
+ * A PrintStream printing to the stream of the request the thread works for.
+ */
+class RequestPrintStream extends PrintStream {
+
+	RequestPrintStream(final PrintStream fallback, final ThreadLocal<PrintStream> target) {
+		super(new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				stream().write(b);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				stream().write(b, off, len);
+			}
+
+			@Override
+			public void flush() throws IOException {
+				stream().flush();
+			}
+
+			private PrintStream stream() {
+				PrintStream stream = target.get();
+				return (stream != null) ? stream : fallback;
+			}
+		});
+	}
+}
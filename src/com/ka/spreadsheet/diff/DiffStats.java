@@ -0,0 +1,259 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counters and timers of one diff of two workbooks, kept with --stats only.
+ *
+ * Loading a workbook is timed as a whole. A sheet pair counts the cells it
+ * visits, ignores and compares, its style checks and the diffs it reports,
+ * and times its row alignment, style checks and reporting within its own
+ * time. Every phase takes wall and CPU time of the thread running it. In a
+ * parallel diff a sheet pair reports into a buffer, replaying the buffers to
+ * the output is part of the total only.
+ *
+ * The same numbers go to JDK Flight Recorder as events of the "excel_cmp"
+ * category, where the JDK has it: one Load event per workbook, one Align and
+ * one SheetDiff event per sheet pair. Without --stats no DiffStats is made,
+ * and the diff only checks for null where it would count.
+ */
+public class DiffStats {
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private static final JfrEvent LOAD_EVENT = JfrEvent.create("Load", "Load Workbook",
+		new String[]{"file", "fileSize", "cpuTime"},
+		new Class<?>[]{String.class, long.class, long.class});
+	private static final JfrEvent ALIGN_EVENT = JfrEvent.create("Align", "Align Rows",
+		new String[]{"sheet"},
+		new Class<?>[]{String.class});
+	private static final JfrEvent SHEET_EVENT = JfrEvent.create("SheetDiff", "Diff Sheet",
+		new String[]{"sheet", "cellsVisited", "cellsIgnored", "valuesCompared", "styleChecks", "diffsReported",
+			"alignTime", "styleTime", "reportTime", "cpuTime"},
+		new Class<?>[]{String.class, long.class, long.class, long.class, long.class, long.class,
+			long.class, long.class, long.class, long.class});
+
+	private final File file1;
+	private final File file2;
+	private final long startWall = System.nanoTime();
+	private final List<Load> loads = new ArrayList<Load>();
+	private final List<Sheet> sheets = new ArrayList<Sheet>();
+
+	DiffStats(File file1, File file2) {
+		this.file1 = file1;
+		this.file2 = file2;
+	}
+
+	/**
+	 * Starts timing the load of file on the calling thread, finished by
+	 * {@link Load#end}.
+	 */
+	Load startLoad(File file) {
+		Load load = new Load(file);
+		synchronized (this) {
+			loads.add(load);
+		}
+		return load;
+	}
+
+	/**
+	 * Starts timing the diff of a sheet pair on the calling thread, finished
+	 * by {@link Sheet#end}. Either sheet may be null.
+	 */
+	Sheet startSheet(ISheet sheet1, ISheet sheet2) {
+		Sheet sheet = new Sheet((sheet1 != null) ? sheet1.getName() : sheet2.getName());
+		synchronized (this) {
+			sheets.add(sheet);
+		}
+		return sheet;
+	}
+
+	/**
+	 * Prints the times and counts of every phase and their totals, in one
+	 * go so that the stats of diffs running side by side do not mix.
+	 */
+	synchronized void print(PrintStream out) {
+		StringBuilder sb = new StringBuilder();
+		long wall = System.nanoTime() - startWall;
+		long cpu = 0;
+		line(sb, "----------------- STATS " + file1.getName() + " " + file2.getName() + " -------------------");
+		long fileSize = 0;
+		for (Load load : loads) {
+			line(sb, "Load " + load.file.getName() + ": " + millis(load.wall) + " ms, cpu " + millis(load.cpu)
+				+ " ms, file size " + load.fileSize + " bytes");
+			fileSize += load.fileSize;
+			cpu += load.cpu;
+		}
+		long cellsVisited = 0, cellsIgnored = 0, valuesCompared = 0, styleChecks = 0, diffsReported = 0;
+		for (Sheet sheet : sheets) {
+			line(sb, "Sheet " + sheet.name + ": " + sheet.summary());
+			cpu += sheet.cpu;
+			cellsVisited += sheet.cellsVisited;
+			cellsIgnored += sheet.cellsIgnored;
+			valuesCompared += sheet.valuesCompared;
+			styleChecks += sheet.styleChecks;
+			diffsReported += sheet.diffsReported;
+		}
+		line(sb, "Total: " + millis(wall) + " ms, cpu " + millis(cpu) + " ms, file size " + fileSize + " bytes, "
+			+ cellsVisited + " cells visited, " + cellsIgnored + " ignored, " + valuesCompared + " values compared, "
+			+ styleChecks + " style checks, " + diffsReported + " diffs reported, " + perSecond(cellsVisited, wall) + " cells/s");
+		line(sb, "-----------------------------------------");
+		out.print(sb);
+	}
+
+	private static void line(StringBuilder sb, String line) {
+		sb.append(line).append(System.getProperty("line.separator"));
+	}
+
+	static long cpuTime() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long millis(long nanos) {
+		return nanos / 1000000;
+	}
+
+	private static long perSecond(long count, long nanos) {
+		return (nanos > 0) ? (long) (count * 1e9 / nanos) : 0;
+	}
+
+	/**
+	 * The load of one workbook.
+	 */
+	static class Load {
+
+		private final File file;
+		private final long startWall = System.nanoTime();
+		private final long startCpu = cpuTime();
+		private final Object event = (LOAD_EVENT != null) ? LOAD_EVENT.begin() : null;
+		private long wall;
+		private long cpu;
+		// the size of the file, not what was read of it: the readers stream, most is read after the load
+		private long fileSize;
+
+		Load(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * Ends the load, on the thread it started on.
+		 */
+		void end() {
+			wall = System.nanoTime() - startWall;
+			cpu = cpuTime() - startCpu;
+			fileSize = file.length();
+			if (event != null) {
+				LOAD_EVENT.commit(event, file.getPath(), fileSize, cpu);
+			}
+		}
+	}
+
+	/**
+	 * The diff of one sheet pair, counted on the one thread diffing it.
+	 */
+	static class Sheet {
+
+		private final String name;
+		private final long startWall = System.nanoTime();
+		private final long startCpu = cpuTime();
+		private final Object event = (SHEET_EVENT != null) ? SHEET_EVENT.begin() : null;
+		private Object alignEvent;
+		private long alignStart;
+		private long wall;
+		private long cpu;
+
+		long cellsVisited;
+		long cellsIgnored;
+		long valuesCompared;
+		long styleChecks;
+		long diffsReported;
+		long alignTime;
+		long styleTime;
+		long reportTime;
+
+		Sheet(String name) {
+			this.name = name;
+		}
+
+		void startAlign() {
+			alignStart = System.nanoTime();
+			alignEvent = (ALIGN_EVENT != null) ? ALIGN_EVENT.begin() : null;
+		}
+
+		void endAlign() {
+			alignTime += System.nanoTime() - alignStart;
+			if (alignEvent != null) {
+				ALIGN_EVENT.commit(alignEvent, name);
+			}
+		}
+
+		/**
+		 * The callback passing reports on to diffCallback, counted and timed.
+		 */
+		SpreadSheetDiffCallback timed(final SpreadSheetDiffCallback diffCallback) {
+			return new SpreadSheetDiffCallback() {
+				@Override
+				public void reportDiffCell(CellPos c1, CellPos c2) {
+					long start = System.nanoTime();
+					diffCallback.reportDiffCell(c1, c2);
+					reported(start);
+				}
+
+				@Override
+				public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+					long start = System.nanoTime();
+					diffCallback.reportExtraCell(inFirstSpreadSheet, c);
+					reported(start);
+				}
+
+				@Override
+				public void reportExtraRow(boolean inFirstSpreadSheet, String sheetName, int rowIndex) {
+					long start = System.nanoTime();
+					diffCallback.reportExtraRow(inFirstSpreadSheet, sheetName, rowIndex);
+					reported(start);
+				}
+
+				@Override
+				public void reportStyleDiff(String diff, CellPos c1, CellPos c2) {
+					long start = System.nanoTime();
+					diffCallback.reportStyleDiff(diff, c1, c2);
+					reported(start);
+				}
+
+				@Override
+				public void reportWorkbooksDiffer(boolean differ, File file1, File file2) {
+					diffCallback.reportWorkbooksDiffer(differ, file1, file2);
+				}
+			};
+		}
+
+		private void reported(long start) {
+			reportTime += System.nanoTime() - start;
+			diffsReported++;
+		}
+
+		/**
+		 * Ends the diff of the pair, on the thread it started on.
+		 */
+		void end() {
+			wall = System.nanoTime() - startWall;
+			cpu = cpuTime() - startCpu;
+			if (event != null) {
+				SHEET_EVENT.commit(event, name, cellsVisited, cellsIgnored, valuesCompared, styleChecks, diffsReported,
+					alignTime, styleTime, reportTime, cpu);
+			}
+		}
+
+		private String summary() {
+			return millis(wall) + " ms, cpu " + millis(cpu) + " ms (align " + millis(alignTime) + " ms, styles "
+				+ millis(styleTime) + " ms, report " + millis(reportTime) + " ms), "
+				+ cellsVisited + " cells visited, " + cellsIgnored + " ignored, " + valuesCompared + " values compared, "
+				+ styleChecks + " style checks, " + diffsReported + " diffs reported, " + perSecond(cellsVisited, wall) + " cells/s";
+		}
+	}
+}
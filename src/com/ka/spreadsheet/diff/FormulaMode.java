@@ -0,0 +1,31 @@
+package com.ka.spreadsheet.diff;
+
+/**
+ * What a formula cell is compared by.
+ */
+public enum FormulaMode {
+
+	/**
+	 * The text of the formula, the default
+	 */
+	TEXT,
+
+	/**
+	 * The result cached in the file when it was last saved, --values
+	 */
+	VALUES,
+
+	/**
+	 * The result computed again with POI's FormulaEvaluator, --evaluate. ods
+	 * files are not evaluated, their cached results are compared
+	 */
+	EVALUATE;
+
+	/**
+	 * The suffix of the snapshots of workbooks read in this mode, which hold
+	 * other values than those of the default mode.
+	 */
+	String snapshotSuffix() {
+		return (this == TEXT) ? "" : "." + name().toLowerCase();
+	}
+}
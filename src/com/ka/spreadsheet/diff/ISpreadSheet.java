@@ -4,6 +4,7 @@ import org.apache.poi.ss.usermodel.Color;
 import org.apache.poi.ss.usermodel.Workbook;
 
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * All indexes are zero based
@@ -13,6 +14,16 @@ public interface ISpreadSheet {
 	Iterator<ISheet> getSheetIterator();
 
     IFont getFont(short index);
+
+    /**
+     * Style at index, as given by {@link ICell#getStyleIndex()}; null if the workbook has no styles
+     */
+    ICellStyle getCellStyleAt(int index);
+
+    /**
+     * Releases the file the workbook is read from, its sheets are not read any more
+     */
+    void close();
 }
 
 interface ISheet {
@@ -22,6 +33,22 @@ interface ISheet {
 	int getSheetIndex();
 	
 	Iterator<IRow> getRowIterator();
+
+	/**
+	 * Cursor over the cells of the sheet, in row / column order
+	 */
+	ICellCursor getCellCursor();
+
+	/**
+	 * Hands every cell to visitor, in row / column order, until visitor returns false
+	 */
+	void forEachCell(CellVisitor visitor);
+
+	/**
+	 * Names of the zip entries the cells of the sheet are read from, null if
+	 * not known, as for workbooks which are no zip
+	 */
+	List<String> getPartNames();
 }
 
 interface IRow {
@@ -39,7 +66,75 @@ interface ICell {
 
     ICellStyle getCellStyle();
 
+    /**
+     * Index of the cell style in its workbook, -1 if the workbook has no styles
+     */
+    int getStyleIndex();
+
 	String getStringValue();
+
+	CellValueKind getValueKind();
+
+	/**
+	 * Value of a NUMERIC cell
+	 */
+	double getNumericValue();
+
+	/**
+	 * Value of a BOOLEAN cell
+	 */
+	boolean getBooleanValue();
+}
+
+/**
+ * What a cell holds. Formulas (by their text), errors and blanks are STRING
+ */
+enum CellValueKind {
+	NUMERIC, BOOLEAN, STRING;
+
+	/**
+	 * The string value of a cell of this kind, booleans given as 1 / 0
+	 */
+	String format(double number, String string) {
+		switch (this) {
+		case NUMERIC:
+			return String.valueOf(number);
+		case BOOLEAN:
+			return String.valueOf(number != 0);
+		default:
+			return string;
+		}
+	}
+}
+
+/**
+ * Moves over the cells of a sheet and is itself the current cell: the same
+ * object stands for every cell, so keep a {@link #snapshot()} instead
+ */
+interface ICellCursor extends ICell {
+
+	/**
+	 * Moves to the next cell, false if there is none left
+	 */
+	boolean next();
+
+	/**
+	 * The current cell as an object of its own
+	 */
+	ICell snapshot();
+
+	/**
+	 * Releases the sheet, needed only if the cursor is not run to the end
+	 */
+	void close();
+}
+
+interface CellVisitor {
+
+	/**
+	 * Returns false to stop the walk
+	 */
+	boolean visitCell(ICellCursor cell);
 }
 
 interface ICellStyle {
@@ -0,0 +1,160 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.Arrays;
+
+/**
+ * Set of row or column indexes seen in diffs, with a count per index.
+ *
+ * Membership is a bitmap split into pages of 4096 indexes, counts are an
+ * int array per page; a page is allocated when an index in it is first
+ * added, so sparse sets stay small. The order in which indexes were first
+ * added is kept as runs of consecutive indexes: cells are reported row by
+ * row, so the rows of a sheet make one run per block of differing rows.
+ */
+public class IndexSet {
+
+	private static final int PAGE_SHIFT = 12;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	private long[][] bits = new long[0][];
+	private int[][] counts = new int[0][];
+	private int size;
+
+	// first and last index of each run, in order of addition
+	private int[] runs = new int[8];
+	private int runCount;
+
+	/**
+	 * Adds index, counting it once more if it is already in the set.
+	 */
+	public void add(int index) {
+		if (index < 0) {
+			throw new IllegalArgumentException("Negative index " + index);
+		}
+		int page = index >>> PAGE_SHIFT;
+		if (page >= bits.length) {
+			int length = Math.max(page + 1, bits.length * 2);
+			bits = Arrays.copyOf(bits, length);
+			counts = Arrays.copyOf(counts, length);
+		}
+		if (bits[page] == null) {
+			bits[page] = new long[PAGE_SIZE >>> 6];
+			counts[page] = new int[PAGE_SIZE];
+		}
+		int offset = index & PAGE_MASK;
+		counts[page][offset]++;
+		long bit = 1L << offset;
+		if ((bits[page][offset >>> 6] & bit) == 0) {
+			bits[page][offset >>> 6] |= bit;
+			size++;
+			addToRuns(index);
+		}
+	}
+
+	private void addToRuns(int index) {
+		if ((runCount > 0) && (runs[2 * runCount - 1] == index - 1)) {
+			runs[2 * runCount - 1] = index;
+			return;
+		}
+		if (2 * runCount == runs.length) {
+			runs = Arrays.copyOf(runs, runs.length * 2);
+		}
+		runs[2 * runCount] = index;
+		runs[2 * runCount + 1] = index;
+		runCount++;
+	}
+
+	public boolean contains(int index) {
+		int page = index >>> PAGE_SHIFT;
+		if ((index < 0) || (page >= bits.length) || (bits[page] == null)) {
+			return false;
+		}
+		int offset = index & PAGE_MASK;
+		return (bits[page][offset >>> 6] & (1L << offset)) != 0;
+	}
+
+	/**
+	 * How many times index was added.
+	 */
+	public int count(int index) {
+		return contains(index) ? counts[index >>> PAGE_SHIFT][index & PAGE_MASK] : 0;
+	}
+
+	/**
+	 * How many times the indexes from start to end, both included, were added.
+	 */
+	public long count(int start, int end) {
+		long total = 0;
+		for (int i = nextSetIndex(start); (i >= 0) && (i <= end); i = nextSetIndex(i + 1)) {
+			total += counts[i >>> PAGE_SHIFT][i & PAGE_MASK];
+		}
+		return total;
+	}
+
+	/**
+	 * Number of distinct indexes.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Number of runs of consecutive indexes, in order of first addition.
+	 */
+	public int runCount() {
+		return runCount;
+	}
+
+	public int runStart(int run) {
+		return runs[2 * run];
+	}
+
+	public int runEnd(int run) {
+		return runs[2 * run + 1];
+	}
+
+	/**
+	 * Smallest index in the set that is not smaller than from, or -1.
+	 */
+	public int nextSetIndex(int from) {
+		if (from < 0) {
+			from = 0;
+		}
+		for (int page = from >>> PAGE_SHIFT; page < bits.length; page++) {
+			long[] words = bits[page];
+			if (words == null) {
+				from = (page + 1) << PAGE_SHIFT;
+				continue;
+			}
+			int word = (from & PAGE_MASK) >>> 6;
+			long w = words[word] & (-1L << (from & 63));
+			while (true) {
+				if (w != 0) {
+					return (page << PAGE_SHIFT) + (word << 6) + Long.numberOfTrailingZeros(w);
+				}
+				if (++word == words.length) {
+					break;
+				}
+				w = words[word];
+			}
+			from = (page + 1) << PAGE_SHIFT;
+		}
+		return -1;
+	}
+
+	/**
+	 * Smallest index not smaller than from which is not in the set.
+	 */
+	public int nextClearIndex(int from) {
+		while (contains(from)) {
+			int offset = from & PAGE_MASK;
+			long w = ~bits[from >>> PAGE_SHIFT][offset >>> 6] & (-1L << (offset & 63));
+			if (w != 0) {
+				return (from & ~63) + Long.numberOfTrailingZeros(w);
+			}
+			from = (from | 63) + 1;
+		}
+		return from;
+	}
+}
@@ -0,0 +1,117 @@
+package com.ka.spreadsheet.diff;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A custom JDK Flight Recorder event type, made at run time with
+ * jdk.jfr.EventFactory.
+ *
+ * The build targets JDKs without jdk.jfr, so the JFR API is only reached by
+ * reflection. Where it is missing, or the event cannot be made, the event is
+ * never begun and nothing is recorded. Events are named
+ * com.ka.spreadsheet.diff.&lt;name&gt; and filed under the "excel_cmp"
+ * category, their fields are set by index in the order they are declared.
+ * Fields named ...Time are timespans in nanoseconds, fields named ...Size
+ * are amounts of bytes.
+ */
+class JfrEvent {
+
+	private static final Object[] NO_ARGS = new Object[0];
+
+	private final Object factory;
+	private final Method newEvent;
+	private final Method begin;
+	private final Method end;
+	private final Method set;
+	private final Method shouldCommit;
+	private final Method commit;
+
+	private JfrEvent(Object factory) throws Exception {
+		Class<?> eventClass = Class.forName("jdk.jfr.Event");
+		this.factory = factory;
+		this.newEvent = factory.getClass().getMethod("newEvent");
+		this.begin = eventClass.getMethod("begin");
+		this.end = eventClass.getMethod("end");
+		this.set = eventClass.getMethod("set", int.class, Object.class);
+		this.shouldCommit = eventClass.getMethod("shouldCommit");
+		this.commit = eventClass.getMethod("commit");
+	}
+
+	/**
+	 * The event type with the given fields, names and types alike, or null
+	 * if JFR is not there.
+	 */
+	static JfrEvent create(String name, String label, String[] fieldNames, Class<?>[] fieldTypes) {
+		try {
+			Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+			Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+			Constructor<?> newAnnotation = annotationElement.getConstructor(Class.class, Object.class);
+			Constructor<?> newField = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Name"), "com.ka.spreadsheet.diff." + name));
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+			Object category = Array.newInstance(String.class, 1);
+			Array.set(category, 0, "excel_cmp");
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Category"), category));
+			// the stack would only show the reflective call of commit
+			annotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.StackTrace"), Boolean.FALSE));
+			List<Object> fields = new ArrayList<Object>();
+			for (int i = 0; i < fieldNames.length; i++) {
+				List<Object> fieldAnnotations = new ArrayList<Object>();
+				if (fieldNames[i].endsWith("Time")) {
+					fieldAnnotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.Timespan"), "NANOSECONDS"));
+				} else if (fieldNames[i].endsWith("Size")) {
+					fieldAnnotations.add(newAnnotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES"));
+				}
+				fields.add(newField.newInstance(fieldTypes[i], fieldNames[i], fieldAnnotations));
+			}
+			Object factory = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class)
+				.invoke(null, annotations, fields);
+			return new JfrEvent(factory);
+		} catch (Exception e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Starts an event of this type, returns null if it is not recorded.
+	 */
+	Object begin() {
+		try {
+			Object event = newEvent.invoke(factory, NO_ARGS);
+			begin.invoke(event, NO_ARGS);
+			return event;
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Ends event with the values of its fields and commits it if the
+	 * recording wants it.
+	 */
+	void commit(Object event, Object... values) {
+		if (event == null) {
+			return;
+		}
+		try {
+			end.invoke(event, NO_ARGS);
+			if (!((Boolean) shouldCommit.invoke(event, NO_ARGS)).booleanValue()) {
+				return;
+			}
+			for (int i = 0; i < values.length; i++) {
+				set.invoke(event, Integer.valueOf(i), values[i]);
+			}
+			commit.invoke(event, NO_ARGS);
+		} catch (Exception e) {
+			// a failing event is not worth failing the diff
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes one JSON object per line and event, in UTF-8:
+ *
+ * <pre>
+ * {"kind":"diff","sheet":"Sheet1","row":3,"col":"C","value1":"c3","value2":"x"}
+ * {"kind":"extra1","sheet":"Sheet1","row":2,"col":"B","value1":"b2"}
+ * {"kind":"style","sheet":"Sheet1","row":4,"col":"A","value1":"a4","value2":"a4","style":"..."}
+ * {"kind":"extrarow2","sheet":"Sheet1","row":5}
+ * {"kind":"differ","value1":"1.xlsx","value2":"2.xlsx"}
+ * </pre>
+ *
+ * Extra cells of the second workbook have kind extra2 and only value2.
+ * Whole extra rows (extrarow1, extrarow2) are only found with rows aligned,
+ * cells of aligned rows at different indexes then carry row2. The last
+ * line is differ or match, with the file names. Rows are numbered from
+ * 1, columns are letters, as everywhere else. Nothing is kept per event.
+ */
+public class JsonLinesSpreadSheetDiffCallback extends ReportSpreadSheetDiffCallback {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    public JsonLinesSpreadSheetDiffCallback() {
+        this(System.out, false);
+    }
+
+    public JsonLinesSpreadSheetDiffCallback(OutputStream stream, boolean gzip) {
+        super(stream, gzip, UTF_8);
+    }
+
+    public JsonLinesSpreadSheetDiffCallback(WritableByteChannel channel) {
+        super(channel, UTF_8);
+    }
+
+    @Override
+    public void reportDiffCell(CellPos c1, CellPos c2) {
+        writeRecord("diff", c1, c2, c1.getStringValue(), c2.getStringValue(), null);
+    }
+
+    @Override
+    public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+        if (inFirstSpreadSheet) {
+            writeRecord("extra1", c, null, c.getStringValue(), null, null);
+        } else {
+            writeRecord("extra2", c, null, null, c.getStringValue(), null);
+        }
+    }
+
+    @Override
+    public void reportExtraRow(boolean inFirstSpreadSheet, String sheetName, int rowIndex) {
+        out.append("{\"kind\":\"").append(inFirstSpreadSheet ? "extrarow1" : "extrarow2").append('"');
+        appendField("sheet", sheetName);
+        out.append(",\"row\":").append(SpreadSheetUtils.ROW_INTERNAL_TO_USER(rowIndex));
+        out.append('}').append('\n');
+    }
+
+    @Override
+    public void reportStyleDiff(String diff, CellPos c1, CellPos c2) {
+        writeRecord("style", c1, c2, c1.getStringValue(), c2.getStringValue(), diff);
+    }
+
+    @Override
+    public void reportWorkbooksDiffer(boolean differ, File file1, File file2) {
+        out.append("{\"kind\":\"").append(differ ? "differ" : "match").append('"');
+        appendField("value1", String.valueOf(file1));
+        appendField("value2", String.valueOf(file2));
+        out.append('}').append('\n');
+        flush();
+    }
+
+    private void writeRecord(String kind, CellPos c, CellPos c2, String value1, String value2, String style) {
+        ICell cell = c.getCell();
+        out.append("{\"kind\":\"").append(kind).append('"');
+        appendField("sheet", c.getSheetName());
+        out.append(",\"row\":").append(SpreadSheetUtils.ROW_INTERNAL_TO_USER(cell.getRowIndex()));
+        out.append(",\"col\":\"").appendColumn(cell.getColumnIndex()).append('"');
+        appendField("value1", value1);
+        appendField("value2", value2);
+        appendField("style", style);
+        if ((c2 != null) && (c2.getCell().getRowIndex() != cell.getRowIndex())) {
+            out.append(",\"row2\":").append(SpreadSheetUtils.ROW_INTERNAL_TO_USER(c2.getCell().getRowIndex()));
+        }
+        out.append('}').append('\n');
+    }
+
+    private void appendField(String name, String value) {
+        if (value == null) {
+            return;
+        }
+        out.append(",\"").append(name).append("\":\"");
+        int start = 0;
+        int len = value.length();
+        for (int i = 0; i < len; i++) {
+            char ch = value.charAt(i);
+            if ((ch >= 0x20) && (ch != '"') && (ch != '\\')) {
+                continue;
+            }
+            out.append(value, start, i).append('\\');
+            switch (ch) {
+            case '"': out.append('"'); break;
+            case '\\': out.append('\\'); break;
+            case '\n': out.append('n'); break;
+            case '\r': out.append('r'); break;
+            case '\t': out.append('t'); break;
+            default:
+                out.append("u00").append(HEX[ch >> 4]).append(HEX[ch & 0xF]);
+            }
+            start = i + 1;
+        }
+        out.append(value, start, len).append('"');
+    }
+}
@@ -0,0 +1,897 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Diffs two sheets whose rows are matched by the values in their key
+ * columns ({@link RowKeys}) instead of by index, as for database exports
+ * sorted differently.
+ *
+ * This is a hash join: the rows of sheet2 are put in a table by key, then
+ * the rows of sheet1 are looked up in it, in order. Rows with the same key
+ * are matched in the order they come in. Matched rows are diffed column by
+ * column, rows without a partner are reported as extra rows.
+ *
+ * Once the rows of sheet2 take more than the memory budget, the join goes
+ * to disk as a grace hash join: rows are written to {@link #PARTITIONS}
+ * temp files by the hash of their key, for both sheets, and the partitions
+ * are joined one at a time. A Bloom filter of the keys of sheet2 finds the
+ * rows of sheet1 without a partner before they are written. The joined
+ * partitions are merged back by row, so the report is the same either way:
+ * the rows of sheet1 in order, then the rows extra in sheet2.
+ *
+ * A partition whose rows of sheet2 take more than the budget too, as keys
+ * are skewed, is split again by the next bits of the hash. One holding a
+ * single key, like the empty key of many rows with blank key cells, needs
+ * no table: its rows are matched in order, so both sides are streamed side
+ * by side.
+ */
+public class KeyedSheetDiffer {
+
+	static final int PARTITION_BITS = 6;
+	static final int PARTITIONS = 1 << PARTITION_BITS;
+	// partitions split as often as the bits of the hash allow
+	static final int MAX_DEPTH = 64 / PARTITION_BITS - 1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final CellValueKind[] KINDS = CellValueKind.values();
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final ISheet sheet1;
+	private final ISheet sheet2;
+	private final SheetIgnores ignores1;
+	private final SheetIgnores ignores2;
+	private final RowKeys keys;
+	private final ValueComparator values;
+	private final StyleEquivalence styles;
+	private final DiffStats.Sheet stats;
+	private final DiffLimit limit;
+	private final SpreadSheetDiffCallback diffCallback;
+
+	// rows of sheet2 in memory, by key and in order
+	private final Map<String,KeyedRow> table = new HashMap<String,KeyedRow>();
+	private final List<KeyedRow> rows2 = new ArrayList<KeyedRow>();
+	private long tableSize;
+
+	// set once the join goes to disk
+	private File[] buildFiles;
+	private DataOutputStream[] buildParts;
+	private long[] keyHashes;
+	private int numKeys;
+	private BloomFilter bloom;
+	private final List<File> tempFiles = new ArrayList<File>();
+
+	private final RowCell cell1 = new RowCell();
+	private final RowCell cell2 = new RowCell();
+	private boolean isDiff;
+
+	/**
+	 * Both sheets must be there, and not wholly ignored. With stats, the
+	 * build of the table is timed as the alignment and cells are counted.
+	 * With a limit, which diffCallback must be limited by, the rows are
+	 * matched only until it is reached; the table is always built in full.
+	 */
+	public KeyedSheetDiffer(ISheet sheet1, ISheet sheet2, SheetIgnores ignores1, SheetIgnores ignores2,
+			RowKeys keys, ValueComparator values, StyleEquivalence styles, DiffStats.Sheet stats,
+			DiffLimit limit, SpreadSheetDiffCallback diffCallback) {
+		this.sheet1 = sheet1;
+		this.sheet2 = sheet2;
+		this.ignores1 = ignores1;
+		this.ignores2 = ignores2;
+		this.keys = keys;
+		this.values = values;
+		this.styles = styles;
+		this.stats = stats;
+		this.limit = limit;
+		this.diffCallback = diffCallback;
+	}
+
+	/**
+	 * Reports all differences to the callback, returns true if there was any.
+	 */
+	public boolean diff() {
+		try {
+			if (stats != null) {
+				stats.startAlign();
+			}
+			build();
+			if (stats != null) {
+				stats.endAlign();
+			}
+			if (buildParts == null) {
+				probe();
+			} else {
+				probeSpilled();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to spill rows of sheet " + sheet1.getName(), e);
+		} finally {
+			for (File file : tempFiles) {
+				file.delete();
+			}
+		}
+		return isDiff;
+	}
+
+	private void build() throws IOException {
+		RowReader reader = new RowReader(ignores2) {
+			@Override
+			void add(KeyedRow row) throws IOException {
+				addBuildRow(row);
+			}
+		};
+		sheet2.forEachCell(reader);
+		reader.endRow();
+		if (buildParts != null) {
+			closeParts(buildParts);
+			bloom = new BloomFilter(numKeys);
+			for (int i = 0; i < numKeys; i++) {
+				bloom.add(keyHashes[i]);
+			}
+			keyHashes = null;
+		}
+	}
+
+	private void addBuildRow(KeyedRow row) throws IOException {
+		if (buildParts == null) {
+			put(row);
+			rows2.add(row);
+			tableSize += row.size();
+			if (tableSize > keys.memoryBudget()) {
+				spill();
+			}
+		} else {
+			addKeyHash(row.hash);
+			writeRow(buildParts[partition(row.hash, 0)], row);
+		}
+	}
+
+	/**
+	 * Moves the rows of sheet2 read so far to the partitions, the ones to
+	 * come go there straight away.
+	 */
+	private void spill() throws IOException {
+		buildFiles = newTempFiles(PARTITIONS);
+		buildParts = openParts(buildFiles);
+		keyHashes = new long[Math.max(1024, 2 * rows2.size())];
+		for (KeyedRow row : rows2) {
+			addKeyHash(row.hash);
+			writeRow(buildParts[partition(row.hash, 0)], row);
+		}
+		table.clear();
+		rows2.clear();
+		tableSize = 0;
+	}
+
+	private void addKeyHash(long hash) {
+		if (numKeys == keyHashes.length) {
+			keyHashes = Arrays.copyOf(keyHashes, 2 * numKeys);
+		}
+		keyHashes[numKeys++] = hash;
+	}
+
+	/**
+	 * Looks up the rows of sheet1 in the table in memory.
+	 */
+	private void probe() {
+		RowReader reader = new RowReader(ignores1) {
+			@Override
+			void add(KeyedRow row) {
+				KeyedRow partner = take(row.key);
+				if (partner == null) {
+					reportExtraRow(true, row.row);
+				} else {
+					diffRows(row, partner);
+				}
+			}
+		};
+		sheet1.forEachCell(reader);
+		reader.endRow();
+		reportUnmatchedRows2();
+	}
+
+	private void reportUnmatchedRows2() {
+		for (KeyedRow row : rows2) {
+			if (isLimitReached()) {
+				break;
+			}
+			if (!row.matched) {
+				reportExtraRow(false, row.row);
+			}
+		}
+	}
+
+	/**
+	 * Partitions the rows of sheet1 like those of sheet2, joins partition by
+	 * partition and merges the results by row.
+	 */
+	private void probeSpilled() throws IOException {
+		File[] probeFiles = newTempFiles(PARTITIONS);
+		final DataOutputStream[] probeParts = openParts(probeFiles);
+		File unmatchedFile = newTempFiles(1)[0];
+		final DataOutputStream unmatched = openOut(unmatchedFile);
+		try {
+			RowReader reader = new RowReader(ignores1) {
+				@Override
+				void add(KeyedRow row) throws IOException {
+					if (bloom.mightContain(row.hash)) {
+						writeRow(probeParts[partition(row.hash, 0)], row);
+					} else {
+						writeJoined(unmatched, row, null);
+					}
+				}
+			};
+			sheet1.forEachCell(reader);
+			reader.endRow();
+		} finally {
+			closeParts(probeParts);
+			unmatched.writeInt(-1);
+			unmatched.close();
+		}
+		bloom = null;
+
+		List<File> joined = new ArrayList<File>();
+		List<File> extra = new ArrayList<File>();
+		joinPartitions(buildFiles, probeFiles, 0, joined, extra);
+		joined.add(unmatchedFile);
+		merge(joined, true);
+		merge(extra, false);
+	}
+
+	/**
+	 * Joins the partitions of one split, adding the files of joined rows of
+	 * sheet1 and of extra rows of sheet2, each sorted by row, to joined and
+	 * extra.
+	 */
+	private void joinPartitions(File[] buildFiles, File[] probeFiles, int depth, List<File> joined, List<File> extra)
+			throws IOException {
+		for (int p = 0; p < PARTITIONS; p++) {
+			joinPartition(buildFiles[p], probeFiles[p], depth, joined, extra);
+			buildFiles[p].delete();
+			probeFiles[p].delete();
+		}
+	}
+
+	private void joinPartition(File buildFile, File probeFile, int depth, List<File> joined, List<File> extra)
+			throws IOException {
+		// past the last split the rows are kept whatever they take, their keys share all 64 bits of hash
+		boolean budgeted = depth < MAX_DEPTH;
+		boolean fits = true;
+		String firstKey = null;
+		boolean oneKey = true;
+		DataInputStream in = openIn(buildFile);
+		try {
+			KeyedRow row;
+			while ((row = readRow(in)) != null) {
+				if (firstKey == null) {
+					firstKey = row.key;
+				} else if (!firstKey.equals(row.key)) {
+					oneKey = false;
+				}
+				if (fits) {
+					put(row);
+					rows2.add(row);
+					tableSize += row.size();
+					if (budgeted && (tableSize > keys.memoryBudget())) {
+						fits = false;
+						table.clear();
+						rows2.clear();
+						tableSize = 0;
+					}
+				} else if (!oneKey) {
+					break;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (!fits) {
+			if (oneKey) {
+				zipPartition(buildFile, probeFile, firstKey, joined, extra);
+			} else {
+				splitPartition(buildFile, probeFile, depth + 1, joined, extra);
+			}
+			return;
+		}
+
+		File joinedFile = newTempFiles(1)[0];
+		File extraFile = newTempFiles(1)[0];
+		joined.add(joinedFile);
+		extra.add(extraFile);
+		in = openIn(probeFile);
+		DataOutputStream out = openOut(joinedFile);
+		try {
+			KeyedRow row;
+			while ((row = readRow(in)) != null) {
+				writeJoined(out, row, take(row.key));
+			}
+			out.writeInt(-1);
+		} finally {
+			in.close();
+			out.close();
+		}
+		out = openOut(extraFile);
+		try {
+			for (KeyedRow row2 : rows2) {
+				if (!row2.matched) {
+					out.writeInt(row2.row);
+				}
+			}
+			out.writeInt(-1);
+		} finally {
+			out.close();
+		}
+		table.clear();
+		rows2.clear();
+		tableSize = 0;
+	}
+
+	/**
+	 * Splits a partition over the budget by the hash bits of depth, and joins
+	 * the parts.
+	 */
+	private void splitPartition(File buildFile, File probeFile, int depth, List<File> joined, List<File> extra)
+			throws IOException {
+		File[] buildFiles = newTempFiles(PARTITIONS);
+		File[] probeFiles = newTempFiles(PARTITIONS);
+		copyPartitioned(buildFile, buildFiles, depth);
+		copyPartitioned(probeFile, probeFiles, depth);
+		joinPartitions(buildFiles, probeFiles, depth, joined, extra);
+	}
+
+	private void copyPartitioned(File file, File[] parts, int depth) throws IOException {
+		DataOutputStream[] outs = openParts(parts);
+		DataInputStream in = openIn(file);
+		try {
+			KeyedRow row;
+			while ((row = readRow(in)) != null) {
+				writeRow(outs[partition(row.hash, depth)], row);
+			}
+		} finally {
+			in.close();
+			closeParts(outs);
+		}
+	}
+
+	/**
+	 * Joins a partition whose rows of sheet2 all have key: rows of sheet1
+	 * with it are matched with them in order, as the table would, without
+	 * holding any.
+	 */
+	private void zipPartition(File buildFile, File probeFile, String key, List<File> joined, List<File> extra)
+			throws IOException {
+		File joinedFile = newTempFiles(1)[0];
+		File extraFile = newTempFiles(1)[0];
+		joined.add(joinedFile);
+		extra.add(extraFile);
+		DataInputStream build = openIn(buildFile);
+		DataInputStream probe = openIn(probeFile);
+		DataOutputStream out = openOut(joinedFile);
+		try {
+			KeyedRow row2 = readRow(build);
+			KeyedRow row1;
+			while ((row1 = readRow(probe)) != null) {
+				if ((row2 != null) && key.equals(row1.key)) {
+					writeJoined(out, row1, row2);
+					row2 = readRow(build);
+				} else {
+					writeJoined(out, row1, null);
+				}
+			}
+			out.writeInt(-1);
+			out.close();
+			out = openOut(extraFile);
+			for (; row2 != null; row2 = readRow(build)) {
+				out.writeInt(row2.row);
+			}
+			out.writeInt(-1);
+		} finally {
+			build.close();
+			probe.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Merges streams of records sorted by row: joined rows of sheet1 or extra
+	 * rows of sheet2.
+	 */
+	private void merge(List<File> files, boolean joined) throws IOException {
+		PriorityQueue<RowStream> streams = new PriorityQueue<RowStream>();
+		try {
+			for (File file : files) {
+				RowStream stream = new RowStream(openIn(file));
+				if (stream.next()) {
+					streams.add(stream);
+				} else {
+					stream.in.close();
+				}
+			}
+			while (!streams.isEmpty() && !isLimitReached()) {
+				RowStream stream = streams.poll();
+				if (!joined) {
+					reportExtraRow(false, stream.row);
+				} else if (stream.in.readBoolean()) {
+					diffRows(readRow(stream.in), readRow(stream.in));
+				} else {
+					reportExtraRow(true, stream.row);
+				}
+				if (stream.next()) {
+					streams.add(stream);
+				} else {
+					stream.in.close();
+				}
+			}
+		} finally {
+			for (RowStream stream : streams) {
+				stream.in.close();
+			}
+		}
+	}
+
+	private void put(KeyedRow row) {
+		KeyedRow first = table.get(row.key);
+		if (first == null) {
+			table.put(row.key, row);
+			row.last = row;
+		} else {
+			first.last.next = row;
+			first.last = row;
+		}
+	}
+
+	/**
+	 * The first row of sheet2 with key not matched yet, null if none.
+	 */
+	private KeyedRow take(String key) {
+		KeyedRow first = table.get(key);
+		if (first == null) {
+			return null;
+		}
+		if (first.next == null) {
+			table.remove(key);
+		} else {
+			first.next.last = first.last;
+			table.put(key, first.next);
+		}
+		first.matched = true;
+		return first;
+	}
+
+	/**
+	 * Diffs the cells of matched rows by column.
+	 */
+	private void diffRows(KeyedRow row1, KeyedRow row2) {
+		int i = 0, j = 0;
+		int n1 = row1.cols.length, n2 = row2.cols.length;
+		while (((i < n1) || (j < n2)) && !isLimitReached()) {
+			int c = (i == n1) ? 1 : ((j == n2) ? -1 : row1.cols[i] - row2.cols[j]);
+			if (c < 0) {
+				isDiff = true;
+				diffCallback.reportExtraCell(true, new CellPos(sheet1, cell1.set(row1, i++).snapshot()));
+			} else if (c > 0) {
+				isDiff = true;
+				diffCallback.reportExtraCell(false, new CellPos(sheet2, cell2.set(row2, j++).snapshot()));
+			} else {
+				cell1.set(row1, i++);
+				cell2.set(row2, j++);
+				if (stats != null) {
+					stats.valuesCompared++;
+				}
+				if (!values.equal(cell1, cell2)) {
+					isDiff = true;
+					diffCallback.reportDiffCell(new CellPos(sheet1, cell1.snapshot()), new CellPos(sheet2, cell2.snapshot()));
+				} else if (styles != null) {
+					String styleDiff = diffStyles();
+					if (styleDiff != null) {
+						isDiff = true;
+						diffCallback.reportStyleDiff(styleDiff, new CellPos(sheet1, cell1.snapshot()), new CellPos(sheet2, cell2.snapshot()));
+					}
+				}
+			}
+		}
+	}
+
+	private boolean isLimitReached() {
+		return (limit != null) && limit.isReached();
+	}
+
+	private String diffStyles() {
+		if (stats == null) {
+			return styles.diff(sheet1, cell1, sheet2, cell2);
+		}
+		long start = System.nanoTime();
+		String styleDiff = styles.diff(sheet1, cell1, sheet2, cell2);
+		stats.styleTime += System.nanoTime() - start;
+		stats.styleChecks++;
+		return styleDiff;
+	}
+
+	private void reportExtraRow(boolean inFirstSpreadSheet, int row) {
+		isDiff = true;
+		diffCallback.reportExtraRow(inFirstSpreadSheet, (inFirstSpreadSheet ? sheet1 : sheet2).getName(), row);
+	}
+
+	/**
+	 * The partition of hash in a split of depth, 0 for the first one: the
+	 * split takes the next PARTITION_BITS bits from the top.
+	 */
+	private static int partition(long hash, int depth) {
+		return (int) ((hash >>> (64 - PARTITION_BITS * (depth + 1))) & (PARTITIONS - 1));
+	}
+
+	private File[] newTempFiles(int n) throws IOException {
+		File[] files = new File[n];
+		for (int i = 0; i < n; i++) {
+			files[i] = File.createTempFile("excel_cmp", ".tmp");
+			tempFiles.add(files[i]);
+		}
+		return files;
+	}
+
+	private static DataOutputStream[] openParts(File[] files) throws IOException {
+		DataOutputStream[] parts = new DataOutputStream[files.length];
+		for (int i = 0; i < files.length; i++) {
+			parts[i] = openOut(files[i]);
+		}
+		return parts;
+	}
+
+	/**
+	 * Ends and closes every partition.
+	 */
+	private static void closeParts(DataOutputStream[] parts) throws IOException {
+		for (DataOutputStream part : parts) {
+			part.writeInt(-1);
+			part.close();
+		}
+	}
+
+	private static DataOutputStream openOut(File file) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 15));
+	}
+
+	private static DataInputStream openIn(File file) throws IOException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 15));
+	}
+
+	/**
+	 * A row of sheet1 and its partner, which may be null; only the index of
+	 * a row without partner is kept.
+	 */
+	private static void writeJoined(DataOutputStream out, KeyedRow row1, KeyedRow row2) throws IOException {
+		out.writeInt(row1.row);
+		out.writeBoolean(row2 != null);
+		if (row2 != null) {
+			writeRow(out, row1);
+			writeRow(out, row2);
+		}
+	}
+
+	private static void writeRow(DataOutputStream out, KeyedRow row) throws IOException {
+		out.writeInt(row.row);
+		out.writeInt(row.cols.length);
+		for (int i = 0; i < row.cols.length; i++) {
+			out.writeInt(row.cols[i]);
+			out.writeInt(row.styles[i]);
+			out.writeByte(row.kinds[i]);
+			if (KINDS[row.kinds[i]] == CellValueKind.STRING) {
+				byte[] bytes = String.valueOf(row.strings[i]).getBytes(UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			} else {
+				out.writeDouble(row.numbers[i]);
+			}
+		}
+	}
+
+	/**
+	 * Reads a row written by writeRow, null at the end mark.
+	 */
+	private KeyedRow readRow(DataInputStream in) throws IOException {
+		int row = in.readInt();
+		if (row < 0) {
+			return null;
+		}
+		int size = in.readInt();
+		int[] cols = new int[size];
+		int[] styles = new int[size];
+		byte[] kinds = new byte[size];
+		double[] numbers = new double[size];
+		String[] strings = new String[size];
+		for (int i = 0; i < size; i++) {
+			cols[i] = in.readInt();
+			styles[i] = in.readInt();
+			kinds[i] = in.readByte();
+			if (KINDS[kinds[i]] == CellValueKind.STRING) {
+				byte[] bytes = new byte[in.readInt()];
+				in.readFully(bytes);
+				strings[i] = new String(bytes, UTF_8);
+			} else {
+				numbers[i] = in.readDouble();
+			}
+		}
+		return new KeyedRow(row, cols, styles, kinds, numbers, strings, keys);
+	}
+
+	/**
+	 * Collects the cells of a sheet row by row, skipping ignored cells.
+	 */
+	private abstract class RowReader implements CellVisitor {
+
+		private final SheetIgnores ignores;
+		private int row = -1;
+		private int size;
+		private int[] cols = new int[16];
+		private int[] styles = new int[16];
+		private byte[] kinds = new byte[16];
+		private double[] numbers = new double[16];
+		private String[] strings = new String[16];
+
+		RowReader(SheetIgnores ignores) {
+			this.ignores = ignores;
+		}
+
+		abstract void add(KeyedRow row) throws IOException;
+
+		@Override
+		public boolean visitCell(ICellCursor cell) {
+			if (stats != null) {
+				stats.cellsVisited++;
+			}
+			if (SheetDiffer.isIgnored(ignores, cell)) {
+				if (stats != null) {
+					stats.cellsIgnored++;
+				}
+				return true;
+			}
+			if (cell.getRowIndex() != row) {
+				endRow();
+				row = cell.getRowIndex();
+			}
+			if (size == cols.length) {
+				cols = Arrays.copyOf(cols, 2 * size);
+				styles = Arrays.copyOf(styles, 2 * size);
+				kinds = Arrays.copyOf(kinds, 2 * size);
+				numbers = Arrays.copyOf(numbers, 2 * size);
+				strings = Arrays.copyOf(strings, 2 * size);
+			}
+			CellValueKind kind = cell.getValueKind();
+			cols[size] = cell.getColumnIndex();
+			styles[size] = cell.getStyleIndex();
+			kinds[size] = (byte) kind.ordinal();
+			numbers[size] = 0;
+			strings[size] = null;
+			if (kind == CellValueKind.NUMERIC) {
+				numbers[size] = cell.getNumericValue();
+			} else if (kind == CellValueKind.BOOLEAN) {
+				numbers[size] = cell.getBooleanValue() ? 1 : 0;
+			} else {
+				strings[size] = cell.getStringValue();
+			}
+			size++;
+			return !isLimitReached();
+		}
+
+		void endRow() {
+			if (row < 0) {
+				return;
+			}
+			KeyedRow keyedRow = new KeyedRow(row, Arrays.copyOf(cols, size), Arrays.copyOf(styles, size),
+				Arrays.copyOf(kinds, size), Arrays.copyOf(numbers, size), Arrays.copyOf(strings, size), keys);
+			row = -1;
+			size = 0;
+			try {
+				add(keyedRow);
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to spill rows of sheet " + sheet1.getName(), e);
+			}
+		}
+	}
+
+	/**
+	 * The cells of a row, column by column, and its key: the values of the
+	 * non blank key cells with their columns.
+	 */
+	static class KeyedRow {
+
+		final int row;
+		final int[] cols;
+		final int[] styles;
+		final byte[] kinds;
+		final double[] numbers;
+		final String[] strings;
+		final String key;
+		final long hash;
+
+		// rows of sheet2 with the same key, the first one knows the last
+		KeyedRow next;
+		KeyedRow last;
+		boolean matched;
+
+		KeyedRow(int row, int[] cols, int[] styles, byte[] kinds, double[] numbers, String[] strings, RowKeys keys) {
+			this.row = row;
+			this.cols = cols;
+			this.styles = styles;
+			this.kinds = kinds;
+			this.numbers = numbers;
+			this.strings = strings;
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < cols.length; i++) {
+				if (keys.isKeyColumn(cols[i])) {
+					String value = KINDS[kinds[i]].format(numbers[i], strings[i]);
+					if (!value.isEmpty()) {
+						sb.append(cols[i]).append(':').append(value.length()).append(':').append(value);
+					}
+				}
+			}
+			key = sb.toString();
+			long h = FNV_OFFSET;
+			for (int i = 0; i < key.length(); i++) {
+				h = (h ^ key.charAt(i)) * FNV_PRIME;
+			}
+			hash = h;
+		}
+
+		/**
+		 * Rough heap size in bytes, with its entry in the table.
+		 */
+		long size() {
+			long size = 160 + 2L * key.length() + 29L * cols.length;
+			for (String s : strings) {
+				if (s != null) {
+					size += 40 + 2L * s.length();
+				}
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * A cell of a KeyedRow. Only the index of its style is kept.
+	 */
+	static class RowCell implements ICell {
+
+		private int row;
+		private int col;
+		private int style;
+		private CellValueKind kind;
+		private double number;
+		private String string;
+
+		RowCell set(KeyedRow r, int i) {
+			row = r.row;
+			col = r.cols[i];
+			style = r.styles[i];
+			kind = KINDS[r.kinds[i]];
+			number = r.numbers[i];
+			string = r.strings[i];
+			return this;
+		}
+
+		ICell snapshot() {
+			RowCell cell = new RowCell();
+			cell.row = row;
+			cell.col = col;
+			cell.style = style;
+			cell.kind = kind;
+			cell.number = number;
+			cell.string = string;
+			return cell;
+		}
+
+		@Override
+		public int getRowIndex() {
+			return row;
+		}
+
+		@Override
+		public int getColumnIndex() {
+			return col;
+		}
+
+		@Override
+		public ICellStyle getCellStyle() {
+			return null;
+		}
+
+		@Override
+		public int getStyleIndex() {
+			return style;
+		}
+
+		@Override
+		public String getStringValue() {
+			return kind.format(number, string);
+		}
+
+		@Override
+		public CellValueKind getValueKind() {
+			return kind;
+		}
+
+		@Override
+		public double getNumericValue() {
+			return number;
+		}
+
+		@Override
+		public boolean getBooleanValue() {
+			return number != 0;
+		}
+	}
+
+	/**
+	 * A temp file of records led by their row, read one ahead.
+	 */
+	private static class RowStream implements Comparable<RowStream> {
+
+		final DataInputStream in;
+		int row;
+
+		RowStream(DataInputStream in) {
+			this.in = in;
+		}
+
+		boolean next() throws IOException {
+			row = in.readInt();
+			return row >= 0;
+		}
+
+		@Override
+		public int compareTo(RowStream o) {
+			return (row < o.row) ? -1 : ((row == o.row) ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Bloom filter over 64 bit hashes, 10 bits and 7 probes a key, about one
+	 * false positive in a hundred.
+	 */
+	static class BloomFilter {
+
+		private static final int PROBES = 7;
+
+		private final long[] words;
+		private final long numBits;
+
+		BloomFilter(int expected) {
+			words = new long[(int) ((Math.max(64L, 10L * expected) + 63) >>> 6)];
+			numBits = 64L * words.length;
+		}
+
+		void add(long hash) {
+			long h2 = Long.rotateLeft(hash, 32) | 1;
+			for (int i = 0; i < PROBES; i++) {
+				long bit = ((hash + i * h2) & Long.MAX_VALUE) % numBits;
+				words[(int) (bit >>> 6)] |= 1L << bit;
+			}
+		}
+
+		boolean mightContain(long hash) {
+			long h2 = Long.rotateLeft(hash, 32) | 1;
+			for (int i = 0; i < PROBES; i++) {
+				long bit = ((hash + i * h2) & Long.MAX_VALUE) % numBits;
+				if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,241 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.poi.hssf.usermodel.HSSFEvaluationWorkbook;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.formula.EvaluationSheet;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
+import org.apache.poi.ss.formula.ExternSheetReferenceToken;
+import org.apache.poi.ss.formula.ptg.AbstractFunctionPtg;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Computes the formulas of a workbook again for --evaluate, and stores each
+ * result in its cell as the cached result, which is then compared as with
+ * --values.
+ *
+ * A FormulaEvaluator is not thread safe, but it caches every value it
+ * computes, so the sheets are split into groups which refer to each other
+ * (by 3D references; a name or INDIRECT may refer anywhere, a sheet using
+ * one joins all sheets). Each group gets one evaluator, shared by its
+ * sheets, and the groups are evaluated side by side on a ForkJoin pool.
+ * Evaluating only reads the cells of its group, but the results are stored
+ * one at a time, holding the lock of the workbook, as setting a cell may
+ * touch what its sheets share.
+ * Only the formulas of the sheets in regions are evaluated, with the cells
+ * they depend on.
+ *
+ * A formula POI cannot evaluate, like one calling a function it does not
+ * know or another workbook, keeps the result cached in the file.
+ */
+public class ParallelFormulaEvaluator {
+
+	private final Workbook workbook;
+	private final Map<String,SheetRegions> regions;
+	private final int threads;
+
+	/**
+	 * Evaluates the formulas of all sheets if regions is null.
+	 */
+	public ParallelFormulaEvaluator(Workbook workbook, Map<String,SheetRegions> regions, int threads) {
+		this.workbook = workbook;
+		this.regions = regions;
+		this.threads = threads;
+	}
+
+	/**
+	 * Evaluates the formulas and returns the number of those which could not
+	 * be evaluated.
+	 */
+	public int evaluate() throws Exception {
+		List<List<Sheet>> groups = groupSheets();
+		if (groups.isEmpty()) {
+			return 0;
+		}
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(threads, groups.size())));
+		try {
+			List<Future<Integer>> results = new ArrayList<Future<Integer>>(groups.size());
+			for (List<Sheet> group : groups) {
+				results.add(pool.submit(new GroupEvaluation(group)));
+			}
+			int failed = 0;
+			for (Future<Integer> result : results) {
+				try {
+					failed += result.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw (cause instanceof Exception) ? (Exception) cause : new RuntimeException(cause);
+				}
+			}
+			return failed;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * The sheets to evaluate, grouped by the references between all sheets.
+	 */
+	private List<List<Sheet>> groupSheets() {
+		EvaluationWorkbook evaluationWorkbook = evaluationWorkbook();
+		int numSheets = workbook.getNumberOfSheets();
+		int[] parents = new int[numSheets];
+		for (int i = 0; i < numSheets; i++) {
+			parents[i] = i;
+		}
+		for (int s = 0; s < numSheets; s++) {
+			EvaluationSheet evaluationSheet = evaluationWorkbook.getSheet(s);
+			for (Cell cell : formulaCells(workbook.getSheetAt(s))) {
+				Ptg[] ptgs;
+				try {
+					ptgs = evaluationWorkbook.getFormulaTokens(evaluationSheet.getCell(cell.getRowIndex(), cell.getColumnIndex()));
+				} catch (RuntimeException e) {
+					continue; // not parsed, not evaluated either
+				}
+				for (Ptg ptg : ptgs) {
+					if (ptg instanceof ExternSheetReferenceToken) {
+						int externSheetIdx = ((ExternSheetReferenceToken) ptg).getExternSheetIndex();
+						if (evaluationWorkbook.getExternalSheet(externSheetIdx) == null) {
+							union(parents, s, evaluationWorkbook.convertFromExternSheetIndex(externSheetIdx));
+						}
+					} else if ((ptg instanceof NamePtg) || (ptg instanceof NameXPtg) || ((ptg instanceof AbstractFunctionPtg)
+							&& "INDIRECT".equals(((AbstractFunctionPtg) ptg).getName()))) {
+						for (int other = 0; other < numSheets; other++) {
+							union(parents, s, other);
+						}
+					}
+				}
+			}
+		}
+
+		List<List<Sheet>> groups = new ArrayList<List<Sheet>>();
+		List<List<Sheet>> byRoot = new ArrayList<List<Sheet>>(Collections.<List<Sheet>>nCopies(numSheets, null));
+		for (int s = 0; s < numSheets; s++) {
+			Sheet sheet = workbook.getSheetAt(s);
+			if ((regions != null) && !regions.containsKey(sheet.getSheetName())) {
+				continue;
+			}
+			int root = find(parents, s);
+			if (byRoot.get(root) == null) {
+				byRoot.set(root, new ArrayList<Sheet>());
+				groups.add(byRoot.get(root));
+			}
+			byRoot.get(root).add(sheet);
+		}
+		return groups;
+	}
+
+	private EvaluationWorkbook evaluationWorkbook() {
+		if (workbook instanceof HSSFWorkbook) {
+			return HSSFEvaluationWorkbook.create((HSSFWorkbook) workbook);
+		}
+		return XSSFEvaluationWorkbook.create((XSSFWorkbook) workbook);
+	}
+
+	private static int find(int[] parents, int i) {
+		while (parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parents, int i, int j) {
+		if ((j >= 0) && (j < parents.length)) {
+			parents[find(parents, i)] = find(parents, j);
+		}
+	}
+
+	private static List<Cell> formulaCells(Sheet sheet) {
+		List<Cell> cells = new ArrayList<Cell>();
+		for (Iterator<Row> rows = sheet.rowIterator(); rows.hasNext();) {
+			for (Iterator<Cell> row = rows.next().cellIterator(); row.hasNext();) {
+				Cell cell = row.next();
+				if (cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+					cells.add(cell);
+				}
+			}
+		}
+		return cells;
+	}
+
+	/**
+	 * Evaluates the formulas of a group of sheets with one evaluator.
+	 */
+	private class GroupEvaluation implements Callable<Integer> {
+
+		private final List<Sheet> sheets;
+
+		GroupEvaluation(List<Sheet> sheets) {
+			this.sheets = sheets;
+		}
+
+		@Override
+		public Integer call() {
+			FormulaEvaluator evaluator = workbook.getCreationHelper().createFormulaEvaluator();
+			int failed = 0;
+			for (Sheet sheet : sheets) {
+				SheetRegions sheetRegions = (regions == null) ? null : regions.get(sheet.getSheetName());
+				for (Cell cell : formulaCells(sheet)) {
+					if ((sheetRegions != null) && !sheetRegions.contains(cell.getRowIndex(), cell.getColumnIndex())) {
+						continue;
+					}
+					CellValue value;
+					try {
+						value = evaluator.evaluate(cell);
+					} catch (RuntimeException e) {
+						failed++;
+						continue;
+					}
+					synchronized (workbook) {
+						setCachedResult(cell, value);
+					}
+				}
+			}
+			return failed;
+		}
+	}
+
+	/**
+	 * Stores value as the cached result of the formula cell, as
+	 * FormulaEvaluator.evaluateFormulaCell does.
+	 */
+	private void setCachedResult(Cell cell, CellValue value) {
+		switch (value.getCellType()) {
+		case Cell.CELL_TYPE_NUMERIC:
+			cell.setCellValue(value.getNumberValue());
+			break;
+		case Cell.CELL_TYPE_BOOLEAN:
+			cell.setCellValue(value.getBooleanValue());
+			break;
+		case Cell.CELL_TYPE_STRING:
+			cell.setCellValue(workbook.getCreationHelper().createRichTextString(value.getStringValue()));
+			break;
+		case Cell.CELL_TYPE_ERROR:
+			cell.setCellErrorValue(value.getErrorValue());
+			break;
+		}
+	}
+}
@@ -0,0 +1,280 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Diffs the sheets of two workbooks on a ForkJoin pool.
+ *
+ * Sheets are paired the same way the serial merge lines them up, and every
+ * pair is diffed on its own into a queue of its events. The queues are
+ * drained to the callback in sheet order, so the callback sees exactly the
+ * events of a serial diff, in the same order and on the calling thread.
+ *
+ * Memory stays bounded however much the workbooks differ: at most threads
+ * pairs are running ahead of the one being drained, the next one is started
+ * only when a pair is done, and a pair blocks once its queue holds
+ * QUEUE_EVENTS events until it gets drained. The head pair so streams its
+ * events to the callback as they come.
+ *
+ * With a {@link DiffLimit} every pair stops at the limit by itself, the
+ * draining stops once the limit is reached and the pairs still running are
+ * told to stop.
+ */
+public class ParallelSpreadSheetDiffer {
+
+	static final int QUEUE_EVENTS = 1 << 12;
+
+	private final ISpreadSheet ss1;
+	private final ISpreadSheet ss2;
+	private final Map<String,SheetIgnores> sheetIgnores1;
+	private final Map<String,SheetIgnores> sheetIgnores2;
+	private final ValueComparator values;
+	private final StyleEquivalence styles;
+	private final UnchangedSheets unchanged;
+	private final boolean alignRows;
+	private final Map<String,RowKeys> sheetKeys;
+	private final DiffStats stats;
+	private final DiffLimit limit;
+	private final int threads;
+
+	public ParallelSpreadSheetDiffer(ISpreadSheet ss1, ISpreadSheet ss2,
+			Map<String,SheetIgnores> sheetIgnores1, Map<String,SheetIgnores> sheetIgnores2,
+			ValueComparator values, StyleEquivalence styles, UnchangedSheets unchanged, boolean alignRows,
+			Map<String,RowKeys> sheetKeys, DiffStats stats, DiffLimit limit, int threads) {
+		this.ss1 = ss1;
+		this.ss2 = ss2;
+		this.sheetIgnores1 = sheetIgnores1;
+		this.sheetIgnores2 = sheetIgnores2;
+		this.values = values;
+		this.styles = styles;
+		this.unchanged = unchanged;
+		this.alignRows = alignRows;
+		this.sheetKeys = sheetKeys;
+		this.stats = stats;
+		this.limit = limit;
+		this.threads = threads;
+	}
+
+	/**
+	 * Reports all differences to diffCallback, returns true if there was any.
+	 */
+	public boolean diff(SpreadSheetDiffCallback diffCallback) throws Exception {
+		List<SheetPairDiff> pairs = new ArrayList<SheetPairDiff>();
+		for (ISheet[] sheetPair : SheetDiffer.pairSheets(ss1, ss2)) {
+			ISheet sheet1 = sheetPair[0];
+			ISheet sheet2 = sheetPair[1];
+			SheetIgnores ignores1 = SpreadSheetDiffer.sheetIgnores(sheetIgnores1, sheet1);
+			SheetIgnores ignores2 = SpreadSheetDiffer.sheetIgnores(sheetIgnores2, sheet2);
+			if ((unchanged == null) || !unchanged.isUnchanged(sheet1, ignores1, sheet2, ignores2)) {
+				pairs.add(new SheetPairDiff(sheet1, sheet2, ignores1, ignores2));
+			}
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Future<Boolean>> running = new ArrayList<Future<Boolean>>(pairs.size());
+			for (int i = 0; i < Math.min(threads, pairs.size()); i++) {
+				running.add(pool.submit(pairs.get(i)));
+			}
+			boolean isDiff = false;
+			SpreadSheetDiffCallback drainTo = (limit != null) ? limit.limited(diffCallback) : diffCallback;
+			for (int i = 0; i < pairs.size(); i++) {
+				EventQueue events = pairs.get(i).events;
+				isDiff |= events.drain(drainTo, limit);
+				if (!events.isDrained()) {
+					break; // the limit is reached
+				}
+				try {
+					running.get(i).get();
+				} catch (ExecutionException e) {
+					throw rethrow(e.getCause());
+				}
+				if (i + threads < pairs.size()) {
+					running.add(pool.submit(pairs.get(i + threads)));
+				}
+			}
+			return isDiff;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static Exception rethrow(Throwable t) {
+		if (t instanceof Error) {
+			throw (Error) t;
+		}
+		return (t instanceof Exception) ? (Exception) t : new RuntimeException(t);
+	}
+
+	private class SheetPairDiff implements Callable<Boolean> {
+
+		private final ISheet sheet1;
+		private final ISheet sheet2;
+		private final SheetIgnores ignores1;
+		private final SheetIgnores ignores2;
+		final EventQueue events = new EventQueue();
+
+		SheetPairDiff(ISheet sheet1, ISheet sheet2, SheetIgnores ignores1, SheetIgnores ignores2) {
+			this.sheet1 = sheet1;
+			this.sheet2 = sheet2;
+			this.ignores1 = ignores1;
+			this.ignores2 = ignores2;
+		}
+
+		@Override
+		public Boolean call() {
+			DiffLimit pairLimit = (limit != null) ? limit.forSheetPair() : null;
+			try {
+				return SpreadSheetDiffer.diffSheetPair(sheet1, sheet2, ignores1, ignores2, sheetKeys, values, styles, alignRows,
+					stats, pairLimit, (pairLimit != null) ? pairLimit.limited(events) : events);
+			} finally {
+				events.end();
+			}
+		}
+	}
+
+	/**
+	 * Hands the cell events of one sheet pair over to the thread draining
+	 * them, holding at most QUEUE_EVENTS at a time.
+	 */
+	static class EventQueue implements SpreadSheetDiffCallback {
+
+		private static final Event END = new Event(-1, null, null, null);
+
+		private final BlockingQueue<Event> events = new ArrayBlockingQueue<Event>(QUEUE_EVENTS);
+		private boolean drained;
+
+		@Override
+		public void reportDiffCell(CellPos c1, CellPos c2) {
+			put(new Event(Event.DIFF, c1, c2, null));
+		}
+
+		@Override
+		public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+			put(new Event(inFirstSpreadSheet ? Event.EXTRA1 : Event.EXTRA2, c, null, null));
+		}
+
+		@Override
+		public void reportExtraRow(boolean inFirstSpreadSheet, String sheetName, int rowIndex) {
+			put(new Event(inFirstSpreadSheet ? Event.EXTRA_ROW1 : Event.EXTRA_ROW2, sheetName, rowIndex));
+		}
+
+		@Override
+		public void reportStyleDiff(String diff, CellPos c1, CellPos c2) {
+			put(new Event(Event.STYLE, c1, c2, diff));
+		}
+
+		@Override
+		public void reportWorkbooksDiffer(boolean differ, File file1, File file2) {
+			throw new UnsupportedOperationException();
+		}
+
+		private void put(Event event) {
+			try {
+				events.put(event);
+			} catch (InterruptedException e) {
+				// the diff was stopped, nobody drains this pair any more
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Sheet pair diff stopped");
+			}
+		}
+
+		/**
+		 * Marks the end of the events of the pair.
+		 */
+		void end() {
+			try {
+				events.put(END);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Sends the events to diffCallback as they come, up to the end of the
+		 * pair or until limit, unless null, is reached. Returns true if there
+		 * was any.
+		 */
+		boolean drain(SpreadSheetDiffCallback diffCallback, DiffLimit limit) throws InterruptedException {
+			boolean any = false;
+			while (!drained) {
+				if ((limit != null) && limit.isReached()) {
+					break;
+				}
+				Event event = events.take();
+				any |= (event != END);
+				switch (event.type) {
+				case Event.DIFF:
+					diffCallback.reportDiffCell(event.c1, event.c2);
+					break;
+				case Event.EXTRA1:
+					diffCallback.reportExtraCell(true, event.c1);
+					break;
+				case Event.EXTRA2:
+					diffCallback.reportExtraCell(false, event.c1);
+					break;
+				case Event.STYLE:
+					diffCallback.reportStyleDiff(event.diff, event.c1, event.c2);
+					break;
+				case Event.EXTRA_ROW1:
+					diffCallback.reportExtraRow(true, event.diff, event.row);
+					break;
+				case Event.EXTRA_ROW2:
+					diffCallback.reportExtraRow(false, event.diff, event.row);
+					break;
+				default:
+					drained = true;
+				}
+			}
+			return any;
+		}
+
+		/**
+		 * True once all events of the pair are drained.
+		 */
+		boolean isDrained() {
+			return drained;
+		}
+	}
+
+	private static class Event {
+
+		static final int DIFF = 0;
+		static final int EXTRA1 = 1;
+		static final int EXTRA2 = 2;
+		static final int STYLE = 3;
+		static final int EXTRA_ROW1 = 4;
+		static final int EXTRA_ROW2 = 5;
+
+		final int type;
+		final CellPos c1;
+		final CellPos c2;
+		final String diff; // the sheet name for a row
+		final int row;
+
+		Event(int type, CellPos c1, CellPos c2, String diff) {
+			this.type = type;
+			this.c1 = c1;
+			this.c2 = c2;
+			this.diff = diff;
+			this.row = -1;
+		}
+
+		Event(int type, String sheetName, int row) {
+			this.type = type;
+			this.c1 = null;
+			this.c2 = null;
+			this.diff = sheetName;
+			this.row = row;
+		}
+	}
+}
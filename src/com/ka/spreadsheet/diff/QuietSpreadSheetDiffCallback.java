@@ -0,0 +1,36 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reports nothing, for --quiet: only the exit code tells whether the
+ * workbooks differ.
+ */
+public class QuietSpreadSheetDiffCallback extends ReportSpreadSheetDiffCallback {
+
+    public QuietSpreadSheetDiffCallback(OutputStream stream) {
+        super(stream, false, Charset.forName("UTF-8"));
+    }
+
+    @Override
+    public void reportDiffCell(CellPos c1, CellPos c2) {
+    }
+
+    @Override
+    public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+    }
+
+    @Override
+    public void reportExtraRow(boolean inFirstSpreadSheet, String sheetName, int rowIndex) {
+    }
+
+    @Override
+    public void reportStyleDiff(String diff, CellPos c1, CellPos c2) {
+    }
+
+    @Override
+    public void reportWorkbooksDiffer(boolean differ, File file1, File file2) {
+    }
+}
@@ -0,0 +1,74 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Base of the callbacks which write a report through a {@link ReportWriter}.
+ *
+ * The report goes to a stream, optionally gzipped, or to a channel. What
+ * is buffered is written out on {@link #flush()}; {@link #close()} also
+ * ends the gzip stream but leaves the underlying stream open, as that is
+ * usually System.out.
+ */
+public abstract class ReportSpreadSheetDiffCallback implements SpreadSheetDiffCallback {
+
+    protected final ReportWriter out;
+    private final OutputStream stream;
+    private final GZIPOutputStream gzip;
+
+    /**
+     * Writes to stream, which is taken as it is at construction.
+     */
+    protected ReportSpreadSheetDiffCallback(OutputStream stream, boolean gzip, Charset charset) {
+        this.stream = stream;
+        try {
+            this.gzip = gzip ? new GZIPOutputStream(stream, 1 << 16) : null;
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write report", e);
+        }
+        this.out = new ReportWriter(Channels.newChannel(gzip ? this.gzip : stream), charset);
+    }
+
+    /**
+     * Writes to a channel, for example the FileChannel of a report file.
+     */
+    protected ReportSpreadSheetDiffCallback(WritableByteChannel channel, Charset charset) {
+        this.stream = null;
+        this.gzip = null;
+        this.out = new ReportWriter(channel, charset);
+    }
+
+    /**
+     * Writes out what was reported so far.
+     */
+    public void flush() {
+        out.flush();
+        if (stream != null) {
+            try {
+                stream.flush();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write report", e);
+            }
+        }
+    }
+
+    /**
+     * Writes out what was reported and ends the gzip stream, if any.
+     */
+    public void close() {
+        out.flush();
+        if (gzip != null) {
+            try {
+                gzip.finish();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write report", e);
+            }
+        }
+        flush();
+    }
+}
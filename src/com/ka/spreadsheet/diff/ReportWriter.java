@@ -0,0 +1,170 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Builds report lines straight into a reusable byte buffer and writes it to
+ * a channel whenever it fills up.
+ *
+ * Numbers and cell positions are appended digit by digit, column letters
+ * come from a table, so no string is built for them. Text is encoded with
+ * the given charset, by default the platform one, and {@link #newLine()}
+ * ends lines with line.separator, the way System.out.println writes them.
+ */
+public class ReportWriter {
+
+	// XFD, the last column of an xlsx sheet
+	private static final int COLUMN_TABLE_SIZE = 16384;
+	private static final byte[][] COLUMN_LETTERS = new byte[COLUMN_TABLE_SIZE][];
+	static {
+		for (int col = 0; col < COLUMN_TABLE_SIZE; col++) {
+			COLUMN_LETTERS[col] = toAscii(SpreadSheetUtils.convertToLetter(col));
+		}
+	}
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private final Charset charset;
+	private final byte[] lineSeparator;
+	private final byte[] digits = new byte[20];
+
+	public ReportWriter(WritableByteChannel channel) {
+		this(channel, Charset.defaultCharset());
+	}
+
+	public ReportWriter(WritableByteChannel channel, Charset charset) {
+		this(channel, charset, 1 << 16);
+	}
+
+	public ReportWriter(WritableByteChannel channel, Charset charset, int bufferSize) {
+		this.channel = channel;
+		this.charset = charset;
+		this.lineSeparator = System.getProperty("line.separator").getBytes(charset);
+		this.buffer = ByteBuffer.allocate(bufferSize);
+	}
+
+	public ReportWriter append(String s) {
+		return append(s, 0, s.length());
+	}
+
+	/**
+	 * Appends the chars of s from start up to end.
+	 */
+	public ReportWriter append(CharSequence s, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (s.charAt(i) >= 0x80) {
+				ByteBuffer encoded = charset.encode(CharBuffer.wrap(s, start, end));
+				return append(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+			}
+		}
+		for (int i = start; i < end; i++) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			buffer.put((byte) s.charAt(i));
+		}
+		return this;
+	}
+
+	public ReportWriter append(byte[] bytes) {
+		return append(bytes, 0, bytes.length);
+	}
+
+	public ReportWriter append(byte[] bytes, int off, int len) {
+		int end = off + len;
+		while (off < end) {
+			if (!buffer.hasRemaining()) {
+				drain();
+			}
+			int n = Math.min(buffer.remaining(), end - off);
+			buffer.put(bytes, off, n);
+			off += n;
+		}
+		return this;
+	}
+
+	public ReportWriter append(char c) {
+		if (c >= 0x80) {
+			return append(String.valueOf(c));
+		}
+		if (!buffer.hasRemaining()) {
+			drain();
+		}
+		buffer.put((byte) c);
+		return this;
+	}
+
+	public ReportWriter append(long n) {
+		if (n < 0) {
+			if (n == Long.MIN_VALUE) {
+				return append(String.valueOf(n));
+			}
+			append('-');
+			n = -n;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + (n % 10));
+			n /= 10;
+		} while (n != 0);
+		if (buffer.remaining() < digits.length - i) {
+			drain();
+		}
+		buffer.put(digits, i, digits.length - i);
+		return this;
+	}
+
+	/**
+	 * Appends the letters of a zero based column index.
+	 */
+	public ReportWriter appendColumn(int col) {
+		if ((col >= 0) && (col < COLUMN_TABLE_SIZE)) {
+			return append(COLUMN_LETTERS[col]);
+		}
+		return append(SpreadSheetUtils.convertToLetter(col));
+	}
+
+	/**
+	 * Appends a cell position in user notation, like D10, from zero based indexes.
+	 */
+	public ReportWriter appendCell(int row, int col) {
+		appendColumn(col);
+		return append(SpreadSheetUtils.ROW_INTERNAL_TO_USER(row));
+	}
+
+	public ReportWriter newLine() {
+		return append(lineSeparator);
+	}
+
+	/**
+	 * Writes out what is buffered.
+	 */
+	public void flush() {
+		drain();
+	}
+
+	private void drain() {
+		buffer.flip();
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to write report", e);
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	private static byte[] toAscii(String s) {
+		byte[] bytes = new byte[s.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) s.charAt(i);
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,301 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lines up the rows of two sheets, so that rows inserted or deleted in
+ * one of them do not make every following row differ.
+ *
+ * Each row which has a cell left after ignores gets a 64 bit hash of its
+ * columns and values; columns ignored in the other sheet are left out of
+ * the hash, so that they do not keep rows apart. Values are hashed as
+ * {@link ValueComparator} compares them: numbers and booleans by value,
+ * whatever their text, and numbers not at all under a tolerance, where
+ * close numbers match. The hash sequences are diffed with Myers' O(ND)
+ * algorithm, after cutting off their common head and tail. Rows in a run
+ * of changes are paired up in order, the rows left over in such a run are
+ * extra in their sheet. If the sequences differ in more than
+ * {@link #MAX_EDITS} rows, the rows in between the common head and tail
+ * are paired up in order, as without alignment.
+ *
+ * Every aligned row pair, extra rows in between, has a position; cells are
+ * merged by position and column instead of by row and column.
+ */
+public class RowAlignment {
+
+	static final int MAX_EDITS = 1024;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final int[] rows1;
+	private final int[] positions1;
+	private final boolean[] extra1;
+	private final int[] rows2;
+	private final int[] positions2;
+	private final boolean[] extra2;
+
+	// the row last looked up, cells come row by row
+	private int lastRow1 = -1, lastIdx1 = -1;
+	private int lastRow2 = -1, lastIdx2 = -1;
+
+	private RowAlignment(int[] rows1, int[] rows2, int[] match) {
+		this.rows1 = rows1;
+		this.rows2 = rows2;
+		positions1 = new int[rows1.length];
+		positions2 = new int[rows2.length];
+		extra1 = new boolean[rows1.length];
+		extra2 = new boolean[rows2.length];
+
+		int pos = 0;
+		int i = 0, j = 0;
+		while ((i < rows1.length) || (j < rows2.length)) {
+			if ((i < rows1.length) && (match[i] == j)) {
+				positions1[i++] = pos;
+				positions2[j++] = pos++;
+				continue;
+			}
+			// a run of changes: rows of sheet1 up to the next match, rows of
+			// sheet2 up to its partner
+			int end1 = i;
+			while ((end1 < rows1.length) && (match[end1] < 0)) {
+				end1++;
+			}
+			int end2 = (end1 < rows1.length) ? match[end1] : rows2.length;
+			while ((i < end1) && (j < end2)) {
+				positions1[i++] = pos;
+				positions2[j++] = pos++;
+			}
+			while (i < end1) {
+				extra1[i] = true;
+				positions1[i++] = pos++;
+			}
+			while (j < end2) {
+				extra2[j] = true;
+				positions2[j++] = pos++;
+			}
+		}
+	}
+
+	/**
+	 * Reads both sheets once to hash their rows and aligns them, with values
+	 * matched as by values.
+	 */
+	public static RowAlignment align(ISheet sheet1, SheetIgnores ignores1, ISheet sheet2, SheetIgnores ignores2,
+			ValueComparator values) {
+		boolean hashNumbers = !values.hasTolerance();
+		RowHashes h1 = new RowHashes(ignores1, ignores2, hashNumbers);
+		sheet1.forEachCell(h1);
+		h1.endRow();
+		RowHashes h2 = new RowHashes(ignores2, ignores1, hashNumbers);
+		sheet2.forEachCell(h2);
+		h2.endRow();
+		return new RowAlignment(h1.rows(), h2.rows(), match(h1.hashes(), h2.hashes()));
+	}
+
+	/**
+	 * Position of a row of sheet1, -1 if the row has no cell left after ignores.
+	 */
+	public int position1(int row) {
+		int idx = index1(row);
+		return (idx < 0) ? -1 : positions1[idx];
+	}
+
+	public int position2(int row) {
+		int idx = index2(row);
+		return (idx < 0) ? -1 : positions2[idx];
+	}
+
+	/**
+	 * True if the row of sheet1 has no partner in sheet2.
+	 */
+	public boolean isExtra1(int row) {
+		int idx = index1(row);
+		return (idx >= 0) && extra1[idx];
+	}
+
+	public boolean isExtra2(int row) {
+		int idx = index2(row);
+		return (idx >= 0) && extra2[idx];
+	}
+
+	private int index1(int row) {
+		if (row != lastRow1) {
+			lastRow1 = row;
+			lastIdx1 = Arrays.binarySearch(rows1, row);
+		}
+		return lastIdx1;
+	}
+
+	private int index2(int row) {
+		if (row != lastRow2) {
+			lastRow2 = row;
+			lastIdx2 = Arrays.binarySearch(rows2, row);
+		}
+		return lastIdx2;
+	}
+
+	/**
+	 * For every element of a, the index of the element of b it is matched
+	 * with, or -1; matches are increasing in both.
+	 */
+	static int[] match(long[] a, long[] b) {
+		int[] match = new int[a.length];
+		Arrays.fill(match, -1);
+		int n = a.length, m = b.length;
+		int head = 0;
+		while ((head < n) && (head < m) && (a[head] == b[head])) {
+			match[head] = head;
+			head++;
+		}
+		int tail = 0;
+		while ((tail < n - head) && (tail < m - head) && (a[n - 1 - tail] == b[m - 1 - tail])) {
+			match[n - 1 - tail] = m - 1 - tail;
+			tail++;
+		}
+		myers(a, head, n - tail, b, head, m - tail, match);
+		return match;
+	}
+
+	/**
+	 * Matches a[from1, to1) with b[from2, to2), leaves them unmatched if
+	 * they differ in more than MAX_EDITS elements.
+	 */
+	private static void myers(long[] a, int from1, int to1, long[] b, int from2, int to2, int[] match) {
+		int n = to1 - from1, m = to2 - from2;
+		if ((n == 0) || (m == 0)) {
+			return;
+		}
+		int maxD = Math.min(n + m, MAX_EDITS);
+		int off = maxD + 1;
+		int[] v = new int[2 * maxD + 3];
+		List<int[]> trace = new ArrayList<int[]>();
+		for (int d = 0; d <= maxD; d++) {
+			// v as it was before step d, for k in [-d-1, d+1]
+			trace.add(Arrays.copyOfRange(v, off - d - 1, off + d + 2));
+			for (int k = -d; k <= d; k += 2) {
+				int x = ((k == -d) || ((k != d) && (v[off + k - 1] < v[off + k + 1])))
+					? v[off + k + 1] : v[off + k - 1] + 1;
+				int y = x - k;
+				while ((x < n) && (y < m) && (a[from1 + x] == b[from2 + y])) {
+					x++;
+					y++;
+				}
+				v[off + k] = x;
+				if ((x >= n) && (y >= m)) {
+					backtrack(trace, d, n, m, from1, from2, match);
+					return;
+				}
+			}
+		}
+	}
+
+	private static void backtrack(List<int[]> trace, int d, int x, int y, int from1, int from2, int[] match) {
+		for (; d > 0; d--) {
+			int[] v = trace.get(d);
+			int k = x - y;
+			// v[k] of the step is at k + d + 1 in the copy
+			int prevK = ((k == -d) || ((k != d) && (v[k - 1 + d + 1] < v[k + 1 + d + 1]))) ? k + 1 : k - 1;
+			int prevX = v[prevK + d + 1];
+			int prevY = prevX - prevK;
+			while ((x > prevX) && (y > prevY)) {
+				x--;
+				y--;
+				match[from1 + x] = from2 + y;
+			}
+			x = prevX;
+			y = prevY;
+		}
+		while ((x > 0) && (y > 0)) {
+			x--;
+			y--;
+			match[from1 + x] = from2 + y;
+		}
+	}
+
+	/**
+	 * Hashes the cells of a sheet row by row, skipping ignored cells.
+	 */
+	private static class RowHashes implements CellVisitor {
+
+		private final SheetIgnores ignores;
+		private final SheetIgnores otherIgnores;
+		private final boolean hashNumbers;
+		private int[] rows = new int[1024];
+		private long[] hashes = new long[1024];
+		private int size;
+		private int row = -1;
+		private long hash;
+
+		RowHashes(SheetIgnores ignores, SheetIgnores otherIgnores, boolean hashNumbers) {
+			this.ignores = ignores;
+			this.otherIgnores = otherIgnores;
+			this.hashNumbers = hashNumbers;
+		}
+
+		@Override
+		public boolean visitCell(ICellCursor cell) {
+			if (SheetDiffer.isIgnored(ignores, cell)) {
+				return true;
+			}
+			if (cell.getRowIndex() != row) {
+				endRow();
+				row = cell.getRowIndex();
+				hash = FNV_OFFSET;
+			}
+			if ((otherIgnores != null) && otherIgnores.isColIgnored(cell.getColumnIndex())) {
+				return true;
+			}
+			hash = mix(hash, cell.getColumnIndex());
+			CellValueKind kind = cell.getValueKind();
+			hash = mix(hash, kind.ordinal());
+			if (kind == CellValueKind.NUMERIC) {
+				if (hashNumbers) {
+					long bits = Double.doubleToLongBits(cell.getNumericValue());
+					hash = mix(mix(hash, (int) bits), (int) (bits >>> 32));
+				}
+			} else if (kind == CellValueKind.BOOLEAN) {
+				hash = mix(hash, cell.getBooleanValue() ? 1 : 0);
+			} else {
+				String value = cell.getStringValue();
+				for (int i = 0; i < value.length(); i++) {
+					hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+				}
+				hash = mix(hash, value.length());
+			}
+			return true;
+		}
+
+		void endRow() {
+			if (row < 0) {
+				return;
+			}
+			if (size == rows.length) {
+				rows = Arrays.copyOf(rows, size * 2);
+				hashes = Arrays.copyOf(hashes, size * 2);
+			}
+			rows[size] = row;
+			hashes[size] = hash;
+			size++;
+			row = -1;
+		}
+
+		int[] rows() {
+			return Arrays.copyOf(rows, size);
+		}
+
+		long[] hashes() {
+			return Arrays.copyOf(hashes, size);
+		}
+
+		private static long mix(long hash, int value) {
+			for (int i = 0; i < 4; i++) {
+				hash = (hash ^ (value & 0xFF)) * FNV_PRIME;
+				value >>>= 8;
+			}
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.ka.spreadsheet.diff;
+
+/**
+ * The key columns of a sheet, given as &lt;sheet-name&gt;:&lt;column-spec&gt;
+ * like Sheet1:A,C or Sheet1:A-C. Rows of a keyed sheet are matched by the
+ * values in these columns instead of by index, see {@link KeyedSheetDiffer}.
+ *
+ * Also holds how many bytes of rows the join may keep in memory before it
+ * spills to temp files.
+ */
+public class RowKeys {
+
+	private final String sheetName;
+	private final SheetIgnores.Intervals cols;
+	private final long memoryBudget;
+
+	private RowKeys(String sheetName, SheetIgnores.Intervals cols, long memoryBudget) {
+		this.sheetName = sheetName;
+		this.cols = cols;
+		this.memoryBudget = memoryBudget;
+	}
+
+	public static RowKeys newRowKeys(String spec, long memoryBudget) {
+		String[] parts = spec.split(":");
+		if ((parts.length != 2) || parts[0].isEmpty() || parts[1].isEmpty()) {
+			throw new IllegalArgumentException("Illegal key specifier " + spec);
+		}
+		SheetIgnores.Intervals cols = new SheetIgnores.Intervals(SheetIgnores.formColIgnores(parts[1]));
+		if (cols.isEmpty()) {
+			throw new IllegalArgumentException("Illegal key specifier " + spec);
+		}
+		return new RowKeys(parts[0], cols, memoryBudget);
+	}
+
+	public String sheetName() {
+		return sheetName;
+	}
+
+	public boolean isKeyColumn(int col) {
+		return cols.contains(col);
+	}
+
+	public long memoryBudget() {
+		return memoryBudget;
+	}
+}
@@ -0,0 +1,254 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Diffs the cells of two sheets standing at the same index in their
+ * workbooks.
+ *
+ * The first sheet pushes its cells through {@link ISheet#forEachCell}, a
+ * cursor is moved over the second one alongside. Both hand out the same
+ * object for every cell, so nothing is allocated for cells that match; a
+ * cell is copied only when it gets reported.
+ *
+ * With rows aligned ({@link RowAlignment}) cells are merged by the position
+ * of their row in the alignment; rows extra in a sheet are reported as a
+ * whole instead of cell by cell.
+ *
+ * With stats the cells are counted as they go by, alignment and style
+ * checks are timed. With a limit the walk stops once it is reached, which
+ * closes both cursors.
+ */
+public class SheetDiffer implements CellVisitor {
+
+	private final ISheet sheet1;
+	private final ISheet sheet2;
+	private final SheetIgnores ignores1;
+	private final SheetIgnores ignores2;
+	private final ValueComparator values;
+	private final StyleEquivalence styles;
+	private final boolean alignRows;
+	private final DiffStats.Sheet stats;
+	private final DiffLimit limit;
+	private final SpreadSheetDiffCallback diffCallback;
+
+	private RowAlignment alignment;
+	private int extraRow1 = -1;
+	private int extraRow2 = -1;
+	private ICellCursor cursor2;
+	private boolean hasCell2;
+	private boolean isDiff;
+
+	/**
+	 * Either sheet may be null if the other workbook has more sheets. Styles
+	 * are diffed only if styles is not null, counted only if stats is not null.
+	 * If limit is not null, diffCallback must be limited by it.
+	 */
+	public SheetDiffer(ISheet sheet1, ISheet sheet2, SheetIgnores ignores1, SheetIgnores ignores2,
+			ValueComparator values, StyleEquivalence styles, boolean alignRows, DiffStats.Sheet stats,
+			DiffLimit limit, SpreadSheetDiffCallback diffCallback) {
+		this.sheet1 = sheet1;
+		this.sheet2 = sheet2;
+		this.ignores1 = ignores1;
+		this.ignores2 = ignores2;
+		this.values = values;
+		this.styles = styles;
+		this.alignRows = alignRows;
+		this.stats = stats;
+		this.limit = limit;
+		this.diffCallback = diffCallback;
+	}
+
+	/**
+	 * Reports all differences to the callback, returns true if there was any.
+	 */
+	public boolean diff() {
+		if (alignRows && (sheet1 != null) && (sheet2 != null)
+				&& !isWholeSheetIgnored(ignores1) && !isWholeSheetIgnored(ignores2)) {
+			if (stats != null) {
+				stats.startAlign();
+			}
+			alignment = RowAlignment.align(sheet1, ignores1, sheet2, ignores2, values);
+			if (stats != null) {
+				stats.endAlign();
+			}
+		}
+		if ((sheet2 != null) && !isWholeSheetIgnored(ignores2)) {
+			cursor2 = sheet2.getCellCursor();
+		}
+		try {
+			nextCell2();
+			if ((sheet1 != null) && !isWholeSheetIgnored(ignores1)) {
+				sheet1.forEachCell(this);
+			}
+			while (hasCell2 && !isLimitReached()) {
+				reportExtraCell2();
+				nextCell2();
+			}
+		} finally {
+			if (cursor2 != null) {
+				cursor2.close();
+			}
+		}
+		return isDiff;
+	}
+
+	@Override
+	public boolean visitCell(ICellCursor cell1) {
+		if (stats != null) {
+			stats.cellsVisited++;
+		}
+		if (isIgnored(ignores1, cell1)) {
+			if (stats != null) {
+				stats.cellsIgnored++;
+			}
+			return true;
+		}
+		int c = -1;
+		while (hasCell2 && ((c = compare(cell1, cursor2)) > 0)) {
+			reportExtraCell2();
+			nextCell2();
+		}
+		if ((alignment != null) && alignment.isExtra1(cell1.getRowIndex())) {
+			if (cell1.getRowIndex() != extraRow1) {
+				extraRow1 = cell1.getRowIndex();
+				isDiff = true;
+				diffCallback.reportExtraRow(true, sheet1.getName(), extraRow1);
+			}
+			return !isLimitReached();
+		}
+		if (hasCell2 && (c == 0)) {
+			if (stats != null) {
+				stats.valuesCompared++;
+			}
+			if (!values.equal(cell1, cursor2)) {
+				isDiff = true;
+				diffCallback.reportDiffCell(new CellPos(sheet1, cell1.snapshot()), new CellPos(sheet2, cursor2.snapshot()));
+			} else if (styles != null) {
+				String styleDiff = diffStyles(cell1, cursor2);
+				if (styleDiff != null) {
+					isDiff = true;
+					diffCallback.reportStyleDiff(styleDiff, new CellPos(sheet1, cell1.snapshot()), new CellPos(sheet2, cursor2.snapshot()));
+				}
+			}
+			nextCell2();
+		} else {
+			reportExtraCell(true, sheet1, cell1);
+		}
+		return !isLimitReached();
+	}
+
+	private boolean isLimitReached() {
+		return (limit != null) && limit.isReached();
+	}
+
+	private void nextCell2() {
+		hasCell2 = false;
+		while ((cursor2 != null) && cursor2.next()) {
+			if (stats != null) {
+				stats.cellsVisited++;
+			}
+			if (!isIgnored(ignores2, cursor2)) {
+				hasCell2 = true;
+				return;
+			}
+			if (stats != null) {
+				stats.cellsIgnored++;
+			}
+		}
+	}
+
+	private String diffStyles(ICellCursor c1, ICellCursor c2) {
+		if (stats == null) {
+			return styles.diff(sheet1, c1, sheet2, c2);
+		}
+		long start = System.nanoTime();
+		String styleDiff = styles.diff(sheet1, c1, sheet2, c2);
+		stats.styleTime += System.nanoTime() - start;
+		stats.styleChecks++;
+		return styleDiff;
+	}
+
+	private void reportExtraCell2() {
+		if ((alignment != null) && alignment.isExtra2(cursor2.getRowIndex())) {
+			if (cursor2.getRowIndex() != extraRow2) {
+				extraRow2 = cursor2.getRowIndex();
+				isDiff = true;
+				diffCallback.reportExtraRow(false, sheet2.getName(), extraRow2);
+			}
+		} else {
+			reportExtraCell(false, sheet2, cursor2);
+		}
+	}
+
+	private void reportExtraCell(boolean inFirstSpreadSheet, ISheet sheet, ICellCursor cell) {
+		isDiff = true;
+		diffCallback.reportExtraCell(inFirstSpreadSheet, new CellPos(sheet, cell.snapshot()));
+	}
+
+	private int compare(ICell c1, ICell c2) {
+		int c = (alignment != null)
+			? alignment.position1(c1.getRowIndex()) - alignment.position2(c2.getRowIndex())
+			: c1.getRowIndex() - c2.getRowIndex();
+		if (c == 0) {
+			c = c1.getColumnIndex() - c2.getColumnIndex();
+		}
+		return c;
+	}
+
+	static boolean isWholeSheetIgnored(SheetIgnores ignores) {
+		return (ignores != null) && ignores.isWholeSheetIgnored();
+	}
+
+	static boolean isIgnored(SheetIgnores ignores, ICell cell) {
+		return (ignores != null)
+			&& (ignores.isRowIgnored(cell.getRowIndex())
+				|| ignores.isColIgnored(cell.getColumnIndex())
+				|| ignores.isCellIgnored(cell.getRowIndex(), cell.getColumnIndex()));
+	}
+
+	/**
+	 * The sheets of a workbook, in order.
+	 */
+	static List<ISheet> listSheets(ISpreadSheet ss) {
+		List<ISheet> sheets = new ArrayList<ISheet>();
+		for (Iterator<ISheet> it = ss.getSheetIterator(); it.hasNext();) {
+			sheets.add(it.next());
+		}
+		return sheets;
+	}
+
+	/**
+	 * The sheets of both workbooks to diff with each other, as {sheet1,
+	 * sheet2} with null for a sheet missing on one side. Sheets are paired
+	 * by index, but those of workbooks cut down to regions by name: the
+	 * sheets left out of one would shift the others. Sheets of the first
+	 * workbook come first, in its order, then those only in the second.
+	 */
+	static List<ISheet[]> pairSheets(ISpreadSheet ss1, ISpreadSheet ss2) {
+		List<ISheet> sheets1 = listSheets(ss1);
+		List<ISheet> sheets2 = listSheets(ss2);
+		List<ISheet[]> pairs = new ArrayList<ISheet[]>();
+		if ((ss1 instanceof SpreadSheetRegions) || (ss2 instanceof SpreadSheetRegions)) {
+			Map<String,ISheet> byName = new LinkedHashMap<String,ISheet>();
+			for (ISheet sheet2 : sheets2) {
+				byName.put(sheet2.getName(), sheet2);
+			}
+			for (ISheet sheet1 : sheets1) {
+				pairs.add(new ISheet[]{sheet1, byName.remove(sheet1.getName())});
+			}
+			for (ISheet sheet2 : byName.values()) {
+				pairs.add(new ISheet[]{null, sheet2});
+			}
+			return pairs;
+		}
+		for (int i = 0; i < Math.max(sheets1.size(), sheets2.size()); i++) {
+			pairs.add(new ISheet[]{(i < sheets1.size()) ? sheets1.get(i) : null, (i < sheets2.size()) ? sheets2.get(i) : null});
+		}
+		return pairs;
+	}
+}
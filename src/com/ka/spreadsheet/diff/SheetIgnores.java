@@ -1,7 +1,11 @@
 package com.ka.spreadsheet.diff;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.TreeSet;
 
 import static com.ka.spreadsheet.diff.SpreadSheetUtils.CELL_USER_TO_INTERNAL;
 import static com.ka.spreadsheet.diff.SpreadSheetUtils.COL_USER_TO_INTERNAL;
@@ -9,38 +13,144 @@ import static com.ka.spreadsheet.diff.SpreadSheetUtils.ROW_USER_TO_INTERNAL;
 
 public class SheetIgnores {
     
-    private static class Range {
-    	
-    	private final int[] low;
-        private final int[] high;
-        
-        Range(int low, int high){
-            this.low = new int[]{low};
-            this.high = new int[]{high};
+    /**
+     * Sorted, merged, non overlapping [low, high] intervals, looked up by
+     * binary search.
+     */
+    static class Intervals {
+
+        private final int[] lows;
+        private final int[] highs;
+
+        Intervals(List<int[]> ranges){
+            List<int[]> sorted = new ArrayList<int[]>();
+            for (int[] r : ranges){
+                if (r[0] <= r[1]) // a reversed range covers nothing
+                    sorted.add(r);
+            }
+            Collections.sort(sorted, new Comparator<int[]>(){
+                @Override
+                public int compare(int[] r1, int[] r2){
+                    return (r1[0] < r2[0]) ? -1 : ((r1[0] == r2[0]) ? 0 : 1);
+                }
+            });
+            int[] l = new int[sorted.size()];
+            int[] h = new int[sorted.size()];
+            int n = 0;
+            for (int[] r : sorted){
+                if ((n > 0) && ((long) r[0] <= (long) h[n-1] + 1)){
+                    h[n-1] = Math.max(h[n-1], r[1]);
+                } else {
+                    l[n] = r[0];
+                    h[n] = r[1];
+                    n++;
+                }
+            }
+            lows = Arrays.copyOf(l, n);
+            highs = Arrays.copyOf(h, n);
+        }
+
+        boolean contains(int x){
+            int i = Arrays.binarySearch(lows, x);
+            if (i >= 0)
+                return true;
+            i = -i - 2; // last interval starting below x
+            return (i >= 0) && (x <= highs[i]);
+        }
+
+        boolean isEmpty(){
+            return lows.length == 0;
+        }
+    }
+
+    /**
+     * Cell ranges cut into bands of rows, at the first row of every range
+     * and the row after its last one. The bands are the leaves of a segment
+     * tree: a range is kept at the few nodes which together cover its bands,
+     * the columns of the ranges at a node merged into one Intervals. A cell
+     * is in a range if its column is in one of the nodes on the way from
+     * the leaf of its band to the root, so each range takes O(log bands)
+     * nodes instead of being copied into every band it covers.
+     */
+    static class CellIntervals {
+
+        private final int[] bandStarts;
+        // node 1 is the root, the children of node i are 2i and 2i+1, the
+        // leaf of band b is leaves + b; null where no range is kept
+        private final Intervals[] nodeCols;
+        private final int leaves;
+
+        // each range is {row1, col1, row2, col2}
+        CellIntervals(List<int[]> ranges){
+            List<int[]> valid = new ArrayList<int[]>();
+            TreeSet<Integer> bounds = new TreeSet<Integer>();
+            for (int[] r : ranges){
+                if ((r[0] <= r[2]) && (r[1] <= r[3])){
+                    valid.add(r);
+                    bounds.add(r[0]);
+                    bounds.add(r[2] + 1);
+                }
+            }
+            bandStarts = new int[bounds.size()];
+            int n = 0;
+            for (Integer bound : bounds){
+                bandStarts[n++] = bound;
+            }
+            // the last bound only closes the last band
+            int bands = Math.max(0, bandStarts.length - 1);
+            int size = 1;
+            while (size < bands){
+                size *= 2;
+            }
+            leaves = size;
+            List<List<int[]>> cols = new ArrayList<List<int[]>>(Collections.<List<int[]>>nCopies(2 * size, null));
+            for (int[] r : valid){
+                int lo = Arrays.binarySearch(bandStarts, r[0]) + size;
+                int hi = Arrays.binarySearch(bandStarts, r[2] + 1) + size;
+                for (; lo < hi; lo >>= 1, hi >>= 1){
+                    if ((lo & 1) != 0){
+                        addCols(cols, lo++, r);
+                    }
+                    if ((hi & 1) != 0){
+                        addCols(cols, --hi, r);
+                    }
+                }
+            }
+            nodeCols = new Intervals[2 * size];
+            for (int i=1; i<nodeCols.length; i++){
+                if (cols.get(i) != null){
+                    nodeCols[i] = new Intervals(cols.get(i));
+                }
+            }
         }
-        
-        Range(int low1, int low2, int high1, int high2){
-            this.low = new int[]{low1, low2};
-            this.high = new int[]{high1, high2};
+
+        private static void addCols(List<List<int[]>> cols, int node, int[] r){
+            if (cols.get(node) == null){
+                cols.set(node, new ArrayList<int[]>());
+            }
+            cols.get(node).add(new int[]{r[1], r[3]});
         }
-        
-        boolean lies_between(int ... x){
-            for (int i=0; i<x.length; i++){
-                if (!((low[i] <= x[i]) && (x[i] <= high[i])))
-                    return false;
+
+        boolean contains(int row, int col){
+            int b = Arrays.binarySearch(bandStarts, row);
+            if (b < 0)
+                b = -b - 2;
+            if ((b < 0) || (b >= bandStarts.length - 1))
+                return false;
+            for (int i = leaves + b; i >= 1; i >>= 1){
+                if ((nodeCols[i] != null) && nodeCols[i].contains(col))
+                    return true;
             }
-            return true;
+            return false;
         }
     }
 
+    private String spec;
     private boolean completeIgnore;
-    private boolean rowIgnoresPresent;
-    private boolean colIgnoresPresent;
-    private boolean cellIgnoresPresent;
     private String sheetName;
-    private List<Range> rowIgnores;
-    private List<Range> colIgnores;
-    private List<Range> cellIgnores;
+    private Intervals rowIgnores;
+    private Intervals colIgnores;
+    private CellIntervals cellIgnores;
     
     public String sheetName(){
         return sheetName;
@@ -51,63 +161,66 @@ public class SheetIgnores {
     }
     
     public boolean isRowIgnored(int row){
-        return rowIgnoresPresent && isIgnored(rowIgnores, row);
+        return (rowIgnores != null) && rowIgnores.contains(row);
     }
     
     public boolean isColIgnored(int col){
-        return colIgnoresPresent && isIgnored(colIgnores, col);
+        return (colIgnores != null) && colIgnores.contains(col);
     }
     
     public boolean isCellIgnored(int row, int col){
-        return cellIgnoresPresent && isIgnored(cellIgnores, row, col);
+        return (cellIgnores != null) && cellIgnores.contains(row, col);
     }
     
-    public boolean isIgnored(List<Range> rngs, int ... pt){
-        for (Range r : rngs){
-            if (r.lies_between(pt))
-                return true;
-        }
-        return false;
+    /**
+     * Ignores are equal if they were given by the same spec.
+     */
+    @Override
+    public boolean equals(Object o){
+        return (o instanceof SheetIgnores) && spec.equals(((SheetIgnores) o).spec);
     }
-    
+
+    @Override
+    public int hashCode(){
+        return spec.hashCode();
+    }
+
     public static SheetIgnores newSheetIgnore(String val){
         return new SheetIgnores().parse(val);
     }
     
     // Assume val is not null & non-empty
     private SheetIgnores parse(String val){
+        spec = val;
         String[] parts = val.split(":");
         sheetName = parts[0];
         completeIgnore = parts.length == 1;
         if ((parts.length > 1) && (!parts[1].isEmpty())){
-            rowIgnoresPresent = true;
-            rowIgnores = formRowIgnores(parts[1]);
+            rowIgnores = new Intervals(formRowIgnores(parts[1]));
         }
         if ((parts.length > 2) && (!parts[2].isEmpty())){
-            colIgnoresPresent = true;
-            colIgnores = formColIgnores(parts[2]);
+            colIgnores = new Intervals(formColIgnores(parts[2]));
         }
         if ((parts.length > 3) && (!parts[3].isEmpty())){
-            cellIgnoresPresent = true;
-            cellIgnores = formCellIgnores(parts[3]);
+            cellIgnores = new CellIntervals(formCellIgnores(parts[3]));
         }
         if (parts.length > 4)
             throw new IllegalArgumentException("Illegal Sheet Ignores argument " + val);
         return this;
     }
     
-    private static List<Range> formRowIgnores(String val){
-        List<Range> ret = new ArrayList<Range>();
+    private static List<int[]> formRowIgnores(String val){
+        List<int[]> ret = new ArrayList<int[]>();
         if (val != null){
             for (String rng : val.split(",")){
                 String[] rngs = rng.split("-");
                 if(rngs.length == 1){ // Single row
                     int row = ROW_USER_TO_INTERNAL(Integer.parseInt(rngs[0]));
-                    ret.add(new Range(row, row));
+                    ret.add(new int[]{row, row});
                 } else if (rngs.length == 2){
                     int row1 = ROW_USER_TO_INTERNAL(Integer.parseInt(rngs[0]));
                     int row2 = ROW_USER_TO_INTERNAL(Integer.parseInt(rngs[1]));
-                    ret.add(new Range(row1, row2));
+                    ret.add(new int[]{row1, row2});
                 } else {
                     throw new IllegalArgumentException("Illegal row ignore specifier " + val);
                 }
@@ -116,18 +229,18 @@ public class SheetIgnores {
         return ret;
     }
     
-    private static List<Range> formColIgnores(String val){
-        List<Range> ret = new ArrayList<Range>();
+    static List<int[]> formColIgnores(String val){
+        List<int[]> ret = new ArrayList<int[]>();
         if (val != null){
             for (String rng : val.split(",")){
                 String[] rngs = rng.split("-");
                 if(rngs.length == 1){ // Single col
                     int col = COL_USER_TO_INTERNAL(rngs[0]);
-                    ret.add(new Range(col, col));
+                    ret.add(new int[]{col, col});
                 } else if (rngs.length == 2){
                     int col1 = COL_USER_TO_INTERNAL(rngs[0]);
                     int col2 = COL_USER_TO_INTERNAL(rngs[1]);
-                    ret.add(new Range(col1, col2));
+                    ret.add(new int[]{col1, col2});
                 } else {
                     throw new IllegalArgumentException("Illegal col ignore specifier " + val);
                 }
@@ -136,18 +249,18 @@ public class SheetIgnores {
         return ret;
     }
     
-    private static List<Range> formCellIgnores(String val){
-        List<Range> ret = new ArrayList<Range>();
+    private static List<int[]> formCellIgnores(String val){
+        List<int[]> ret = new ArrayList<int[]>();
         if (val != null){
             for (String rng : val.split(",")){
                 String[] rngs = rng.split("-");
                 if(rngs.length == 1){ // Single cell
                     int[] rowcol = CELL_USER_TO_INTERNAL(rngs[0]);
-                    ret.add(new Range(rowcol[0], rowcol[1], rowcol[0], rowcol[1]));
+                    ret.add(new int[]{rowcol[0], rowcol[1], rowcol[0], rowcol[1]});
                 } else if (rngs.length == 2){
                     int[] rowcol1 = CELL_USER_TO_INTERNAL(rngs[0]);
                     int[] rowcol2 = CELL_USER_TO_INTERNAL(rngs[1]);
-                    ret.add(new Range(rowcol1[0], rowcol1[1], rowcol2[0], rowcol2[1]));
+                    ret.add(new int[]{rowcol1[0], rowcol1[1], rowcol2[0], rowcol2[1]});
                 } else {
                     throw new IllegalArgumentException("Illegal cell ignore specifier " + val);
                 }
@@ -0,0 +1,114 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.ka.spreadsheet.diff.SpreadSheetUtils.CELL_USER_TO_INTERNAL;
+
+/**
+ * The parts of a sheet to diff, the opposite of {@link SheetIgnores}. Given
+ * to --only as &lt;sheet-name&gt; for the whole sheet, or as
+ * &lt;sheet-name&gt;!&lt;cell&gt;:&lt;cell&gt; like Summary!A1:H200 for a block
+ * of cells; the blocks of a sheet add up. Sheets not named are not diffed.
+ *
+ * The readers are handed the regions too, see {@link SpreadSheetRegions}:
+ * a sheet not asked for is never opened, and a sheet is read only up to the
+ * last row asked for.
+ */
+public class SheetRegions {
+
+	private final String sheetName;
+	private final boolean wholeSheet;
+	private final SheetIgnores.CellIntervals cells;
+	private final int lastRow;
+	private final int lastCol;
+
+	// each range is {row1, col1, row2, col2}, none if the whole sheet is asked for
+	private SheetRegions(String sheetName, List<int[]> ranges) {
+		this.sheetName = sheetName;
+		this.wholeSheet = ranges.isEmpty();
+		this.cells = wholeSheet ? null : new SheetIgnores.CellIntervals(ranges);
+		int row = wholeSheet ? Integer.MAX_VALUE : -1;
+		int col = wholeSheet ? Integer.MAX_VALUE : -1;
+		for (int[] r : ranges) {
+			row = Math.max(row, r[2]);
+			col = Math.max(col, r[3]);
+		}
+		this.lastRow = row;
+		this.lastCol = col;
+	}
+
+	/**
+	 * The regions of every sheet named in specs, by sheet name. Each spec is
+	 * a comma separated list of regions.
+	 */
+	public static Map<String,SheetRegions> newSheetRegions(List<String> specs) {
+		Map<String,List<int[]>> ranges = new LinkedHashMap<String,List<int[]>>();
+		for (String spec : specs) {
+			for (String region : spec.split(",")) {
+				addRegion(ranges, region);
+			}
+		}
+		Map<String,SheetRegions> ret = new HashMap<String,SheetRegions>();
+		for (Map.Entry<String,List<int[]>> entry : ranges.entrySet()) {
+			ret.put(entry.getKey(), new SheetRegions(entry.getKey(), entry.getValue()));
+		}
+		return ret;
+	}
+
+	private static void addRegion(Map<String,List<int[]>> ranges, String region) {
+		int bang = region.lastIndexOf('!');
+		String sheetName = (bang < 0) ? region : region.substring(0, bang);
+		if (sheetName.isEmpty()) {
+			throw new IllegalArgumentException("Illegal region specifier " + region);
+		}
+		List<int[]> sheetRanges = ranges.get(sheetName);
+		if (sheetRanges == null) {
+			sheetRanges = new ArrayList<int[]>();
+			ranges.put(sheetName, sheetRanges);
+		} else if (sheetRanges.isEmpty()) {
+			return; // the whole sheet is asked for already
+		}
+		if (bang < 0) {
+			sheetRanges.clear();
+			return;
+		}
+		String[] cells = region.substring(bang + 1).toUpperCase().split(":");
+		if (cells.length > 2) {
+			throw new IllegalArgumentException("Illegal region specifier " + region);
+		}
+		int[] rowcol1 = CELL_USER_TO_INTERNAL(cells[0]);
+		int[] rowcol2 = (cells.length == 2) ? CELL_USER_TO_INTERNAL(cells[1]) : rowcol1;
+		sheetRanges.add(new int[]{Math.min(rowcol1[0], rowcol2[0]), Math.min(rowcol1[1], rowcol2[1]),
+			Math.max(rowcol1[0], rowcol2[0]), Math.max(rowcol1[1], rowcol2[1])});
+	}
+
+	public String sheetName() {
+		return sheetName;
+	}
+
+	public boolean isWholeSheet() {
+		return wholeSheet;
+	}
+
+	public boolean contains(int row, int col) {
+		return wholeSheet || cells.contains(row, col);
+	}
+
+	/**
+	 * The last row asked for, Integer.MAX_VALUE for the whole sheet.
+	 */
+	public int lastRow() {
+		return lastRow;
+	}
+
+	/**
+	 * The last column asked for, Integer.MAX_VALUE for the whole sheet.
+	 */
+	public int lastCol() {
+		return lastCol;
+	}
+}
@@ -7,6 +7,12 @@ public interface SpreadSheetDiffCallback {
     void reportDiffCell(CellPos c1, CellPos c2);
     
     void reportExtraCell(boolean inFirstSpreadSheet, CellPos c);
+
+    /**
+     * A whole row (zero based index) has no counterpart in the other sheet,
+     * reported only when rows are aligned
+     */
+    void reportExtraRow(boolean inFirstSpreadSheet, String sheetName, int rowIndex);
     
     void reportWorkbooksDiffer(boolean differ, File file1, File file2);
 
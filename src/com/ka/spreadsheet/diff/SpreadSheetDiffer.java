@@ -1,24 +1,64 @@
 package com.ka.spreadsheet.diff;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
+import org.apache.poi.EncryptedDocumentException;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.ss.usermodel.WorkbookFactory;
-import org.odftoolkit.simple.SpreadsheetDocument;
 
 
 public class SpreadSheetDiffer {
 
     static String usage(){
-        return    "Usage> excel_cmp <file1> <file2> [--ignore1 <sheet-ignore-spec> <sheet-ignore-spec> ..] [--ignore2 <sheet-ignore-spec> <sheet-ignore-spec> ..]" + "\n"
+        return    "Usage> excel_cmp <file1> <file2> [--ignore1 <sheet-ignore-spec> <sheet-ignore-spec> ..] [--ignore2 <sheet-ignore-spec> <sheet-ignore-spec> ..] [--ignore-file <file>] [--abs-tol <x>] [--rel-tol <x>] [--diff-style] [--threads <n>] [--range-summary] [--format text|jsonl|csv] [--gzip] [--align-rows] [--key <sheet-key-spec> <sheet-key-spec> ..] [--key-memory <mb>] [--cache <dir>] [--stats] [--quiet] [--max-diffs <n>] [--only <sheet-region-spec> <sheet-region-spec> ..] [--values | --evaluate]" + "\n"
+                + "       excel_cmp --baseline <file> <candidate> <candidate> .. [--report-dir <dir>] [options as above]" + "\n"
+                + "       excel_cmp --dir-a <dir> --dir-b <dir> [--report-dir <dir>] [--batch-memory <mb>] [options as above]" + "\n"
+                + "       excel_cmp --server [--port <n>] [--threads <n>] [--server-memory <mb>] [--request-memory <mb>]" + "\n"
                 + "\n"
                 + "Notes: * Prints all diffs & extra cells on stdout" + "\n"
                 + "       * Process exits with 0 if workbooks match, 1 otherwise" + "\n"
                 + "       * Works with both xls, xlsx, ods. You may compare any of xls, xlsx, ods with each other" + "\n"
                 + "       * Compares only cell \"contents\". Formatting, macros are not diffed" + "\n"
+                + "       * Using --abs-tol / --rel-tol numbers match if within the absolute / relative tolerance" + "\n"
+                + "       * Using --diff-style cells with equal contents are also diffed for formatting" + "\n"
                 + "       * Using --ignore1 & --ignore2 (optional) you may tell the diff to ignore cells" + "\n"
                 + "       * Give one and only one <sheet-ignore-spec> for a sheet" + "\n"
+                + "       * Using --ignore-file ignores are read from <file>: one --ignore1, --ignore2 or <sheet-ignore-spec> per line" + "\n"
+                + "       * Using --threads sheets are diffed on <n> threads, the output is the same as with one thread" + "\n"
+                + "       * Using --range-summary the summary lists rows and columns per sheet as sorted ranges with their diff counts like [1-50 (80), 60 (1)]" + "\n"
+                + "       * Using --format jsonl / csv one record is printed per diff (kind,sheet,row,col,value1,value2,style), no summary" + "\n"
+                + "       * Using --gzip the output is gzipped" + "\n"
+                + "       * Using --align-rows inserted / deleted rows are found and reported as extra rows, other rows are diffed with their counterpart" + "\n"
+                + "       * Using --key rows of a sheet are matched by the values in its key columns, whatever their order; rows without a match are extra rows" + "\n"
+                + "       * Using --key-memory rows of a keyed sheet beyond <mb> MB are spilled to temp files (default: a quarter of the heap, shared by the sheets diffed at once)" + "\n"
+                + "       * Using --cache workbooks are snapshot to <dir> when first read and later mapped from there instead of parsed, not with --diff-style" + "\n"
+                + "       * Using --stats times and counts of loading and of every sheet are printed on stderr, and sent to JDK Flight Recorder where there is one" + "\n"
+                + "       * Using --quiet nothing is printed and the diff stops at the first difference, only the exit code tells" + "\n"
+                + "       * Using --max-diffs the diff stops after <n> diffs, extra cells / rows and style diffs, the report holds the first <n>" + "\n"
+                + "       * Using --only just the sheets and cells given are read and diffed, other sheets are never opened" + "\n"
+                + "       * Using --values formula cells are diffed by the results cached in the files instead of their formulas" + "\n"
+                + "       * Using --evaluate formulas of xls / xlsx files are computed again and their results diffed, ods files give their cached results" + "\n"
+                + "       * Using --baseline <file> is read once and diffed with every candidate, on --threads threads (default: one per processor)" + "\n"
+                + "         Each report goes to <dir>/<candidate file name>.txt (.jsonl, .csv; .gz), one line per candidate is printed" + "\n"
+                + "         Process exits with 0 if all candidates match, 1 if any differs, -1 if any diff failed" + "\n"
+                + "       * Using --dir-a / --dir-b the xls, xlsx, xlsm and ods files of both trees are paired by relative path and diffed on --threads threads" + "\n"
+                + "         Pairs are started while their estimated memory fits in <mb> MB (default: three quarters of the heap)" + "\n"
+                + "         One line with the exit status of every pair and a summary are printed, reports go to --report-dir if given" + "\n"
+                + "       * Using --server diffs are served on loopback port <n> (default 17171) to excel_cmp_client, which takes the same arguments as excel_cmp" + "\n"
+                + "         Requests run on <n> threads while their estimated memory fits in --server-memory, ones above --request-memory are refused" + "\n"
+                + "         Only clients of the same user are served, they prove they hold the key the server writes to ~/.excel_cmp/server-<n>.key" + "\n"
                 + "\n"
                 + "Sheet Ignore Spec:  <sheet-name>:<row-ignore-spec>:<column-ignore-spec>:<cell-ignore-spec>" + "\n"
                 + "                    * Everything except <sheet-name> is optional" + "\n"
@@ -26,6 +66,13 @@ public class SpreadSheetDiffer {
                 + "                    * Any cell satisfying any ignore spec in the sheet (row, col, or cell) will be ignored in diff" + "\n"
                 + "                    * You may provide only <cell-ignore-spec> as - <sheet-name>:::<cell-ignore-spec>" + "\n"
                 + "\n"
+                + "Sheet Region Spec:  <sheet-name>!<cell>:<cell>" + "\n"
+                + "                    * A block of cells like Summary!A1:H200, or just <sheet-name> for the whole sheet" + "\n"
+                + "                    * Several regions may be given comma separated, the regions of a sheet add up" + "\n"
+                + "\n"
+                + "Sheet Key Spec:     <sheet-name>:<column-ignore-spec>" + "\n"
+                + "                    * The key columns of the sheet, as Sheet1:A,C" + "\n"
+                + "\n"
                 + "Row Ignore Spec:    <comma sep list of row or row-range>" + "\n"
                 + "                    * Row numbers begin from 1" + "\n"
                 + "                    * Range of rows may be provide as: 1-10" + "\n"
@@ -52,17 +99,39 @@ public class SpreadSheetDiffer {
      */
     
     public static void main(String[] args) {
-    	int ret = doDiff(args);
+    	int ret = ((args.length > 0) && "--server".equals(args[0])) ? DiffServer.serve(args) : doDiff(args);
     	System.exit(ret);
     }
     
     public static int doDiff(String[] args) {
+    	if ((args.length > 0) && "--baseline".equals(args[0])) {
+    		return doBaselineDiff(args);
+    	}
+    	if (hasOption(args, "--dir-a") || hasOption(args, "--dir-b")) {
+    		return doBatchDiff(args);
+    	}
     	int ret = -1;
+    	ReportSpreadSheetDiffCallback diffCallback = null;
     	try {
-    		ret = doDiff(args, new StdoutSpreadSheetDiffCallback());
+    		diffCallback = newDiffCallback(args);
+    		ret = doDiff(args, diffCallback);
     	} catch (Exception e) {
+    		if (diffCallback != null) {
+    			// the report so far goes out before the error
+    			ReportSpreadSheetDiffCallback toClose = diffCallback;
+    			diffCallback = null;
+    			try {
+    				toClose.close();
+    			} catch (RuntimeException closeFailure) {
+    				// the diff failure is the one to tell
+    			}
+    		}
     		//e.printStackTrace(System.err);
     		System.err.println("Diff failed: " + e.getMessage());
+    	} finally {
+    		if (diffCallback != null) {
+    			diffCallback.close();
+    		}
     	}
     	return ret;
     }
@@ -79,173 +148,457 @@ public class SpreadSheetDiffer {
         	return -1;
         }
         
-        ISpreadSheet ss1 = loadSpreadSheet(file1);
-        ISpreadSheet ss2 = loadSpreadSheet(file2);
-        
+        args = expandIgnoreFiles(args);
+        return diff(file1, null, file2, args, parseThreads(args, 1), 1, diffCallback);
+    }
+
+    /**
+     * Diffs one baseline with many candidates, see {@link BaselineSpreadSheetDiffer}.
+     */
+    private static int doBaselineDiff(String[] args) {
+    	int i = 1;
+    	while ((i < args.length) && !args[i].startsWith("--")) {
+    		i++;
+    	}
+    	if (i < 3) {
+    		System.out.println(usage());
+    		return -1;
+    	}
+    	List<File> candidates = new ArrayList<File>();
+    	for (int j = 2; j < i; j++) {
+    		candidates.add(new File(args[j]));
+    	}
+    	try {
+    		String[] options = expandIgnoreFiles(Arrays.copyOfRange(args, i, args.length));
+    		File reportDir = new File(".");
+    		for (int j = 0; j < options.length - 1; j++) {
+    			if ("--report-dir".equals(options[j])) {
+    				reportDir = new File(options[j + 1]);
+    			}
+    		}
+    		int threads = parseThreads(options, Runtime.getRuntime().availableProcessors());
+    		return new BaselineSpreadSheetDiffer(new File(args[1]), candidates, options, threads, reportDir).diff();
+    	} catch (Exception e) {
+    		System.err.println("Diff failed: " + e.getMessage());
+    		return -1;
+    	}
+    }
+
+    /**
+     * Diffs the workbooks of two directory trees, see {@link BatchSpreadSheetDiffer}.
+     */
+    private static int doBatchDiff(String[] args) {
+    	try {
+    		args = expandIgnoreFiles(args);
+    		File dirA = null, dirB = null, reportDir = null;
+    		long memory = Runtime.getRuntime().maxMemory() / 4 * 3;
+    		for (int i = 0; i < args.length - 1; i++) {
+    			if ("--dir-a".equals(args[i])) {
+    				dirA = new File(args[i + 1]);
+    			} else if ("--dir-b".equals(args[i])) {
+    				dirB = new File(args[i + 1]);
+    			} else if ("--report-dir".equals(args[i])) {
+    				reportDir = new File(args[i + 1]);
+    			} else if ("--batch-memory".equals(args[i])) {
+    				memory = Long.parseLong(args[i + 1]) << 20;
+    			}
+    		}
+    		if ((dirA == null) || (dirB == null)) {
+    			System.out.println(usage());
+    			return -1;
+    		}
+    		int threads = parseThreads(args, Runtime.getRuntime().availableProcessors());
+    		return new BatchSpreadSheetDiffer(dirA, dirB, args, threads, memory, reportDir).diff();
+    	} catch (Exception e) {
+    		System.err.println("Diff failed: " + e.getMessage());
+    		return -1;
+    	}
+    }
+
+    /**
+     * Diffs file1 and file2 with the options in args and reports to
+     * diffCallback. ss1 is the workbook of file1 if it is loaded already,
+     * left open for the caller, otherwise null. concurrentDiffs is the number of diffs run at the same
+     * time as this one, which share the key memory.
+     */
+    static int diff(File file1, ISpreadSheet ss1, File file2, String[] args, int threads, int concurrentDiffs,
+                    SpreadSheetDiffCallback diffCallback) throws Exception {
         Map<String,SheetIgnores> sheetIgnores1 = parseSheetIgnores(args, "--ignore1");
         Map<String,SheetIgnores> sheetIgnores2 = parseSheetIgnores(args, "--ignore2");
+        ValueComparator values = new ValueComparator(parseTolerance(args, "--abs-tol"), parseTolerance(args, "--rel-tol"));
+        boolean alignRows = hasOption(args, "--align-rows");
+        Map<String,RowKeys> sheetKeys = parseSheetKeys(args, parseKeyMemory(args), threads, concurrentDiffs);
+        File cacheDir = parseCacheDir(args);
+        DiffStats stats = hasOption(args, "--stats") ? new DiffStats(file1, file2) : null;
+        DiffLimit limit = parseDiffLimit(args);
+        Map<String,SheetRegions> regions = parseSheetRegions(args);
+        FormulaMode formulas = parseFormulaMode(args);
 
-        SpreadSheetIterator ssi1 = new SpreadSheetIterator(ss1, sheetIgnores1);
-        SpreadSheetIterator ssi2 = new SpreadSheetIterator(ss2, sheetIgnores2);
-        
-        boolean isDiff = false;
-        CellPos c1 = null, c2 = null;
-        while (true){
-            if ((c1==null) && ssi1.hasNext()) c1 = ssi1.next();
-            if ((c2==null) && ssi2.hasNext()) c2 = ssi2.next();
-            
-            if ((c1!=null) && (c2!=null)){
-                int c = c1.compareTo(c2);
-                if (c == 0){
-                    if (!c1.getStringValue().equals(c2.getStringValue())){
-                        isDiff = true;
-                        diffCallback.reportDiffCell(c1, c2);
-                    } else {
-                        try {
-                            styleCompare(c1, c2, ss1, ss2);
-                        } catch (Exception e) {
-                            isDiff = true;
-                            diffCallback.reportStyleDiff(e.getMessage(), c1, c2);
-                        }
+        // only zip directories are read here, identical workbooks ignored alike are not loaded at all
+        UnchangedSheets unchanged = new UnchangedSheets(file1, file2);
+        if (sheetIgnores1.equals(sheetIgnores2) && unchanged.isIdentical()) {
+            diffCallback.reportWorkbooksDiffer(false, file1, file2);
+            printStats(stats);
+            return 0;
+        }
+
+        boolean closeSs1 = (ss1 == null);
+        ISpreadSheet ss2 = null;
+        try {
+            if (ss1 != null) {
+                ss2 = loadSpreadSheet(file2, cacheDir, regions, formulas, threads, stats);
+            } else {
+                // both workbooks are loaded at the same time, file1 on this thread
+                FutureTask<ISpreadSheet> load2 = startLoading(file2, cacheDir, regions, formulas, threads, stats);
+                try {
+                    ss1 = loadSpreadSheet(file1, cacheDir, regions, formulas, threads, stats);
+                } catch (Exception e) {
+                    // a workbook loaded already is closed, one still loading closes itself
+                    if (!load2.cancel(true)) {
+                        closeLoaded(load2);
                     }
-                    c1 = c2 = null;
-                }
-                else if (c < 0){
-                    isDiff = true;
-                    diffCallback.reportExtraCell(true, c1);
-                    c1 = null;
-                }
-                else {
-                    isDiff = true;
-                    diffCallback.reportExtraCell(false, c2);
-                    c2 = null;
+                    throw e;
                 }
+                ss2 = getSpreadSheet(load2);
+            }
+            if (regions != null) {
+                ss1 = new SpreadSheetRegions(ss1, regions);
+                ss2 = new SpreadSheetRegions(ss2, regions);
+            }
+
+            StyleEquivalence styles = hasOption(args, "--diff-style") ? new StyleEquivalence(ss1, ss2) : null;
+
+            boolean isDiff;
+            if (threads > 1) {
+                isDiff = new ParallelSpreadSheetDiffer(ss1, ss2, sheetIgnores1, sheetIgnores2, values, styles, unchanged, alignRows, sheetKeys, stats, limit, threads)
+                    .diff(diffCallback);
             } else {
+                isDiff = diffSheets(ss1, ss2, sheetIgnores1, sheetIgnores2, values, styles, unchanged, alignRows, sheetKeys, stats, limit,
+                        (limit != null) ? limit.limited(diffCallback) : diffCallback);
+            }
+
+            diffCallback.reportWorkbooksDiffer(isDiff, file1, file2);
+            printStats(stats);
+
+            return isDiff ? 1 : 0;
+        } finally {
+            if (ss2 != null) {
+                ss2.close();
+            }
+            if (closeSs1 && (ss1 != null)) {
+                ss1.close();
+            }
+        }
+    }
+
+    /**
+     * Diffs the sheets of both workbooks pair by pair, in sheet order (see
+     * {@link SheetDiffer#pairSheets(ISpreadSheet, ISpreadSheet)}), and
+     * reports every difference, returns true if there was any. Styles are
+     * diffed only if styles is not null, pairs found unchanged are skipped.
+     * Rows of sheets with key columns are matched by key. Pairs are counted
+     * in stats unless it is null. Once limit, if any, is reached the pairs
+     * left are not diffed.
+     */
+    static boolean diffSheets(ISpreadSheet ss1, ISpreadSheet ss2,
+                              Map<String,SheetIgnores> sheetIgnores1, Map<String,SheetIgnores> sheetIgnores2,
+                              ValueComparator values, StyleEquivalence styles, UnchangedSheets unchanged,
+                              boolean alignRows, Map<String,RowKeys> sheetKeys, DiffStats stats, DiffLimit limit,
+                              SpreadSheetDiffCallback diffCallback) {
+        boolean isDiff = false;
+        for (ISheet[] pair : SheetDiffer.pairSheets(ss1, ss2)){
+            if ((limit != null) && limit.isReached()){
                 break;
             }
+            ISheet sheet1 = pair[0];
+            ISheet sheet2 = pair[1];
+            SheetIgnores ignores1 = sheetIgnores(sheetIgnores1, sheet1);
+            SheetIgnores ignores2 = sheetIgnores(sheetIgnores2, sheet2);
+            if ((unchanged != null) && unchanged.isUnchanged(sheet1, ignores1, sheet2, ignores2)) {
+                continue;
+            }
+            isDiff |= diffSheetPair(sheet1, sheet2, ignores1, ignores2, sheetKeys, values, styles, alignRows, stats, limit, diffCallback);
         }
-        if ((c1!=null) && (c2==null)){
-            do {
-                isDiff = true;
-                diffCallback.reportExtraCell(true, c1);
-                c1 = ssi1.hasNext() ? ssi1.next() : null;
-            } while (c1 != null);
+        return isDiff;
+    }
+
+    /**
+     * Diffs one pair of sheets, by key if sheet1 has key columns and neither
+     * sheet is missing or wholly ignored. The pair is counted in stats
+     * unless it is null, and stops once limit is reached unless it is null;
+     * diffCallback must be limited by it.
+     */
+    static boolean diffSheetPair(ISheet sheet1, ISheet sheet2, SheetIgnores ignores1, SheetIgnores ignores2,
+                                 Map<String,RowKeys> sheetKeys, ValueComparator values, StyleEquivalence styles,
+                                 boolean alignRows, DiffStats stats, DiffLimit limit, SpreadSheetDiffCallback diffCallback) {
+        DiffStats.Sheet sheetStats = null;
+        if (stats != null) {
+            sheetStats = stats.startSheet(sheet1, sheet2);
+            diffCallback = sheetStats.timed(diffCallback);
         }
-        else if ((c1==null) && (c2!=null)){
-            do {
-                isDiff = true;
-                diffCallback.reportExtraCell(false, c2);
-                c2 = ssi2.hasNext() ? ssi2.next() : null;
-            } while (c2 != null);
+        try {
+            RowKeys keys = (sheet1 == null) ? null : sheetKeys.get(sheet1.getName());
+            if ((keys != null) && (sheet2 != null)
+                    && !SheetDiffer.isWholeSheetIgnored(ignores1) && !SheetDiffer.isWholeSheetIgnored(ignores2)) {
+                return new KeyedSheetDiffer(sheet1, sheet2, ignores1, ignores2, keys, values, styles, sheetStats, limit, diffCallback).diff();
+            }
+            return new SheetDiffer(sheet1, sheet2, ignores1, ignores2, values, styles, alignRows, sheetStats, limit, diffCallback).diff();
+        } finally {
+            if (sheetStats != null) {
+                sheetStats.end();
+            }
         }
-        if ((c1!=null) || (c2!=null)){
-            throw new IllegalStateException("Something wrong");
+    }
+
+    /**
+     * Prints the stats of a diff to stderr, out of the way of the report.
+     */
+    private static void printStats(DiffStats stats) {
+        if (stats != null) {
+            stats.print(System.err);
         }
-        
-        diffCallback.reportWorkbooksDiffer(isDiff, file1, file2);
-        
-        return isDiff ? 1 : 0;
     }
 
-    private static void styleCompare(CellPos c1, CellPos c2, ISpreadSheet ss1, ISpreadSheet ss2) {
-        ICellStyle s1 = c1.getCell().getCellStyle();
-        ICellStyle s2 = c2.getCell().getCellStyle();
+    static SheetIgnores sheetIgnores(Map<String,SheetIgnores> sheetIgnores, ISheet sheet){
+        return (sheet == null) ? null : sheetIgnores.get(sheet.getName());
+    }
 
-        try {
-            verifyStyle(s1.getLocked(), s2.getLocked(), "locked");
-            verifyStyle(s1.getAlignment(), s2.getAlignment(), "alignment");
-            verifyStyle(s1.getBorderBottom(), s2.getBorderBottom(), "borderBottom");
-            verifyStyle(s1.getBorderLeft(), s2.getBorderLeft(), "borderLeft");
-            verifyStyle(s1.getBorderRight(), s2.getBorderRight(), "borderRight");
-            verifyStyle(s1.getBorderTop(), s2.getBorderTop(), "borderTop");
-            verifyStyle(s1.getWrapText(), s2.getWrapText(), "wrapText");
-            verifyStyle(s1.getVerticalAlignment(), s2.getVerticalAlignment(), "verticalAlignment");
-            verifyStyle(s1.getTopBorderColor(), s2.getTopBorderColor(), "topBorderColor");
-            verifyStyle(s1.getRotation(), s2.getRotation(), "rotation");
-            verifyStyle(s1.getRightBorderColor(), s2.getRightBorderColor(), "rightBorderColor");
-            verifyStyle(s1.getLeftBorderColor(), s2.getLeftBorderColor(), "leftBorderColor");
-            verifyStyle(s1.getIndention(), s2.getIndention(), "indention");
-            verifyStyle(s1.getHidden(), s2.getHidden(), "hidden");
-            verifyStyle(s1.getFillPattern(), s2.getFillPattern(), "fillPattern");
-            verifyStyle(s1.getFillForegroundColorColor(), s2.getFillForegroundColorColor(), "fillForegroundColorColor");
-            verifyStyle(s1.getFillForegroundColor(), s2.getFillForegroundColor(), "fillForegroundColor");
-            verifyStyle(s1.getDataFormatString(), s2.getDataFormatString(), "dataFormatString");
-            verifyStyle(s1.getBottomBorderColor(), s2.getBottomBorderColor(), "bottomBordercolor");
-            verifyStyle(s1.getFillBackgroundColor(), s2.getFillBackgroundColor(), "fillBackgroundColor");
-            verifyStyle(s1.getFillBackgroundColorColor(), s2.getFillBackgroundColorColor(), "fillBackgroundColorColor");
-
-        } catch (IllegalStateException e) {
-            throw new IllegalStateException("Styles of Cell " + c1.getCellPosition() + " does not match " + c2.getCellPosition() + " (" + e.getMessage() + ")");
+    /**
+     * The callback printing to stdout in the format asked for by --format.
+     */
+    private static ReportSpreadSheetDiffCallback newDiffCallback(String[] args){
+        return newDiffCallback(args, System.out);
+    }
+
+    /**
+     * The callback writing to out in the format asked for by --format.
+     */
+    static ReportSpreadSheetDiffCallback newDiffCallback(String[] args, OutputStream out){
+        if (hasOption(args, "--quiet")){
+            return new QuietSpreadSheetDiffCallback(out);
+        }
+        String format = parseFormat(args);
+        boolean gzip = hasOption(args, "--gzip");
+        if ("text".equals(format)){
+            StdoutSpreadSheetDiffCallback diffCallback = new StdoutSpreadSheetDiffCallback(out, gzip);
+            diffCallback.setRangeSummary(hasOption(args, "--range-summary"));
+            return diffCallback;
+        } else if ("jsonl".equals(format)){
+            return new JsonLinesSpreadSheetDiffCallback(out, gzip);
+        } else if ("csv".equals(format)){
+            return new CsvSpreadSheetDiffCallback(out, gzip);
         }
+        throw new IllegalArgumentException("Unknown format " + format);
+    }
 
-        if (c1.getStringValue().trim().equals("") && c2.getStringValue().trim().equals(""))
-            return;
+    static String parseFormat(String[] args){
+        String format = "text";
+        for (int i=0; i<args.length-1; i++){
+            if ("--format".equals(args[i])){
+                format = args[i+1];
+            }
+        }
+        return format;
+    }
 
-        IFont f1;
-        try {
-            f1 = ss1.getFont(c1.getCell().getCellStyle().getFontIndex());
-        } catch (Exception e) {
-            throw new IllegalStateException("failed to load font 1 #" + c1.getCell().getCellStyle().getFontIndex());
+    /**
+     * The snapshot cache, null if not asked for or styles are diffed:
+     * snapshots have no styles.
+     */
+    static File parseCacheDir(String[] args){
+        if (hasOption(args, "--diff-style")){
+            return null;
+        }
+        for (int i=0; i<args.length-1; i++){
+            if ("--cache".equals(args[i])){
+                return new File(args[i+1]);
+            }
         }
+        return null;
+    }
 
-        IFont f2;
-        try {
-            f2 = ss2.getFont(c2.getCell().getCellStyle().getFontIndex());
-        } catch (Exception e) {
-            throw new IllegalStateException("failed to load font 2 #" + c1.getCell().getCellStyle().getFontIndex());
+    static boolean hasOption(String[] args, String opt){
+        for (String arg : args){
+            if (opt.equals(arg)){
+                return true;
+            }
         }
+        return false;
+    }
 
-        try {
-            if (f1 != null && f2 != null) {
-                verifyStyle(f1.getBoldweight(), f2.getBoldweight(), "bold");
-                verifyStyle(f1.getColor(), f2.getColor(), "color");
-                verifyStyle(f1.getFontHeight(), f2.getFontHeight(), "fontHeight");
-                verifyStyle(f1.getFontName(), f2.getFontName(), "fontName");
+    private static int parseThreads(String[] args, int defaultThreads){
+        for (int i=0; i<args.length-1; i++){
+            if ("--threads".equals(args[i])){
+                int threads = Integer.parseInt(args[i+1]);
+                if (threads < 1){
+                    throw new IllegalArgumentException("Illegal number of threads " + args[i+1]);
+                }
+                return threads;
             }
-        } catch (IllegalStateException e) {
-            throw new IllegalStateException("Styles of Cell " + c1.getCellPosition() + " does not match " + c2.getCellPosition() + " (" + e.getMessage() + ") for content '" + c1.getStringValue() + "'");
         }
+        return defaultThreads;
     }
 
-    private static void verifyStyle(Object o1, Object o2, String description) {
-        if (o1 == null && o2 == null)
-            return;
+    private static double parseTolerance(String[] args, String opt){
+        for (int i=0; i<args.length-1; i++){
+            if (opt.equals(args[i])){
+                double tol = Double.parseDouble(args[i+1]);
+                if (!(tol >= 0)){
+                    throw new IllegalArgumentException("Illegal tolerance " + args[i+1]);
+                }
+                return tol;
+            }
+        }
+        return 0;
+    }
 
-        if (o1 == null || o2 == null) {
-            throw new IllegalStateException(description + " do not match: " + o1 + " != " + o2);
+    /**
+     * The number of events a diff may report, one with --quiet, null if not
+     * limited.
+     */
+    static DiffLimit parseDiffLimit(String[] args){
+        if (hasOption(args, "--quiet")){
+            return new DiffLimit(1);
         }
-        if (!o1.equals(o2)) {
-            throw new IllegalStateException(description + " do not match: " + o1 + " != " + o2);
+        for (int i=0; i<args.length-1; i++){
+            if ("--max-diffs".equals(args[i])){
+                long maxDiffs = Long.parseLong(args[i+1]);
+                if (maxDiffs < 1){
+                    throw new IllegalArgumentException("Illegal max diffs " + args[i+1]);
+                }
+                return new DiffLimit(maxDiffs);
+            }
         }
+        return null;
     }
 
-    private static Map<String,SheetIgnores> parseSheetIgnores(String[] args, String opt){
-        int start = -1, end = -1;
+    /**
+     * Memory the rows of a keyed sheet may take before they are spilled, in
+     * bytes.
+     */
+    static long parseKeyMemory(String[] args){
+        for (int i=0; i<args.length-1; i++){
+            if ("--key-memory".equals(args[i])){
+                long mb = Long.parseLong(args[i+1]);
+                if (mb < 0){
+                    throw new IllegalArgumentException("Illegal key memory " + args[i+1]);
+                }
+                return mb << 20;
+            }
+        }
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * The key columns of --key by sheet name. memoryBudget is shared by the
+     * keyed sheet pairs diffed at the same time: as many as there are keyed
+     * sheets, up to threads, in each of concurrentDiffs diffs.
+     */
+    private static Map<String,RowKeys> parseSheetKeys(String[] args, long memoryBudget, int threads, int concurrentDiffs){
+        List<String> specs = new ArrayList<String>();
         for (int i=0; i<args.length; i++){
-            if (start == -1){
-                if (opt.equals(args[i])){
-                    start = i+1;
+            if ("--key".equals(args[i])){
+                for (i++; (i<args.length) && !args[i].startsWith("--"); i++){
+                    specs.add(args[i]);
                 }
+                i--;
             }
-            else {
-                if (args[i].startsWith("--")){
-                    end = i;
+        }
+        long pairBudget = memoryBudget / Math.max(1, Math.min(threads, specs.size())) / Math.max(1, concurrentDiffs);
+        Map<String,RowKeys> ret = new HashMap<String,RowKeys>();
+        for (String spec : specs){
+            RowKeys k = RowKeys.newRowKeys(spec, pairBudget);
+            ret.put(k.sheetName(), k);
+        }
+        return ret;
+    }
+
+    /**
+     * What formula cells are diffed by, their text unless --values or
+     * --evaluate is given.
+     */
+    static FormulaMode parseFormulaMode(String[] args){
+        boolean values = hasOption(args, "--values");
+        boolean evaluate = hasOption(args, "--evaluate");
+        if (values && evaluate){
+            throw new IllegalArgumentException("Illegal formula mode, give one of --values and --evaluate");
+        }
+        return values ? FormulaMode.VALUES : (evaluate ? FormulaMode.EVALUATE : FormulaMode.TEXT);
+    }
+
+    /**
+     * The regions of --only by sheet name, null if all sheets are diffed.
+     */
+    static Map<String,SheetRegions> parseSheetRegions(String[] args){
+        List<String> specs = null;
+        for (int i=0; i<args.length; i++){
+            if ("--only".equals(args[i])){
+                if (specs == null){
+                    specs = new ArrayList<String>();
                 }
+                for (i++; (i<args.length) && !args[i].startsWith("--"); i++){
+                    specs.add(args[i]);
+                }
+                i--;
             }
         }
-        if (end == -1) end = args.length;
-        
+        return (specs == null) ? null : SheetRegions.newSheetRegions(specs);
+    }
+
+    private static Map<String,SheetIgnores> parseSheetIgnores(String[] args, String opt){
         Map<String,SheetIgnores> ret = new HashMap<String,SheetIgnores>();
-        if (start != -1){
-            for (int i=start; i<end; i++){
-                SheetIgnores s = SheetIgnores.newSheetIgnore(args[i]);
-                ret.put(s.sheetName(), s);
+        for (int i=0; i<args.length; i++){
+            if (opt.equals(args[i])){
+                for (i++; (i<args.length) && !args[i].startsWith("--"); i++){
+                    SheetIgnores s = SheetIgnores.newSheetIgnore(args[i]);
+                    ret.put(s.sheetName(), s);
+                }
+                i--;
             }
         }
         return ret;
     }
+
+    /**
+     * Replaces every --ignore-file &lt;file&gt; with the lines of file. Each line
+     * holds one option (--ignore1 / --ignore2) or one sheet ignore spec,
+     * which must come after an option line of the file; blank lines and
+     * lines starting with # are skipped.
+     */
+    private static String[] expandIgnoreFiles(String[] args) throws IOException {
+        List<String> ret = new ArrayList<String>();
+        for (int i=0; i<args.length; i++){
+            if ("--ignore-file".equals(args[i]) && (i+1 < args.length)){
+                String file = args[++i];
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+                try {
+                    boolean ignoresOf = false;
+                    String line;
+                    while ((line = reader.readLine()) != null){
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")){
+                            continue;
+                        }
+                        if ("--ignore1".equals(line) || "--ignore2".equals(line)){
+                            ignoresOf = true;
+                        } else if (!ignoresOf){
+                            // it would be taken as part of the option before --ignore-file
+                            throw new IllegalArgumentException("Illegal ignore file " + file + ": " + line
+                                + " comes before any --ignore1 or --ignore2 line");
+                        }
+                        ret.add(line);
+                    }
+                } finally {
+                    reader.close();
+                }
+            } else {
+                ret.add(args[i]);
+            }
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
     
-    private static boolean verifyFile(File file) {
+    static boolean verifyFile(File file) {
     	if (!file.exists()) {
     		System.err.println("File: " + file + " does not exist.");
     		return false;
@@ -261,26 +614,166 @@ public class SpreadSheetDiffer {
     	return true;
     }
     
-    private static ISpreadSheet loadSpreadSheet(File file) throws Exception {
-    	// assume file is excel by default
-    	Exception excelReadException = null;
+    /**
+     * Loads file as {@link #loadSpreadSheet(File, File, Map, FormulaMode, int)}
+     * does, timed in stats unless it is null.
+     */
+    static ISpreadSheet loadSpreadSheet(File file, File cacheDir, Map<String,SheetRegions> regions, FormulaMode formulas,
+    		int threads, DiffStats stats) throws Exception {
+    	if (stats == null) {
+    		return loadSpreadSheet(file, cacheDir, regions, formulas, threads);
+    	}
+    	DiffStats.Load load = stats.startLoad(file);
     	try {
-    		Workbook workbook = WorkbookFactory.create(file);
-    		return new SpreadSheetExcel(workbook);
-    	} catch (Exception e) {
-    		excelReadException = e;
+    		return loadSpreadSheet(file, cacheDir, regions, formulas, threads);
+    	} finally {
+    		load.end();
+    	}
+    }
+
+    /**
+     * As {@link #loadSpreadSheet(File, File, Map, FormulaMode, int)} for all
+     * sheets, with formulas compared as text.
+     */
+    static ISpreadSheet loadSpreadSheet(File file, File cacheDir) throws Exception {
+    	return loadSpreadSheet(file, cacheDir, null, FormulaMode.TEXT, 1);
+    }
+
+    /**
+     * Maps the snapshot of file in cacheDir if there is one. Otherwise reads
+     * file and snapshots it, for this run and the next ones; if that cannot
+     * be done the workbook is used as read.
+     *
+     * Only the sheets in regions are scanned when the file is opened if it
+     * is not null, and formula cells are read as formulas says, evaluated on
+     * up to threads threads. A snapshot holds the whole workbook, so regions
+     * are not used with cacheDir; the snapshots of each formula mode are kept
+     * apart.
+     */
+    static ISpreadSheet loadSpreadSheet(File file, File cacheDir, Map<String,SheetRegions> regions, FormulaMode formulas,
+    		int threads) throws Exception {
+    	if (cacheDir == null) {
+    		return loadSpreadSheet(file, regions, formulas, threads);
+    	}
+    	File snapshot = SpreadSheetSnapshot.cacheFile(cacheDir, file, formulas);
+    	ISpreadSheet cached = SpreadSheetSnapshot.open(snapshot);
+    	if (cached != null) {
+    		return cached;
+    	}
+    	ISpreadSheet ss = loadSpreadSheet(file, null, formulas, threads);
+    	if (SpreadSheetSnapshot.write(ss, snapshot)) {
+    		cached = SpreadSheetSnapshot.open(snapshot);
     	}
-    	Exception odfReadException = null;
+    	if (cached == null) {
+    		return ss;
+    	}
+    	ss.close();
+    	return cached;
+    }
+
+    static ISpreadSheet loadSpreadSheet(File file) throws Exception {
+    	return loadSpreadSheet(file, null, FormulaMode.TEXT, 1);
+    }
+
+    /**
+     * Opens file with the reader for its format. Readers which look at all
+     * sheets when opening a file only look at those in regions, unless it is
+     * null; the others open a sheet only when it is read. Formulas to be
+     * evaluated are evaluated only in regions, on up to threads threads.
+     */
+    static ISpreadSheet loadSpreadSheet(File file, Map<String,SheetRegions> regions, FormulaMode formulas, int threads)
+    		throws Exception {
+    	SpreadSheetFormat format = SpreadSheetFormat.sniff(file);
+    	boolean cachedResults = (formulas != FormulaMode.TEXT);
     	try {
-    		SpreadsheetDocument spreadsheetDocument = SpreadsheetDocument.loadDocument(file);
-    		return new SpreadSheetOdf(spreadsheetDocument);
+    		if ((formulas == FormulaMode.EVALUATE) && ((format == SpreadSheetFormat.XLSX) || (format == SpreadSheetFormat.XLS))) {
+    			// the evaluator needs the full POI model
+    			Workbook workbook = WorkbookFactory.create(file);
+    			int failed = new ParallelFormulaEvaluator(workbook, regions, threads).evaluate();
+    			if (failed > 0) {
+    				System.err.println("Could not evaluate " + failed + " formulas of " + file + ", their cached results are compared");
+    			}
+    			return new SpreadSheetExcel(workbook, true);
+    		}
+    		if (format == SpreadSheetFormat.XLSX) {
+    			// xlsx is streamed sheet by sheet, the full XSSF model does not fit big workbooks
+    			return new SpreadSheetXlsxStream(file, cachedResults);
+    		}
+    		if (format == SpreadSheetFormat.XLS) {
+    			try {
+    				return new SpreadSheetXlsStream(file, cachedResults);
+    			} catch (EncryptedDocumentException e) {
+    				// decrypting needs the whole record stream, use the full HSSF model
+    				Workbook workbook = WorkbookFactory.create(file);
+    				return new SpreadSheetExcel(workbook, cachedResults);
+    			}
+    		}
+    		if (format == SpreadSheetFormat.ODS) {
+    			return new SpreadSheetOdsStream(file, regions, cachedResults);
+    		}
     	} catch (Exception e) {
-    		odfReadException = e;
+    		throw new RuntimeException(readFailedMessage(file, format), e);
     	}
-    	if (file.getName().matches(".*\\.ods.*")) {
-    		throw new RuntimeException("Failed to read as ods file: " + file, odfReadException);
+    	throw new RuntimeException(readFailedMessage(file, format));
+    }
+
+    private static String readFailedMessage(File file, SpreadSheetFormat format) {
+    	if ((format == SpreadSheetFormat.ODS) || ((format == null) && file.getName().matches(".*\\.ods.*"))) {
+    		return "Failed to read as ods file: " + file;
     	} else {
-    		throw new RuntimeException("Failed to read as excel file: " + file, excelReadException);
+    		return "Failed to read as excel file: " + file;
+    	}
+    }
+
+    /**
+     * Starts loading file, through cacheDir if not null, on a thread of its
+     * own, the workbook is picked up with {@link #getSpreadSheet(FutureTask)}.
+     */
+    private static FutureTask<ISpreadSheet> startLoading(final File file, final File cacheDir,
+    		final Map<String,SheetRegions> regions, final FormulaMode formulas, final int threads, final DiffStats stats) {
+    	FutureTask<ISpreadSheet> task = new FutureTask<ISpreadSheet>(new Callable<ISpreadSheet>() {
+    		@Override
+    		public ISpreadSheet call() throws Exception {
+    			ISpreadSheet ss = loadSpreadSheet(file, cacheDir, regions, formulas, threads, stats);
+    			if (Thread.currentThread().isInterrupted()) {
+    				// cancelled while loading, nobody takes it
+    				ss.close();
+    				throw new InterruptedException("Loading " + file + " cancelled");
+    			}
+    			return ss;
+    		}
+    	});
+    	Thread loader = new Thread(task, "load " + file.getName());
+    	loader.setDaemon(true);
+    	loader.start();
+    	return task;
+    }
+
+    /**
+     * Closes the workbook task loaded, if it did.
+     */
+    private static void closeLoaded(FutureTask<ISpreadSheet> task) {
+    	if (task.isCancelled()) {
+    		return;
+    	}
+    	try {
+    		task.get().close();
+    	} catch (InterruptedException e) {
+    		Thread.currentThread().interrupt();
+    	} catch (ExecutionException e) {
+    		// it failed, nothing to close
+    	}
+    }
+
+    private static ISpreadSheet getSpreadSheet(FutureTask<ISpreadSheet> task) throws Exception {
+    	try {
+    		return task.get();
+    	} catch (ExecutionException e) {
+    		Throwable cause = e.getCause();
+    		if (cause instanceof Exception) {
+    			throw (Exception) cause;
+    		}
+    		throw (Error) cause;
     	}
     }
 }
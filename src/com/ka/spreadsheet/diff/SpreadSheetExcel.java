@@ -1,20 +1,56 @@
 package com.ka.spreadsheet.diff;
 
+import java.io.IOException;
 import java.util.Iterator;
+import java.util.List;
 
+import org.apache.poi.POIXMLDocument;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
 import org.apache.poi.ss.usermodel.*;
 
 public class SpreadSheetExcel implements ISpreadSheet {
 
 	private Workbook workbook;
+	private boolean cachedResults;
 	
 	public SpreadSheetExcel(Workbook workbook) {
+		this(workbook, false);
+	}
+
+	/**
+	 * With cachedResults a formula cell gives its cached result instead of
+	 * its formula.
+	 */
+	public SpreadSheetExcel(Workbook workbook, boolean cachedResults) {
 		this.workbook = workbook;
+		this.cachedResults = cachedResults;
 	}
 
     public IFont getFont(short index) {
         return new FontExcel(workbook.getFontAt(index));
     }
+
+    public ICellStyle getCellStyleAt(int index) {
+        return new CellStyleExcel(workbook.getCellStyleAt((short) index));
+    }
+
+	@Override
+	public void close() {
+		// an xlsx model keeps its package open, an xls one its file system
+		if (workbook instanceof POIXMLDocument) {
+			((POIXMLDocument) workbook).getPackage().revert();
+		} else if (workbook instanceof HSSFWorkbook) {
+			NPOIFSFileSystem fs = ((HSSFWorkbook) workbook).getRootDirectory().getNFileSystem();
+			if (fs != null) {
+				try {
+					fs.close();
+				} catch (IOException e) {
+					// only read, nothing is lost
+				}
+			}
+		}
+	}
 	
 	@Override
 	public Iterator<ISheet> getSheetIterator() {
@@ -30,7 +66,7 @@ public class SpreadSheetExcel implements ISpreadSheet {
 			@Override
 			public ISheet next() {
 				Sheet sheet = workbook.getSheetAt(currSheetIdx);
-				SheetExcel sheetExcel = new SheetExcel(sheet, currSheetIdx);
+				SheetExcel sheetExcel = new SheetExcel(sheet, currSheetIdx, cachedResults);
 				currSheetIdx++;
 				return sheetExcel;
 			}
@@ -47,10 +83,12 @@ class SheetExcel implements ISheet {
 
 	private Sheet sheet;
 	private int sheetIdx;
+	private boolean cachedResults;
 	
-	public SheetExcel(Sheet sheet, int sheetIdx) {
+	public SheetExcel(Sheet sheet, int sheetIdx, boolean cachedResults) {
 		this.sheet = sheet;
 		this.sheetIdx = sheetIdx;
+		this.cachedResults = cachedResults;
 	}
 	
 	@Override
@@ -75,7 +113,7 @@ class SheetExcel implements ISheet {
 
 			@Override
 			public IRow next() {
-				return new RowExcel(rowIterator.next());
+				return new RowExcel(rowIterator.next(), cachedResults);
 			}
 
 			@Override
@@ -84,14 +122,31 @@ class SheetExcel implements ISheet {
 			}
 		};
 	}
+
+	@Override
+	public ICellCursor getCellCursor() {
+		return new CellCursorExcel(sheet.rowIterator(), cachedResults);
+	}
+
+	@Override
+	public void forEachCell(CellVisitor visitor) {
+		CellCursors.forEachCell(getCellCursor(), visitor);
+	}
+
+	@Override
+	public List<String> getPartNames() {
+		return null;
+	}
 }
 
 class RowExcel implements IRow {
 	
 	private Row row;
+	private boolean cachedResults;
 	
-	public RowExcel(Row row) {
+	public RowExcel(Row row, boolean cachedResults) {
 		this.row = row;
+		this.cachedResults = cachedResults;
 	}
 
 	@Override
@@ -111,7 +166,7 @@ class RowExcel implements IRow {
 
 			@Override
 			public ICell next() {
-				return new CellExcel(cellIterator.next());
+				return new CellExcel(cellIterator.next(), cachedResults);
 			}
 
 			@Override
@@ -124,10 +179,24 @@ class RowExcel implements IRow {
 
 class CellExcel implements ICell {
 
-	private Cell cell;
+	Cell cell;
+	final boolean cachedResults;
 	
-	public CellExcel(Cell cell) {
+	public CellExcel(Cell cell, boolean cachedResults) {
 		this.cell = cell;
+		this.cachedResults = cachedResults;
+	}
+
+	/**
+	 * The type of the cell, that of its cached result for a formula cell
+	 * read for it.
+	 */
+	private int getCellType() {
+		int cellType = cell.getCellType();
+		if (cachedResults && (cellType == Cell.CELL_TYPE_FORMULA)) {
+			return cell.getCachedFormulaResultType();
+		}
+		return cellType;
 	}
 
 	@Override
@@ -145,9 +214,14 @@ class CellExcel implements ICell {
         return new CellStyleExcel(cell.getCellStyle());
     }
 
+    @Override
+    public int getStyleIndex() {
+        return cell.getCellStyle().getIndex() & 0xFFFF;
+    }
+
     @Override
 	public String getStringValue() {
-		int cellType = cell.getCellType();
+		int cellType = getCellType();
 		switch (cellType) {
 		case Cell.CELL_TYPE_NUMERIC:
 			return String.valueOf(cell.getNumericCellValue());
@@ -163,6 +237,63 @@ class CellExcel implements ICell {
 		}
 		return cell.getStringCellValue();
 	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		switch (getCellType()) {
+		case Cell.CELL_TYPE_NUMERIC:
+			return CellValueKind.NUMERIC;
+		case Cell.CELL_TYPE_BOOLEAN:
+			return CellValueKind.BOOLEAN;
+		}
+		return CellValueKind.STRING;
+	}
+
+	@Override
+	public double getNumericValue() {
+		return cell.getNumericCellValue();
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return cell.getBooleanCellValue();
+	}
+}
+
+/**
+ * Walks the POI rows of a sheet, pointing itself at one cell after the other.
+ */
+class CellCursorExcel extends CellExcel implements ICellCursor {
+
+	private final Iterator<Row> rows;
+	private Iterator<Cell> cells;
+
+	public CellCursorExcel(Iterator<Row> rows, boolean cachedResults) {
+		super(null, cachedResults);
+		this.rows = rows;
+	}
+
+	@Override
+	public boolean next() {
+		while ((cells == null) || !cells.hasNext()) {
+			if (!rows.hasNext()) {
+				cell = null;
+				return false;
+			}
+			cells = rows.next().cellIterator();
+		}
+		cell = cells.next();
+		return true;
+	}
+
+	@Override
+	public ICell snapshot() {
+		return new CellExcel(cell, cachedResults);
+	}
+
+	@Override
+	public void close() {
+	}
 }
 
 class CellStyleExcel implements ICellStyle {
@@ -0,0 +1,76 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipFile;
+
+/**
+ * Spreadsheet file formats, told apart by their signature rather than by
+ * trying every reader in turn.
+ *
+ * An OLE2 compound file is taken as xls. A zip is taken as xlsx when it has
+ * a [Content_Types].xml part and as ods when it has a mimetype entry; only
+ * the zip central directory is read for that, not the entries themselves.
+ */
+public enum SpreadSheetFormat {
+
+	XLS, XLSX, ODS;
+
+	private static final byte[] OLE2_MAGIC = {
+		(byte) 0xD0, (byte) 0xCF, (byte) 0x11, (byte) 0xE0, (byte) 0xA1, (byte) 0xB1, (byte) 0x1A, (byte) 0xE1
+	};
+	private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+
+	/**
+	 * Returns the format of file, or null if it is none of the known ones.
+	 */
+	public static SpreadSheetFormat sniff(File file) throws IOException {
+		byte[] header = new byte[OLE2_MAGIC.length];
+		int len = readHeader(file, header);
+		if (startsWith(header, len, OLE2_MAGIC)) {
+			return XLS;
+		}
+		if (startsWith(header, len, ZIP_MAGIC)) {
+			ZipFile zip = new ZipFile(file);
+			try {
+				if (zip.getEntry("[Content_Types].xml") != null) {
+					return XLSX;
+				}
+				if (zip.getEntry("mimetype") != null) {
+					return ODS;
+				}
+			} finally {
+				zip.close();
+			}
+		}
+		return null;
+	}
+
+	private static int readHeader(File file, byte[] header) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			int len = 0;
+			int n;
+			while ((len < header.length) && ((n = in.read(header, len, header.length - len)) != -1)) {
+				len += n;
+			}
+			return len;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static boolean startsWith(byte[] header, int len, byte[] magic) {
+		if (len < magic.length) {
+			return false;
+		}
+		for (int i = 0; i < magic.length; i++) {
+			if (header[i] != magic[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
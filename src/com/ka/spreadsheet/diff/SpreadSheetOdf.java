@@ -1,6 +1,7 @@
 package com.ka.spreadsheet.diff;
 
 import java.util.Iterator;
+import java.util.List;
 
 import org.odftoolkit.simple.SpreadsheetDocument;
 import org.odftoolkit.simple.table.Cell;
@@ -15,6 +16,21 @@ public class SpreadSheetOdf implements ISpreadSheet {
 		this.spreadsheetDocument = spreadsheetDocument;
 	}
 
+	@Override
+	public IFont getFont(short index) {
+		return null;
+	}
+
+	@Override
+	public ICellStyle getCellStyleAt(int index) {
+		return null;
+	}
+
+	@Override
+	public void close() {
+		spreadsheetDocument.close();
+	}
+
 	@Override
 	public Iterator<ISheet> getSheetIterator() {
 		return new Iterator<ISheet>() {
@@ -83,6 +99,21 @@ class SheetOdf implements ISheet {
 			}
 		};
 	}
+
+	@Override
+	public ICellCursor getCellCursor() {
+		return CellCursors.cellCursor(getRowIterator());
+	}
+
+	@Override
+	public void forEachCell(CellVisitor visitor) {
+		CellCursors.forEachCell(getCellCursor(), visitor);
+	}
+
+	@Override
+	public List<String> getPartNames() {
+		return null;
+	}
 }
 
 class RowOdf implements IRow {
@@ -140,6 +171,16 @@ class CellOdf implements ICell {
 		return cell.getColumnIndex();
 	}
 
+	@Override
+	public ICellStyle getCellStyle() {
+		return null;
+	}
+
+	@Override
+	public int getStyleIndex() {
+		return -1;
+	}
+
 	@Override
 	public String getStringValue() {
 		String formula = cell.getFormula();
@@ -156,4 +197,28 @@ class CellOdf implements ICell {
 		}
 		return cell.getStringValue();
 	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		if (cell.getFormula() != null) {
+			return CellValueKind.STRING;
+		}
+		String valueType = cell.getValueType();
+		if ("float".equals(valueType)) {
+			return CellValueKind.NUMERIC;
+		} else if ("boolean".equals(valueType)) {
+			return CellValueKind.BOOLEAN;
+		}
+		return CellValueKind.STRING;
+	}
+
+	@Override
+	public double getNumericValue() {
+		return cell.getDoubleValue();
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return cell.getBooleanValue();
+	}
 }
@@ -0,0 +1,781 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader for ods files.
+ *
+ * content.xml is pulled straight out of the zip with StAX. Repeated rows and
+ * cells (table:number-rows-repeated / table:number-columns-repeated) are kept
+ * as runs and only handed out one cell at a time.
+ *
+ * Like the ODF Toolkit model, empty cells written in the file are reported
+ * as cells with an empty value, but only inside the used area of the table:
+ * the rows and columns up to the last non empty cell. LibreOffice pads
+ * formatted tables with runs of empty cells up to the last column and row of
+ * the sheet, these runs are dropped. Finding the used area takes one extra
+ * pass over content.xml when the file is opened.
+ *
+ * Opened with the regions of --only, only the tables asked for are scanned
+ * and handed out, and content.xml is read no further than the first non
+ * empty row after the last row asked for. A table going on beyond that row
+ * is taken to be used up to the last row and column asked for, which gives
+ * the cells of a full scan as long as the regions lie within the used area.
+ * Tables before one asked for still have to be inflated to get past them,
+ * as content.xml is one deflate stream.
+ *
+ * With cached results a formula cell gives the value saved with it
+ * (office:value or its text) instead of its formula.
+ */
+public class SpreadSheetOdsStream implements ISpreadSheet {
+
+	static final String OFFICE_NS = "urn:oasis:names:tc:opendocument:xmlns:office:1.0";
+	static final String TABLE_NS = "urn:oasis:names:tc:opendocument:xmlns:table:1.0";
+	static final String TEXT_NS = "urn:oasis:names:tc:opendocument:xmlns:text:1.0";
+
+	private static final String MIMETYPE = "application/vnd.oasis.opendocument.spreadsheet";
+
+	// all cells are read from content.xml
+	static final List<String> PART_NAMES = Collections.singletonList("content.xml");
+
+	private final ZipFile zip;
+	private final ZipEntry content;
+	private final List<TableOds> tables = new ArrayList<TableOds>();
+	private final boolean cachedResults;
+	private OdsContentReader idleReader;
+
+	public SpreadSheetOdsStream(File file) throws IOException, XMLStreamException {
+		this(file, null, false);
+	}
+
+	/**
+	 * Opens file with only the tables in regions, all tables if regions is
+	 * null.
+	 */
+	public SpreadSheetOdsStream(File file, Map<String,SheetRegions> regions, boolean cachedResults)
+			throws IOException, XMLStreamException {
+		this.cachedResults = cachedResults;
+		this.zip = new ZipFile(file);
+		try {
+			ZipEntry mimetype = zip.getEntry("mimetype");
+			if ((mimetype == null) || !MIMETYPE.equals(readFully(zip.getInputStream(mimetype)).trim())) {
+				throw new IllegalArgumentException("Not an ods file: " + file);
+			}
+			this.content = zip.getEntry("content.xml");
+			if (content == null) {
+				throw new IllegalArgumentException("No content.xml in " + file);
+			}
+			scanTables(regions);
+		} catch (IOException e) {
+			zip.close();
+			throw e;
+		} catch (XMLStreamException e) {
+			zip.close();
+			throw e;
+		} catch (RuntimeException e) {
+			zip.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() {
+		OdsContentReader reader;
+		synchronized (this) {
+			reader = idleReader;
+			idleReader = null;
+		}
+		if (reader != null) {
+			reader.close();
+		}
+		try {
+			zip.close();
+		} catch (IOException e) {
+			// only read, nothing is lost
+		}
+	}
+
+	@Override
+	public IFont getFont(short index) {
+		return null;
+	}
+
+	@Override
+	public ICellStyle getCellStyleAt(int index) {
+		return null;
+	}
+
+	@Override
+	public Iterator<ISheet> getSheetIterator() {
+		return new Iterator<ISheet>() {
+
+			private int currSheetIdx = 0;
+
+			@Override
+			public boolean hasNext() {
+				return currSheetIdx < tables.size();
+			}
+
+			@Override
+			public ISheet next() {
+				ISheet sheet = new SheetOdsStream(SpreadSheetOdsStream.this, tables.get(currSheetIdx));
+				currSheetIdx++;
+				return sheet;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Hands out a reader positioned at the start of the given table. Sheets
+	 * are normally read in order, so the reader left behind by the previous
+	 * sheet is reused instead of decompressing content.xml from the start.
+	 */
+	OdsContentReader openTable(int tableIdx) throws IOException, XMLStreamException {
+		OdsContentReader reader;
+		synchronized (this) {
+			reader = idleReader;
+			idleReader = null;
+		}
+		if ((reader == null) || (reader.nextTableIdx() > tableIdx)) {
+			if (reader != null) {
+				reader.close();
+			}
+			reader = new OdsContentReader(zip.getInputStream(content), cachedResults);
+		}
+		if (!reader.skipToTable(tableIdx)) {
+			reader.close();
+			throw new IllegalStateException("Table " + tableIdx + " not found in content.xml");
+		}
+		return reader;
+	}
+
+	/**
+	 * Takes back a reader which finished a table.
+	 */
+	void release(OdsContentReader reader) {
+		OdsContentReader toClose = reader;
+		synchronized (this) {
+			if (idleReader == null) {
+				idleReader = reader;
+				toClose = null;
+			}
+		}
+		if (toClose != null) {
+			toClose.close();
+		}
+	}
+
+	/**
+	 * Finds the used area of the tables in regions, of all tables if regions
+	 * is null.
+	 */
+	private void scanTables(Map<String,SheetRegions> regions) throws IOException, XMLStreamException {
+		OdsContentReader reader = new OdsContentReader(zip.getInputStream(content), cachedResults);
+		try {
+			int tablesLeft = (regions == null) ? -1 : regions.size();
+			for (int tableIdx = 0; (tablesLeft != 0) && reader.skipToTable(tableIdx); tableIdx++) {
+				SheetRegions tableRegions = (regions == null) ? null : regions.get(reader.getTableName());
+				if ((regions != null) && (tableRegions == null)) {
+					continue;
+				}
+				tablesLeft--;
+				TableOds table = new TableOds(reader.getTableName(), tableIdx);
+				int lastRowAsked = (tableRegions == null) ? Integer.MAX_VALUE : tableRegions.lastRow();
+				int rowIdx = 0;
+				OdsRowTemplate row;
+				while ((row = reader.readRow(Integer.MAX_VALUE)) != null) {
+					int lastCol = row.lastNonEmptyCol();
+					if ((lastCol >= 0) && (rowIdx + row.repeat - 1 > lastRowAsked)) {
+						// the used area goes on, take it to cover the rows and columns asked for
+						table.lastRow = lastRowAsked;
+						table.lastCol = Math.max(table.lastCol, tableRegions.lastCol());
+						table.partial = true;
+						break;
+					}
+					if (lastCol >= 0) {
+						table.lastRow = rowIdx + row.repeat - 1;
+						table.lastCol = Math.max(table.lastCol, lastCol);
+					}
+					rowIdx += row.repeat;
+				}
+				tables.add(table);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static String readFully(InputStream in) throws IOException {
+		try {
+			StringBuilder sb = new StringBuilder();
+			byte[] buf = new byte[256];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				sb.append(new String(buf, 0, n, "US-ASCII"));
+			}
+			return sb.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Name and used area of a table.
+	 */
+	static class TableOds {
+		final String name;
+		// position in content.xml
+		final int index;
+		int lastRow = -1;
+		int lastCol = -1;
+		// the rows after lastRow were not scanned
+		boolean partial;
+
+		TableOds(String name, int index) {
+			this.name = name;
+			this.index = index;
+		}
+	}
+}
+
+class SheetOdsStream implements ISheet {
+
+	private final SpreadSheetOdsStream spreadSheet;
+	private final SpreadSheetOdsStream.TableOds table;
+
+	public SheetOdsStream(SpreadSheetOdsStream spreadSheet, SpreadSheetOdsStream.TableOds table) {
+		this.spreadSheet = spreadSheet;
+		this.table = table;
+	}
+
+	@Override
+	public String getName() {
+		return table.name;
+	}
+
+	@Override
+	public int getSheetIndex() {
+		return table.index;
+	}
+
+	@Override
+	public Iterator<IRow> getRowIterator() {
+		return CellCursors.rowIterator(getCellCursor());
+	}
+
+	@Override
+	public ICellCursor getCellCursor() {
+		try {
+			OdsContentReader reader = (table.lastRow < 0) ? null : spreadSheet.openTable(table.index);
+			return new CellOdsStreamCursor(spreadSheet, reader, table);
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to read sheet " + table.name, e);
+		}
+	}
+
+	@Override
+	public void forEachCell(CellVisitor visitor) {
+		CellCursors.forEachCell(getCellCursor(), visitor);
+	}
+
+	@Override
+	public List<String> getPartNames() {
+		return SpreadSheetOdsStream.PART_NAMES;
+	}
+}
+
+/**
+ * Expands repeated rows and cells lazily, up to the last used row of the
+ * table.
+ */
+class CellOdsStreamCursor implements ICellCursor {
+
+	private final SpreadSheetOdsStream spreadSheet;
+	private final SpreadSheetOdsStream.TableOds table;
+	private OdsContentReader reader;
+	private OdsRowTemplate template;
+	private int templateRowsLeft;
+	private int runIdx;
+	private int runColsLeft;
+	private int rowIdx = -1;
+	private int colIdx;
+
+	CellOdsStreamCursor(SpreadSheetOdsStream spreadSheet, OdsContentReader reader, SpreadSheetOdsStream.TableOds table) {
+		this.spreadSheet = spreadSheet;
+		this.reader = reader;
+		this.table = table;
+	}
+
+	@Override
+	public boolean next() {
+		while (!nextInRow()) {
+			if (!nextRow()) {
+				close();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean nextInRow() {
+		if (template == null) {
+			return false;
+		}
+		while ((runColsLeft == 0) && (runIdx < template.runCount() - 1)) {
+			runColsLeft = template.runRepeat(++runIdx);
+		}
+		if (runColsLeft == 0) {
+			return false;
+		}
+		runColsLeft--;
+		colIdx++;
+		return true;
+	}
+
+	private boolean nextRow() {
+		if ((reader == null) || (rowIdx + 1 > table.lastRow)) {
+			return false;
+		}
+		if (templateRowsLeft == 0) {
+			try {
+				template = reader.readRow(table.lastCol);
+			} catch (XMLStreamException e) {
+				reader.close();
+				reader = null;
+				throw new RuntimeException("Failed to parse content.xml", e);
+			}
+			if (template == null) {
+				return false;
+			}
+			templateRowsLeft = template.repeat;
+		}
+		templateRowsLeft--;
+		rowIdx++;
+		colIdx = -1;
+		runIdx = 0;
+		runColsLeft = (template.runCount() > 0) ? template.runRepeat(0) : 0;
+		return true;
+	}
+
+	@Override
+	public int getRowIndex() {
+		return rowIdx;
+	}
+
+	@Override
+	public int getColumnIndex() {
+		return colIdx;
+	}
+
+	@Override
+	public ICellStyle getCellStyle() {
+		return null;
+	}
+
+	@Override
+	public int getStyleIndex() {
+		return -1;
+	}
+
+	@Override
+	public String getStringValue() {
+		return template.runKind(runIdx).format(template.runNumber(runIdx), template.runString(runIdx));
+	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		return template.runKind(runIdx);
+	}
+
+	@Override
+	public double getNumericValue() {
+		return template.runNumber(runIdx);
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return template.runNumber(runIdx) != 0;
+	}
+
+	@Override
+	public ICell snapshot() {
+		return new CellOdsStream(rowIdx, colIdx,
+			template.runKind(runIdx), template.runNumber(runIdx), template.runString(runIdx));
+	}
+
+	@Override
+	public void close() {
+		template = null;
+		if ((reader != null) && ((rowIdx < table.lastRow) || table.partial)) {
+			// stopped early, the rest of content.xml is not worth parsing
+			reader.close();
+			reader = null;
+		}
+		if (reader != null) {
+			try {
+				reader.skipToTableEnd();
+				spreadSheet.release(reader);
+			} catch (XMLStreamException e) {
+				reader.close();
+			}
+			reader = null;
+		}
+	}
+}
+
+class CellOdsStream implements ICell {
+
+	private final int rowIdx;
+	private final int colIdx;
+	private final CellValueKind kind;
+	private final double number;
+	private final String string;
+
+	public CellOdsStream(int rowIdx, int colIdx, CellValueKind kind, double number, String string) {
+		this.rowIdx = rowIdx;
+		this.colIdx = colIdx;
+		this.kind = kind;
+		this.number = number;
+		this.string = string;
+	}
+
+	@Override
+	public int getRowIndex() {
+		return rowIdx;
+	}
+
+	@Override
+	public int getColumnIndex() {
+		return colIdx;
+	}
+
+	@Override
+	public ICellStyle getCellStyle() {
+		return null;
+	}
+
+	@Override
+	public int getStyleIndex() {
+		return -1;
+	}
+
+	@Override
+	public String getStringValue() {
+		return kind.format(number, string);
+	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		return kind;
+	}
+
+	@Override
+	public double getNumericValue() {
+		return number;
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return number != 0;
+	}
+}
+
+/**
+ * One &lt;table:table-row&gt;: its repeat count and its cells as runs of
+ * (value, number of columns), clipped at a last column.
+ *
+ * The runs are kept in primitive arrays which grow to the widest row read;
+ * a reader fills the same template for every row.
+ */
+class OdsRowTemplate {
+
+	private static final CellValueKind[] KINDS = CellValueKind.values();
+
+	int repeat;
+	private int runCount;
+	private byte[] kinds = new byte[16];
+	private double[] numbers = new double[16];
+	private String[] strings = new String[16];
+	private int[] repeats = new int[16];
+	private boolean[] nonEmpty = new boolean[16];
+
+	/**
+	 * Empties the template for the next row.
+	 */
+	void reset(int repeat) {
+		this.repeat = repeat;
+		Arrays.fill(strings, 0, runCount, null);
+		runCount = 0;
+	}
+
+	void addRun(CellValueKind kind, double number, String string, int count, boolean isNonEmpty) {
+		if (runCount == kinds.length) {
+			int length = 2 * runCount;
+			kinds = Arrays.copyOf(kinds, length);
+			numbers = Arrays.copyOf(numbers, length);
+			strings = Arrays.copyOf(strings, length);
+			repeats = Arrays.copyOf(repeats, length);
+			nonEmpty = Arrays.copyOf(nonEmpty, length);
+		}
+		kinds[runCount] = (byte) kind.ordinal();
+		numbers[runCount] = number;
+		strings[runCount] = string;
+		repeats[runCount] = count;
+		nonEmpty[runCount] = isNonEmpty;
+		runCount++;
+	}
+
+	int runCount() {
+		return runCount;
+	}
+
+	CellValueKind runKind(int i) {
+		return KINDS[kinds[i]];
+	}
+
+	double runNumber(int i) {
+		return numbers[i];
+	}
+
+	String runString(int i) {
+		return strings[i];
+	}
+
+	int runRepeat(int i) {
+		return repeats[i];
+	}
+
+	int lastNonEmptyCol() {
+		int col = -1, last = -1;
+		for (int i = 0; i < runCount; i++) {
+			col += repeats[i];
+			if (nonEmpty[i]) {
+				last = col;
+			}
+		}
+		return last;
+	}
+}
+
+/**
+ * StAX cursor over content.xml, moving from table to table and row to row.
+ */
+class OdsContentReader {
+
+	private final InputStream in;
+	private final XMLStreamReader reader;
+	private final boolean cachedResults;
+	private final OdsRowTemplate row = new OdsRowTemplate();
+	private int nextTableIdx = 0;
+	private boolean inTable = false;
+
+	OdsContentReader(InputStream in, boolean cachedResults) throws XMLStreamException {
+		this.in = in;
+		this.cachedResults = cachedResults;
+		this.reader = SpreadSheetXlsxStream.newXMLStreamReader(in);
+	}
+
+	int nextTableIdx() {
+		return inTable ? nextTableIdx - 1 : nextTableIdx;
+	}
+
+	String getTableName() {
+		return reader.getAttributeValue(SpreadSheetOdsStream.TABLE_NS, "name");
+	}
+
+	/**
+	 * Moves to the start element of the given table, false if there is no
+	 * such table.
+	 */
+	boolean skipToTable(int tableIdx) throws XMLStreamException {
+		if (inTable) {
+			skipToTableEnd();
+		}
+		while (reader.hasNext()) {
+			if ((reader.next() == XMLStreamConstants.START_ELEMENT) && isTableElement("table")) {
+				if (nextTableIdx++ == tableIdx) {
+					inTable = true;
+					return true;
+				}
+				skipElement();
+			}
+		}
+		return false;
+	}
+
+	void skipToTableEnd() throws XMLStreamException {
+		while (inTable && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT && isTableElement("table")) {
+				skipElement(); // sub table inside a cell
+			} else if (event == XMLStreamConstants.END_ELEMENT && isTableElement("table")) {
+				inTable = false;
+			}
+		}
+	}
+
+	/**
+	 * Reads the next row of the current table, cells beyond lastCol are
+	 * parsed but not kept. Returns null at the end of the table. The row is
+	 * valid until the next call, the reader refills it.
+	 */
+	OdsRowTemplate readRow(int lastCol) throws XMLStreamException {
+		while (inTable && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				if (isTableElement("table-row")) {
+					row.reset(getRepeat("number-rows-repeated"));
+					return readCells(lastCol);
+				} else if (isTableElement("table-column") || isTableElement("shapes") || isTableElement("table-source")
+						|| isTableElement("named-expressions") || isTableElement("table")) {
+					skipElement();
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT && isTableElement("table")) {
+				inTable = false;
+			}
+		}
+		return null;
+	}
+
+	private OdsRowTemplate readCells(int lastCol) throws XMLStreamException {
+		int colIdx = 0;
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT
+					&& (isTableElement("table-cell") || isTableElement("covered-table-cell"))) {
+				int repeat = getRepeat("number-columns-repeated");
+				String formula = reader.getAttributeValue(SpreadSheetOdsStream.TABLE_NS, "formula");
+				String valueType = reader.getAttributeValue(SpreadSheetOdsStream.OFFICE_NS, "value-type");
+				String value = reader.getAttributeValue(SpreadSheetOdsStream.OFFICE_NS, "value");
+				String booleanValue = reader.getAttributeValue(SpreadSheetOdsStream.OFFICE_NS, "boolean-value");
+				String text = readCellText();
+				if (colIdx <= lastCol) {
+					int count = (int) Math.min(repeat, (long) lastCol - colIdx + 1);
+					boolean nonEmpty = (formula != null) || (valueType != null) || (text != null);
+					addRun(row, cachedResults ? null : formula, valueType, value, booleanValue, text, count, nonEmpty);
+				}
+				colIdx += repeat;
+			} else if (event == XMLStreamConstants.END_ELEMENT && isTableElement("table-row")) {
+				break;
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Same rules as CellOdf.getValueKind / getStringValue, formula is null
+	 * for a cell read for its cached result.
+	 */
+	private static void addRun(OdsRowTemplate row, String formula, String valueType, String value, String booleanValue,
+			String text, int count, boolean nonEmpty) {
+		if (formula == null) {
+			if ("float".equals(valueType) && (value != null)) {
+				row.addRun(CellValueKind.NUMERIC, Double.parseDouble(value), null, count, nonEmpty);
+				return;
+			} else if ("boolean".equals(valueType) && (booleanValue != null)) {
+				row.addRun(CellValueKind.BOOLEAN, Boolean.parseBoolean(booleanValue) ? 1 : 0, null, count, nonEmpty);
+				return;
+			}
+		}
+		row.addRun(CellValueKind.STRING, 0, (formula != null) ? formula : ((text == null) ? "" : text), count, nonEmpty);
+	}
+
+	/**
+	 * Display text of the cell: its paragraphs joined by new lines, null if
+	 * the cell has none. The reader is left on the cell end element.
+	 */
+	private String readCellText() throws XMLStreamException {
+		StringBuilder text = null;
+		int depth = 1;
+		int paragraphDepth = 0;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				boolean isText = SpreadSheetOdsStream.TEXT_NS.equals(reader.getNamespaceURI());
+				String tag = reader.getLocalName();
+				if ((depth == 2) && isText && ("p".equals(tag) || "h".equals(tag))) {
+					if (text == null) {
+						text = new StringBuilder();
+					} else {
+						text.append('\n');
+					}
+					paragraphDepth = depth;
+				} else if ((depth == 2) || (paragraphDepth == 0)) {
+					skipElement();
+					depth--;
+				} else if (isText && "s".equals(tag)) {
+					String c = reader.getAttributeValue(SpreadSheetOdsStream.TEXT_NS, "c");
+					for (int i = (c == null) ? 1 : Integer.parseInt(c); i > 0; i--) {
+						text.append(' ');
+					}
+				} else if (isText && "tab".equals(tag)) {
+					text.append('\t');
+				} else if (isText && "line-break".equals(tag)) {
+					text.append('\n');
+				} else if (isText && "note".equals(tag)) {
+					skipElement();
+					depth--;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (depth == paragraphDepth) {
+					paragraphDepth = 0;
+				}
+				depth--;
+			} else if ((paragraphDepth > 0) && (event == XMLStreamConstants.CHARACTERS
+					|| event == XMLStreamConstants.CDATA || event == XMLStreamConstants.SPACE)) {
+				text.append(reader.getText());
+			}
+		}
+		return (text == null) ? null : text.toString();
+	}
+
+	private int getRepeat(String attr) {
+		String repeat = reader.getAttributeValue(SpreadSheetOdsStream.TABLE_NS, attr);
+		return (repeat == null) ? 1 : Integer.parseInt(repeat);
+	}
+
+	private boolean isTableElement(String localName) {
+		return localName.equals(reader.getLocalName()) && SpreadSheetOdsStream.TABLE_NS.equals(reader.getNamespaceURI());
+	}
+
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	void close() {
+		try {
+			reader.close();
+			in.close();
+		} catch (Exception e) {
+			// nothing left to read anyway
+		}
+	}
+}
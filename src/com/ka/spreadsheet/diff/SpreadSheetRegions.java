@@ -0,0 +1,205 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A workbook cut down to the regions given to --only, see
+ * {@link SheetRegions}.
+ *
+ * Sheets not asked for are left out of the sheet iterator, so their cells
+ * are never read: the streaming readers open a sheet only when its cursor
+ * is asked for. Cells outside the regions are skipped by the cursor, which
+ * closes the sheet as soon as it is past the last row asked for, before the
+ * rest of it is decompressed. The ods reader scans the tables when the file
+ * is opened, it is handed the regions then, see
+ * {@link SpreadSheetOdsStream#SpreadSheetOdsStream(java.io.File, Map, boolean)}.
+ */
+public class SpreadSheetRegions implements ISpreadSheet {
+
+	private final ISpreadSheet spreadSheet;
+	private final Map<String,SheetRegions> regions;
+
+	public SpreadSheetRegions(ISpreadSheet spreadSheet, Map<String,SheetRegions> regions) {
+		this.spreadSheet = spreadSheet;
+		this.regions = regions;
+	}
+
+	@Override
+	public Iterator<ISheet> getSheetIterator() {
+		final Iterator<ISheet> sheets = spreadSheet.getSheetIterator();
+		return new Iterator<ISheet>() {
+
+			private ISheet next = advance();
+
+			private ISheet advance() {
+				while (sheets.hasNext()) {
+					ISheet sheet = sheets.next();
+					SheetRegions sheetRegions = regions.get(sheet.getName());
+					if (sheetRegions != null) {
+						return sheetRegions.isWholeSheet() ? sheet : new RegionSheet(sheet, sheetRegions);
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public ISheet next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				ISheet sheet = next;
+				next = advance();
+				return sheet;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	@Override
+	public IFont getFont(short index) {
+		return spreadSheet.getFont(index);
+	}
+
+	@Override
+	public ICellStyle getCellStyleAt(int index) {
+		return spreadSheet.getCellStyleAt(index);
+	}
+
+	@Override
+	public void close() {
+		spreadSheet.close();
+	}
+
+	private static class RegionSheet implements ISheet {
+
+		private final ISheet sheet;
+		private final SheetRegions regions;
+
+		RegionSheet(ISheet sheet, SheetRegions regions) {
+			this.sheet = sheet;
+			this.regions = regions;
+		}
+
+		@Override
+		public String getName() {
+			return sheet.getName();
+		}
+
+		@Override
+		public int getSheetIndex() {
+			return sheet.getSheetIndex();
+		}
+
+		@Override
+		public Iterator<IRow> getRowIterator() {
+			return CellCursors.rowIterator(getCellCursor());
+		}
+
+		@Override
+		public ICellCursor getCellCursor() {
+			return new RegionCellCursor(sheet.getCellCursor(), regions);
+		}
+
+		@Override
+		public void forEachCell(CellVisitor visitor) {
+			CellCursors.forEachCell(getCellCursor(), visitor);
+		}
+
+		@Override
+		public List<String> getPartNames() {
+			return sheet.getPartNames();
+		}
+	}
+
+	/**
+	 * Hands out the cells of cursor inside the regions, and closes it past
+	 * their last row.
+	 */
+	private static class RegionCellCursor implements ICellCursor {
+
+		private final ICellCursor cursor;
+		private final SheetRegions regions;
+		private boolean done;
+
+		RegionCellCursor(ICellCursor cursor, SheetRegions regions) {
+			this.cursor = cursor;
+			this.regions = regions;
+		}
+
+		@Override
+		public boolean next() {
+			while (!done && cursor.next()) {
+				if (cursor.getRowIndex() > regions.lastRow()) {
+					close();
+				} else if (regions.contains(cursor.getRowIndex(), cursor.getColumnIndex())) {
+					return true;
+				}
+			}
+			done = true;
+			return false;
+		}
+
+		@Override
+		public int getRowIndex() {
+			return cursor.getRowIndex();
+		}
+
+		@Override
+		public int getColumnIndex() {
+			return cursor.getColumnIndex();
+		}
+
+		@Override
+		public ICellStyle getCellStyle() {
+			return cursor.getCellStyle();
+		}
+
+		@Override
+		public int getStyleIndex() {
+			return cursor.getStyleIndex();
+		}
+
+		@Override
+		public String getStringValue() {
+			return cursor.getStringValue();
+		}
+
+		@Override
+		public CellValueKind getValueKind() {
+			return cursor.getValueKind();
+		}
+
+		@Override
+		public double getNumericValue() {
+			return cursor.getNumericValue();
+		}
+
+		@Override
+		public boolean getBooleanValue() {
+			return cursor.getBooleanValue();
+		}
+
+		@Override
+		public ICell snapshot() {
+			return cursor.snapshot();
+		}
+
+		@Override
+		public void close() {
+			done = true;
+			cursor.close();
+		}
+	}
+}
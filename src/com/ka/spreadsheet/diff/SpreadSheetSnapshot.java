@@ -0,0 +1,581 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A workbook read from a snapshot file, which is memory mapped: the cells
+ * stay in the file, not on the heap.
+ *
+ * Snapshots are kept in a cache directory, named by the SHA-1 of the
+ * workbook file and the {@link FormulaMode} it was read in, see
+ * {@link #cacheFile(File, File, FormulaMode)}. They are columnar:
+ *
+ * <pre>
+ * header:     magic, version, offset of the directory
+ * blocks:     per block of up to BLOCK_CELLS cells of a sheet:
+ *             cell count n, row count r, row indexes int[r],
+ *             first cell of each row int[r + 1], columns int[n],
+ *             value kinds byte[n], values long[n]
+ * dictionary: string count d, offsets int[d + 1], UTF-8 bytes
+ * directory:  offset of the dictionary, sheet count, per sheet its name,
+ *             block count and block offsets
+ * </pre>
+ *
+ * A value is the bits of the double of a NUMERIC or BOOLEAN cell, or the
+ * index of the string of a STRING cell in the dictionary. Styles are not
+ * kept, a snapshot has no styles.
+ */
+public class SpreadSheetSnapshot implements ISpreadSheet {
+
+	static final int MAGIC = 0x58435331; // XCS1
+	static final int VERSION = 1;
+	static final int BLOCK_CELLS = 1 << 16;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final MappedByteBuffer buffer;
+	private final int dictionary;
+	private final List<ISheet> sheets = new ArrayList<ISheet>();
+
+	private SpreadSheetSnapshot(MappedByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+			throw new IOException("Not a snapshot");
+		}
+		ByteBuffer directory = buffer.duplicate();
+		directory.position((int) buffer.getLong(8));
+		dictionary = (int) directory.getLong();
+		int numSheets = directory.getInt();
+		for (int i = 0; i < numSheets; i++) {
+			byte[] name = new byte[directory.getInt()];
+			directory.get(name);
+			int[] blocks = new int[directory.getInt()];
+			for (int b = 0; b < blocks.length; b++) {
+				blocks[b] = (int) directory.getLong();
+			}
+			sheets.add(new SheetSnapshot(this, new String(name, UTF_8), i, blocks));
+		}
+	}
+
+	/**
+	 * The snapshot of file read in formulas mode in cacheDir, which is
+	 * created if need be.
+	 */
+	public static File cacheFile(File cacheDir, File file, FormulaMode formulas) throws IOException {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buf = new byte[1 << 16];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				sha1.update(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		StringBuilder name = new StringBuilder();
+		for (byte b : sha1.digest()) {
+			name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+			throw new IOException("Cannot create cache directory " + cacheDir);
+		}
+		return new File(cacheDir, name.append(formulas.snapshotSuffix()).append(".snapshot").toString());
+	}
+
+	/**
+	 * Maps a snapshot, null if there is none or it cannot be used: written
+	 * by another version, or too big to be mapped at once.
+	 */
+	public static ISpreadSheet open(File snapshot) {
+		if (!snapshot.isFile() || (snapshot.length() > Integer.MAX_VALUE)) {
+			return null;
+		}
+		try {
+			RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+			try {
+				// the mapping outlives the channel
+				return new SpreadSheetSnapshot(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// a truncated file
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the cells of ss to snapshot, returns false if it cannot be
+	 * written. The snapshot appears at once when complete, so that runs at
+	 * the same time do not see half of it.
+	 */
+	public static boolean write(ISpreadSheet ss, File snapshot) {
+		File tmp = null;
+		try {
+			tmp = File.createTempFile("excel_cmp", ".tmp", snapshot.getParentFile());
+			Writer writer = new Writer(tmp);
+			try {
+				for (Iterator<ISheet> it = ss.getSheetIterator(); it.hasNext();) {
+					writer.writeSheet(it.next());
+				}
+				writer.finish();
+			} finally {
+				writer.close();
+			}
+			if (tmp.renameTo(snapshot) || snapshot.isFile()) {
+				return true;
+			}
+		} catch (IOException e) {
+			// no snapshot then, the workbook itself is still there
+		} finally {
+			if (tmp != null) {
+				tmp.delete();
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public Iterator<ISheet> getSheetIterator() {
+		return sheets.iterator();
+	}
+
+	@Override
+	public IFont getFont(short index) {
+		return null;
+	}
+
+	@Override
+	public ICellStyle getCellStyleAt(int index) {
+		return null;
+	}
+
+	@Override
+	public void close() {
+		// the file was closed once mapped, the mapping goes with the buffer
+	}
+
+	String getString(int index) {
+		int start = buffer.getInt(dictionary + 4 + 4 * index);
+		int end = buffer.getInt(dictionary + 8 + 4 * index);
+		int bytesStart = dictionary + 4 + 4 * (buffer.getInt(dictionary) + 1);
+		byte[] bytes = new byte[end - start];
+		ByteBuffer b = buffer.duplicate();
+		b.position(bytesStart + start);
+		b.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	MappedByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Writes a snapshot file front to back, one block of cells at a time;
+	 * only the block and the dictionary are kept.
+	 */
+	private static class Writer {
+
+		private final File file;
+		private final DataOutputStream out;
+		private final Map<String,Integer> dictionary = new HashMap<String,Integer>();
+		private final List<String> strings = new ArrayList<String>();
+		private final List<String> sheetNames = new ArrayList<String>();
+		private final List<long[]> sheetBlocks = new ArrayList<long[]>();
+
+		private final int[] rows = new int[BLOCK_CELLS];
+		private final int[] rowStarts = new int[BLOCK_CELLS + 1];
+		private final int[] cols = new int[BLOCK_CELLS];
+		private final byte[] kinds = new byte[BLOCK_CELLS];
+		private final long[] values = new long[BLOCK_CELLS];
+		private int numRows;
+		private int numCells;
+		private long[] blocks;
+		private int numBlocks;
+
+		Writer(File file) throws IOException {
+			this.file = file;
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(0); // the directory, once known
+		}
+
+		void writeSheet(ISheet sheet) throws IOException {
+			blocks = new long[16];
+			numBlocks = 0;
+			final IOException[] failure = new IOException[1];
+			sheet.forEachCell(new CellVisitor() {
+				@Override
+				public boolean visitCell(ICellCursor cell) {
+					try {
+						add(cell);
+						return true;
+					} catch (IOException e) {
+						failure[0] = e;
+						return false;
+					}
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			writeBlock();
+			sheetNames.add(sheet.getName());
+			sheetBlocks.add(Arrays.copyOf(blocks, numBlocks));
+		}
+
+		private void add(ICellCursor cell) throws IOException {
+			if (numCells == BLOCK_CELLS) {
+				writeBlock();
+			}
+			if ((numRows == 0) || (rows[numRows - 1] != cell.getRowIndex())) {
+				rows[numRows] = cell.getRowIndex();
+				rowStarts[numRows++] = numCells;
+			}
+			CellValueKind kind = cell.getValueKind();
+			cols[numCells] = cell.getColumnIndex();
+			kinds[numCells] = (byte) kind.ordinal();
+			if (kind == CellValueKind.NUMERIC) {
+				values[numCells] = Double.doubleToRawLongBits(cell.getNumericValue());
+			} else if (kind == CellValueKind.BOOLEAN) {
+				values[numCells] = Double.doubleToRawLongBits(cell.getBooleanValue() ? 1 : 0);
+			} else {
+				values[numCells] = stringIndex(cell.getStringValue());
+			}
+			numCells++;
+		}
+
+		private int stringIndex(String s) {
+			Integer index = dictionary.get(s);
+			if (index == null) {
+				index = Integer.valueOf(strings.size());
+				dictionary.put(s, index);
+				strings.add(s);
+			}
+			return index.intValue();
+		}
+
+		private void writeBlock() throws IOException {
+			if (numCells == 0) {
+				return;
+			}
+			if (numBlocks == blocks.length) {
+				blocks = Arrays.copyOf(blocks, 2 * numBlocks);
+			}
+			blocks[numBlocks++] = offset();
+			rowStarts[numRows] = numCells;
+			out.writeInt(numCells);
+			out.writeInt(numRows);
+			for (int i = 0; i < numRows; i++) {
+				out.writeInt(rows[i]);
+			}
+			for (int i = 0; i <= numRows; i++) {
+				out.writeInt(rowStarts[i]);
+			}
+			for (int i = 0; i < numCells; i++) {
+				out.writeInt(cols[i]);
+			}
+			out.write(kinds, 0, numCells);
+			for (int i = 0; i < numCells; i++) {
+				out.writeLong(values[i]);
+			}
+			numCells = 0;
+			numRows = 0;
+		}
+
+		void finish() throws IOException {
+			long dictionaryOffset = offset();
+			out.writeInt(strings.size());
+			int end = 0;
+			out.writeInt(end);
+			for (String s : strings) {
+				end += s.getBytes(UTF_8).length;
+				out.writeInt(end);
+			}
+			for (String s : strings) {
+				out.write(s.getBytes(UTF_8));
+			}
+			long directoryOffset = offset();
+			out.writeLong(dictionaryOffset);
+			out.writeInt(sheetNames.size());
+			for (int i = 0; i < sheetNames.size(); i++) {
+				byte[] name = sheetNames.get(i).getBytes(UTF_8);
+				out.writeInt(name.length);
+				out.write(name);
+				long[] offsets = sheetBlocks.get(i);
+				out.writeInt(offsets.length);
+				for (long offset : offsets) {
+					out.writeLong(offset);
+				}
+			}
+			offset();
+			out.close();
+			RandomAccessFile header = new RandomAccessFile(file, "rw");
+			try {
+				header.seek(8);
+				header.writeLong(directoryOffset);
+			} finally {
+				header.close();
+			}
+		}
+
+		/**
+		 * Bytes written so far, a snapshot has to be mapped at once.
+		 */
+		private long offset() throws IOException {
+			if (out.size() == Integer.MAX_VALUE) {
+				throw new IOException("Snapshot too big");
+			}
+			return out.size();
+		}
+
+		void close() throws IOException {
+			out.close();
+		}
+	}
+}
+
+class SheetSnapshot implements ISheet {
+
+	private final SpreadSheetSnapshot spreadSheet;
+	private final String name;
+	private final int index;
+	private final int[] blocks;
+
+	SheetSnapshot(SpreadSheetSnapshot spreadSheet, String name, int index, int[] blocks) {
+		this.spreadSheet = spreadSheet;
+		this.name = name;
+		this.index = index;
+		this.blocks = blocks;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getSheetIndex() {
+		return index;
+	}
+
+	@Override
+	public Iterator<IRow> getRowIterator() {
+		return CellCursors.rowIterator(getCellCursor());
+	}
+
+	@Override
+	public ICellCursor getCellCursor() {
+		return new CellSnapshotCursor(spreadSheet, blocks);
+	}
+
+	@Override
+	public void forEachCell(CellVisitor visitor) {
+		CellCursors.forEachCell(getCellCursor(), visitor);
+	}
+
+	@Override
+	public List<String> getPartNames() {
+		return null;
+	}
+}
+
+/**
+ * Reads the cells of a sheet block by block from the mapped snapshot.
+ */
+class CellSnapshotCursor implements ICellCursor {
+
+	private static final CellValueKind[] KINDS = CellValueKind.values();
+
+	private final SpreadSheetSnapshot spreadSheet;
+	private final ByteBuffer buffer;
+	private final int[] blocks;
+	private int block = -1;
+
+	// the current block
+	private int numCells;
+	private int rows;
+	private int rowStarts;
+	private int cols;
+	private int kinds;
+	private int values;
+
+	private int cell;
+	private int row;
+	private int nextRowStart;
+
+	CellSnapshotCursor(SpreadSheetSnapshot spreadSheet, int[] blocks) {
+		this.spreadSheet = spreadSheet;
+		this.buffer = spreadSheet.buffer();
+		this.blocks = blocks;
+	}
+
+	@Override
+	public boolean next() {
+		if (block >= blocks.length) {
+			return false;
+		}
+		cell++;
+		if ((block < 0) || (cell == numCells)) {
+			if (++block == blocks.length) {
+				return false;
+			}
+			int offset = blocks[block];
+			numCells = buffer.getInt(offset);
+			int numRows = buffer.getInt(offset + 4);
+			rows = offset + 8;
+			rowStarts = rows + 4 * numRows;
+			cols = rowStarts + 4 * (numRows + 1);
+			kinds = cols + 4 * numCells;
+			values = kinds + numCells;
+			cell = 0;
+			row = -1;
+			nextRowStart = 0;
+		}
+		while (cell == nextRowStart) {
+			row++;
+			nextRowStart = buffer.getInt(rowStarts + 4 * (row + 1));
+		}
+		return true;
+	}
+
+	@Override
+	public int getRowIndex() {
+		return buffer.getInt(rows + 4 * row);
+	}
+
+	@Override
+	public int getColumnIndex() {
+		return buffer.getInt(cols + 4 * cell);
+	}
+
+	@Override
+	public ICellStyle getCellStyle() {
+		return null;
+	}
+
+	@Override
+	public int getStyleIndex() {
+		return -1;
+	}
+
+	@Override
+	public String getStringValue() {
+		CellValueKind kind = getValueKind();
+		return (kind == CellValueKind.STRING) ? spreadSheet.getString((int) value()) : kind.format(getNumericValue(), null);
+	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		return KINDS[buffer.get(kinds + cell)];
+	}
+
+	@Override
+	public double getNumericValue() {
+		return Double.longBitsToDouble(value());
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return getNumericValue() != 0;
+	}
+
+	private long value() {
+		return buffer.getLong(values + 8 * cell);
+	}
+
+	@Override
+	public ICell snapshot() {
+		return new CellSnapshot(getRowIndex(), getColumnIndex(), getValueKind(), getNumericValue(), getStringValue());
+	}
+
+	@Override
+	public void close() {
+		block = blocks.length;
+	}
+}
+
+class CellSnapshot implements ICell {
+
+	private final int rowIdx;
+	private final int colIdx;
+	private final CellValueKind kind;
+	private final double number;
+	private final String string;
+
+	CellSnapshot(int rowIdx, int colIdx, CellValueKind kind, double number, String string) {
+		this.rowIdx = rowIdx;
+		this.colIdx = colIdx;
+		this.kind = kind;
+		this.number = number;
+		this.string = string;
+	}
+
+	@Override
+	public int getRowIndex() {
+		return rowIdx;
+	}
+
+	@Override
+	public int getColumnIndex() {
+		return colIdx;
+	}
+
+	@Override
+	public ICellStyle getCellStyle() {
+		return null;
+	}
+
+	@Override
+	public int getStyleIndex() {
+		return -1;
+	}
+
+	@Override
+	public String getStringValue() {
+		return string;
+	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		return kind;
+	}
+
+	@Override
+	public double getNumericValue() {
+		return number;
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return number != 0;
+	}
+}
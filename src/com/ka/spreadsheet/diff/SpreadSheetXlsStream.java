@@ -0,0 +1,581 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.poi.EncryptedDocumentException;
+import org.apache.poi.hssf.eventusermodel.HSSFListener;
+import org.apache.poi.hssf.model.HSSFFormulaParser;
+import org.apache.poi.hssf.model.InternalWorkbook;
+import org.apache.poi.hssf.record.ArrayRecord;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BlankRecord;
+import org.apache.poi.hssf.record.BoolErrRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.CellValueRecordInterface;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.FilePassRecord;
+import org.apache.poi.hssf.record.FormulaRecord;
+import org.apache.poi.hssf.record.LabelRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.MulBlankRecord;
+import org.apache.poi.hssf.record.MulRKRecord;
+import org.apache.poi.hssf.record.NumberRecord;
+import org.apache.poi.hssf.record.RKRecord;
+import org.apache.poi.hssf.record.Record;
+import org.apache.poi.hssf.record.RecordFactory;
+import org.apache.poi.hssf.record.RecordFactoryInputStream;
+import org.apache.poi.hssf.record.RecordInputStream;
+import org.apache.poi.hssf.record.SharedFormulaRecord;
+import org.apache.poi.hssf.record.StringRecord;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.poifs.filesystem.DirectoryNode;
+import org.apache.poi.poifs.filesystem.NPOIFSFileSystem;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * Streaming reader for BIFF8 xls files built on the HSSF record API.
+ *
+ * Only the workbook globals (shared strings, formats, fonts, names) are
+ * materialized, as a sheet-less HSSFWorkbook used to resolve styles and to
+ * render formulas. Every sheet is read on demand from the offset its
+ * BoundSheetRecord points to, one row of cell records at a time. With
+ * cached results a formula cell gives the value saved with its FORMULA
+ * record (and the STRING record after it) instead of its formula.
+ */
+public class SpreadSheetXlsStream implements ISpreadSheet {
+
+	private static final String[] WORKBOOK_DIR_ENTRY_NAMES = {"Workbook", "WORKBOOK"};
+
+	private final File file;
+	private final String workbookEntryName;
+	private final InternalWorkbook internalWorkbook;
+	private final HSSFWorkbook globals;
+	private final BoundSheetRecord[] boundSheets;
+	private final boolean cachedResults;
+
+	public SpreadSheetXlsStream(File file) throws IOException {
+		this(file, false);
+	}
+
+	public SpreadSheetXlsStream(File file, boolean cachedResults) throws IOException {
+		this.file = file;
+		this.cachedResults = cachedResults;
+		NPOIFSFileSystem fs = new NPOIFSFileSystem(file);
+		try {
+			this.workbookEntryName = getWorkbookEntryName(fs.getRoot());
+			if (isEncrypted(fs)) {
+				throw new EncryptedDocumentException("Encrypted xls records cannot be read from a sheet offset");
+			}
+			List<Record> globalRecords = new ArrayList<Record>();
+			List<BoundSheetRecord> boundSheetRecords = new ArrayList<BoundSheetRecord>();
+			RecordFactoryInputStream records = new RecordFactoryInputStream(
+				fs.createDocumentInputStream(workbookEntryName), false);
+			Record record;
+			while ((record = records.nextRecord()) != null) {
+				globalRecords.add(record);
+				if (record instanceof BoundSheetRecord) {
+					boundSheetRecords.add((BoundSheetRecord) record);
+				} else if (record instanceof EOFRecord) {
+					break;
+				}
+			}
+			this.internalWorkbook = InternalWorkbook.createWorkbook(globalRecords);
+			this.globals = HSSFWorkbook.create(internalWorkbook);
+			this.boundSheets = BoundSheetRecord.orderByBofPosition(boundSheetRecords);
+		} finally {
+			fs.close();
+		}
+	}
+
+	private static String getWorkbookEntryName(DirectoryNode root) {
+		for (String name : WORKBOOK_DIR_ENTRY_NAMES) {
+			if (root.hasEntry(name)) {
+				return name;
+			}
+		}
+		throw new IllegalArgumentException("The supplied file does not contain a BIFF8 workbook stream");
+	}
+
+	// FILEPASS, if present, directly follows the first BOF
+	private boolean isEncrypted(NPOIFSFileSystem fs) throws IOException {
+		RecordInputStream rs = new RecordInputStream(fs.createDocumentInputStream(workbookEntryName));
+		for (int i = 0; (i < 2) && rs.hasNextRecord(); i++) {
+			rs.nextRecord();
+			if (rs.getSid() == FilePassRecord.sid) {
+				return true;
+			}
+			rs.readRemainder();
+		}
+		return false;
+	}
+
+	@Override
+	public IFont getFont(short index) {
+		return new FontExcel(globals.getFontAt(index));
+	}
+
+	@Override
+	public ICellStyle getCellStyleAt(int xfIndex) {
+		CellStyle style = globals.getCellStyleAt((short) xfIndex);
+		return style == null ? null : new CellStyleExcel(style);
+	}
+
+	@Override
+	public void close() {
+		// the globals are read up front, each sheet opens and closes a file system of its own
+	}
+
+	String getSSTString(int idx) {
+		return internalWorkbook.getSSTString(idx).getString();
+	}
+
+	String toFormulaString(Ptg[] ptgs) {
+		return HSSFFormulaParser.toFormulaString(globals, ptgs);
+	}
+
+	/**
+	 * True if formula cells give their cached results, false for their text.
+	 */
+	boolean usesCachedResults() {
+		return cachedResults;
+	}
+
+	/**
+	 * Opens a record stream positioned at the BOF of the given sheet. Each
+	 * sheet gets its own file system so sheets may be read independently.
+	 */
+	SheetRecords openSheetRecords(int sheetIdx) throws IOException {
+		NPOIFSFileSystem fs = new NPOIFSFileSystem(file);
+		try {
+			InputStream in = fs.createDocumentInputStream(workbookEntryName);
+			long toSkip = boundSheets[sheetIdx].getPositionOfBof();
+			while (toSkip > 0) {
+				long skipped = in.skip(toSkip);
+				if (skipped <= 0) {
+					throw new IOException("Sheet offset beyond end of workbook stream");
+				}
+				toSkip -= skipped;
+			}
+			return new SheetRecords(fs, new RecordFactoryInputStream(in, false));
+		} catch (IOException e) {
+			fs.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public Iterator<ISheet> getSheetIterator() {
+		return new Iterator<ISheet>() {
+
+			private int currSheetIdx = 0;
+
+			@Override
+			public boolean hasNext() {
+				return currSheetIdx < boundSheets.length;
+			}
+
+			@Override
+			public ISheet next() {
+				ISheet sheet = new SheetXlsStream(SpreadSheetXlsStream.this,
+					boundSheets[currSheetIdx].getSheetname(), currSheetIdx);
+				currSheetIdx++;
+				return sheet;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Records of a single sheet substream, nested chart substreams excluded.
+	 */
+	static class SheetRecords {
+
+		private final NPOIFSFileSystem fs;
+		private final RecordFactoryInputStream records;
+		private final LinkedList<Record> unread = new LinkedList<Record>();
+		private int bofDepth = 0;
+		private boolean done = false;
+
+		SheetRecords(NPOIFSFileSystem fs, RecordFactoryInputStream records) {
+			this.fs = fs;
+			this.records = records;
+		}
+
+		Record next() {
+			while (!done) {
+				if (!unread.isEmpty()) {
+					return unread.removeFirst();
+				}
+				Record record = records.nextRecord();
+				if (record == null) {
+					close();
+				} else if (record instanceof BOFRecord) {
+					bofDepth++;
+				} else if (record instanceof EOFRecord) {
+					if (--bofDepth == 0) {
+						close();
+					}
+				} else if (bofDepth == 1) {
+					if (record instanceof MulRKRecord) {
+						Collections.addAll(unread, RecordFactory.convertRKRecords((MulRKRecord) record));
+					} else if (record instanceof MulBlankRecord) {
+						Collections.addAll(unread, RecordFactory.convertBlankRecords((MulBlankRecord) record));
+					} else if (record instanceof RKRecord) {
+						return RecordFactory.convertToNumberRecord((RKRecord) record);
+					} else {
+						return record;
+					}
+				}
+			}
+			return null;
+		}
+
+		void close() {
+			done = true;
+			try {
+				fs.close();
+			} catch (IOException e) {
+				// nothing left to read anyway
+			}
+		}
+	}
+}
+
+class SheetXlsStream implements ISheet {
+
+	private final SpreadSheetXlsStream spreadSheet;
+	private final String name;
+	private final int sheetIdx;
+
+	public SheetXlsStream(SpreadSheetXlsStream spreadSheet, String name, int sheetIdx) {
+		this.spreadSheet = spreadSheet;
+		this.name = name;
+		this.sheetIdx = sheetIdx;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getSheetIndex() {
+		return sheetIdx;
+	}
+
+	@Override
+	public Iterator<IRow> getRowIterator() {
+		return CellCursors.rowIterator(getCellCursor());
+	}
+
+	@Override
+	public ICellCursor getCellCursor() {
+		try {
+			return new CellXlsStreamCursor(spreadSheet, spreadSheet.openSheetRecords(sheetIdx));
+		} catch (IOException e) {
+			throw new RuntimeException("Failed to read sheet " + name, e);
+		}
+	}
+
+	@Override
+	public void forEachCell(CellVisitor visitor) {
+		CellCursors.forEachCell(getCellCursor(), visitor);
+	}
+
+	@Override
+	public List<String> getPartNames() {
+		return null;
+	}
+}
+
+/**
+ * Walks the cell value records of a sheet. Cell records are stored
+ * row-major and are read a row at a time: a row is complete as soon as a
+ * record of another row (or the end of the sheet) shows up. Formulas are
+ * rendered only then, because the SHRFMLA / ARRAY record a formula may point
+ * to comes after the first FORMULA record of its group.
+ */
+class CellXlsStreamCursor implements ICellCursor, HSSFListener {
+
+	private final SpreadSheetXlsStream spreadSheet;
+	private final SpreadSheetXlsStream.SheetRecords records;
+	private final Map<Long,SharedFormulaRecord> sharedFormulas = new HashMap<Long,SharedFormulaRecord>();
+	private final Map<Long,ArrayRecord> arrayFormulas = new HashMap<Long,ArrayRecord>();
+	// cached string results, by the formula they follow
+	private final Map<FormulaRecord,String> formulaStrings = new IdentityHashMap<FormulaRecord,String>();
+	private FormulaRecord lastFormula;
+
+	// the row being read and the complete row being walked, swapped when the latter is done
+	private List<CellValueRecordInterface> pendingRow = new ArrayList<CellValueRecordInterface>();
+	private List<CellValueRecordInterface> readyRow = new ArrayList<CellValueRecordInterface>();
+	private int readyIdx = -1;
+	private CellValueRecordInterface record;
+	private CellValueKind kind;
+	private double number;
+	private String string;
+
+	CellXlsStreamCursor(SpreadSheetXlsStream spreadSheet, SpreadSheetXlsStream.SheetRecords records) {
+		this.spreadSheet = spreadSheet;
+		this.records = records;
+	}
+
+	@Override
+	public boolean next() {
+		readyIdx++;
+		while (readyIdx >= readyRow.size()) {
+			if (pendingRow == null) {
+				record = null;
+				return false;
+			}
+			readyRow.clear();
+			readyIdx = 0;
+			readRow();
+		}
+		record = readyRow.get(readyIdx);
+		setValue(record);
+		return true;
+	}
+
+	private void readRow() {
+		while (readyRow.isEmpty() && (pendingRow != null)) {
+			Record r = records.next();
+			if (r == null) {
+				readyRow = pendingRow;
+				pendingRow = null;
+			} else {
+				processRecord(r);
+			}
+		}
+	}
+
+	@Override
+	public int getRowIndex() {
+		return record.getRow();
+	}
+
+	@Override
+	public int getColumnIndex() {
+		return record.getColumn();
+	}
+
+	@Override
+	public ICellStyle getCellStyle() {
+		return spreadSheet.getCellStyleAt(getStyleIndex());
+	}
+
+	@Override
+	public int getStyleIndex() {
+		return record.getXFIndex() & 0xFFFF;
+	}
+
+	@Override
+	public String getStringValue() {
+		return kind.format(number, string);
+	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		return kind;
+	}
+
+	@Override
+	public double getNumericValue() {
+		return number;
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return number != 0;
+	}
+
+	@Override
+	public ICell snapshot() {
+		return new CellXlsStream(spreadSheet, record.getRow(), record.getColumn(), record.getXFIndex(), kind, number, string);
+	}
+
+	@Override
+	public void close() {
+		records.close();
+		pendingRow = null;
+		readyRow.clear();
+	}
+
+	@Override
+	public void processRecord(Record r) {
+		if (r instanceof SharedFormulaRecord) {
+			SharedFormulaRecord sfr = (SharedFormulaRecord) r;
+			sharedFormulas.put(key(sfr.getRange().getFirstRow(), sfr.getRange().getFirstColumn()), sfr);
+		} else if (r instanceof ArrayRecord) {
+			ArrayRecord ar = (ArrayRecord) r;
+			arrayFormulas.put(key(ar.getRange().getFirstRow(), ar.getRange().getFirstColumn()), ar);
+		} else if ((r instanceof StringRecord) && (lastFormula != null) && spreadSheet.usesCachedResults()) {
+			formulaStrings.put(lastFormula, ((StringRecord) r).getString());
+		} else if (r instanceof CellValueRecordInterface) {
+			CellValueRecordInterface cell = (CellValueRecordInterface) r;
+			lastFormula = (cell instanceof FormulaRecord) ? (FormulaRecord) cell : null;
+			if (!pendingRow.isEmpty() && (pendingRow.get(0).getRow() != cell.getRow())) {
+				List<CellValueRecordInterface> emptyRow = readyRow;
+				readyRow = pendingRow;
+				pendingRow = emptyRow;
+			}
+			pendingRow.add(cell);
+		}
+	}
+
+	/**
+	 * Same rules as HSSFCell.getCellType followed by CellExcel.getValueKind / getStringValue.
+	 */
+	private void setValue(CellValueRecordInterface record) {
+		if ((record instanceof FormulaRecord) && spreadSheet.usesCachedResults()) {
+			setCachedResult((FormulaRecord) record);
+		} else if (record instanceof NumberRecord) {
+			kind = CellValueKind.NUMERIC;
+			number = ((NumberRecord) record).getValue();
+		} else if ((record instanceof BoolErrRecord) && ((BoolErrRecord) record).isBoolean()) {
+			kind = CellValueKind.BOOLEAN;
+			number = ((BoolErrRecord) record).getBooleanValue() ? 1 : 0;
+		} else {
+			kind = CellValueKind.STRING;
+			number = 0;
+			string = renderString(record);
+		}
+	}
+
+	/**
+	 * Same rules as HSSFCell.getCachedFormulaResultType followed by CellExcel.getValueKind / getStringValue.
+	 */
+	private void setCachedResult(FormulaRecord record) {
+		kind = CellValueKind.STRING;
+		number = 0;
+		switch (record.getCachedResultType()) {
+		case Cell.CELL_TYPE_NUMERIC:
+			kind = CellValueKind.NUMERIC;
+			number = record.getValue();
+			break;
+		case Cell.CELL_TYPE_BOOLEAN:
+			kind = CellValueKind.BOOLEAN;
+			number = record.getCachedBooleanValue() ? 1 : 0;
+			break;
+		case Cell.CELL_TYPE_ERROR:
+			string = String.valueOf((byte) record.getCachedErrorValue());
+			break;
+		default:
+			String cached = formulaStrings.remove(record);
+			string = (cached == null) ? "" : cached;
+		}
+	}
+
+	private String renderString(CellValueRecordInterface record) {
+		if (record instanceof FormulaRecord) {
+			return spreadSheet.toFormulaString(getFormulaTokens((FormulaRecord) record));
+		} else if (record instanceof LabelSSTRecord) {
+			return spreadSheet.getSSTString(((LabelSSTRecord) record).getSSTIndex());
+		} else if (record instanceof LabelRecord) {
+			return ((LabelRecord) record).getValue();
+		} else if (record instanceof BoolErrRecord) {
+			return String.valueOf(((BoolErrRecord) record).getErrorValue());
+		} else if (record instanceof BlankRecord) {
+			return "";
+		}
+		throw new IllegalStateException("Unexpected cell record " + record);
+	}
+
+	private Ptg[] getFormulaTokens(FormulaRecord record) {
+		CellReference expRef = record.getFormula().getExpReference();
+		if (expRef != null) {
+			Long key = key(expRef.getRow(), expRef.getCol());
+			SharedFormulaRecord sfr = sharedFormulas.get(key);
+			if (sfr != null) {
+				return sfr.getFormulaTokens(record);
+			}
+			ArrayRecord ar = arrayFormulas.get(key);
+			if (ar != null) {
+				return ar.getFormulaTokens();
+			}
+		}
+		return record.getParsedExpression();
+	}
+
+	private static Long key(int row, int col) {
+		return Long.valueOf(((long) row << 16) | col);
+	}
+}
+
+class CellXlsStream implements ICell {
+
+	private final SpreadSheetXlsStream spreadSheet;
+	private final int rowIdx;
+	private final int colIdx;
+	private final short xfIndex;
+	private final CellValueKind kind;
+	private final double number;
+	private final String string;
+
+	public CellXlsStream(SpreadSheetXlsStream spreadSheet, int rowIdx, int colIdx, short xfIndex,
+			CellValueKind kind, double number, String string) {
+		this.spreadSheet = spreadSheet;
+		this.rowIdx = rowIdx;
+		this.colIdx = colIdx;
+		this.xfIndex = xfIndex;
+		this.kind = kind;
+		this.number = number;
+		this.string = string;
+	}
+
+	@Override
+	public int getRowIndex() {
+		return rowIdx;
+	}
+
+	@Override
+	public int getColumnIndex() {
+		return colIdx;
+	}
+
+	@Override
+	public ICellStyle getCellStyle() {
+		return spreadSheet.getCellStyleAt(xfIndex);
+	}
+
+	@Override
+	public int getStyleIndex() {
+		return xfIndex & 0xFFFF;
+	}
+
+	@Override
+	public String getStringValue() {
+		return kind.format(number, string);
+	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		return kind;
+	}
+
+	@Override
+	public double getNumericValue() {
+		return number;
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return number != 0;
+	}
+}
@@ -0,0 +1,630 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFRelation;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+
+/**
+ * Streaming reader for xlsx / xlsm files.
+ *
+ * Each worksheet part is pulled through StAX one row at a time, so only the
+ * shared strings, the styles and the current row are held in memory. Values
+ * are rendered exactly like {@link SpreadSheetExcel} renders them for an
+ * XSSFWorkbook. Rows and cells are expected in ascending order, which is how
+ * Excel and LibreOffice write them. With cached results a formula cell
+ * gives the value saved in its &lt;v&gt; instead of its formula.
+ */
+public class SpreadSheetXlsxStream implements ISpreadSheet {
+
+	private static final XMLInputFactory XML_INPUT_FACTORY = newXMLInputFactory();
+
+	private final OPCPackage pkg;
+	private final ReadOnlySharedStringsTable sharedStrings;
+	private final StylesTable styles;
+	private final List<String> sheetNames = new ArrayList<String>();
+	private final List<PackagePart> sheetParts = new ArrayList<PackagePart>();
+	private final List<String> sharedPartNames = new ArrayList<String>();
+	private final boolean cachedResults;
+
+	public SpreadSheetXlsxStream(File file) throws Exception {
+		this(file, false);
+	}
+
+	public SpreadSheetXlsxStream(File file, boolean cachedResults) throws Exception {
+		this.cachedResults = cachedResults;
+		this.pkg = OPCPackage.open(file.getPath(), PackageAccess.READ);
+		try {
+			XSSFReader reader = new XSSFReader(pkg);
+			this.sharedStrings = new ReadOnlySharedStringsTable(pkg);
+			this.styles = reader.getStylesTable();
+			XSSFReader.SheetIterator sheets = (XSSFReader.SheetIterator) reader.getSheetsData();
+			while (sheets.hasNext()) {
+				sheets.next().close();
+				sheetNames.add(sheets.getSheetName());
+				sheetParts.add(sheets.getSheetPart());
+			}
+			for (PackagePart part : pkg.getPartsByContentType(XSSFRelation.SHARED_STRINGS.getContentType())) {
+				sharedPartNames.add(zipEntryName(part));
+			}
+			if (styles != null) {
+				sharedPartNames.add(zipEntryName(styles.getPackagePart()));
+			}
+		} catch (Exception e) {
+			pkg.revert();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close() {
+		// opened to read, revert closes it without saving
+		pkg.revert();
+	}
+
+	@Override
+	public IFont getFont(short index) {
+		if (styles == null) {
+			// no styles.xml, the cells are in the font a new styles table starts with
+			return new FontExcel(new StylesTable().getFontAt(0));
+		}
+		return new FontExcel(styles.getFontAt(index));
+	}
+
+	@Override
+	public ICellStyle getCellStyleAt(int styleIdx) {
+		if ((styles == null) || (styles.getNumCellStyles() == 0)) {
+			return null;
+		}
+		XSSFCellStyle style = styles.getStyleAt(styleIdx);
+		return style == null ? null : new CellStyleExcel(style);
+	}
+
+	/**
+	 * The shared strings and styles parts, which every sheet depends on.
+	 */
+	List<String> getSharedPartNames() {
+		return sharedPartNames;
+	}
+
+	static String zipEntryName(PackagePart part) {
+		return part.getPartName().getURI().getPath().substring(1);
+	}
+
+	String getSharedString(int idx) {
+		return sharedStrings.getEntryAt(idx);
+	}
+
+	/**
+	 * True if formula cells give their cached results, false for their text.
+	 */
+	boolean usesCachedResults() {
+		return cachedResults;
+	}
+
+	@Override
+	public Iterator<ISheet> getSheetIterator() {
+		return new Iterator<ISheet>() {
+
+			private int currSheetIdx = 0;
+
+			@Override
+			public boolean hasNext() {
+				return currSheetIdx < sheetParts.size();
+			}
+
+			@Override
+			public ISheet next() {
+				ISheet sheet = new SheetXlsxStream(SpreadSheetXlsxStream.this,
+					sheetNames.get(currSheetIdx), sheetParts.get(currSheetIdx), currSheetIdx);
+				currSheetIdx++;
+				return sheet;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	static XMLStreamReader newXMLStreamReader(InputStream in) throws XMLStreamException {
+		return XML_INPUT_FACTORY.createXMLStreamReader(in);
+	}
+
+	private static XMLInputFactory newXMLInputFactory() {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		return factory;
+	}
+}
+
+class SheetXlsxStream implements ISheet {
+
+	private final SpreadSheetXlsxStream spreadSheet;
+	private final String name;
+	private final PackagePart part;
+	private final int sheetIdx;
+
+	public SheetXlsxStream(SpreadSheetXlsxStream spreadSheet, String name, PackagePart part, int sheetIdx) {
+		this.spreadSheet = spreadSheet;
+		this.name = name;
+		this.part = part;
+		this.sheetIdx = sheetIdx;
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public int getSheetIndex() {
+		return sheetIdx;
+	}
+
+	@Override
+	public Iterator<IRow> getRowIterator() {
+		return CellCursors.rowIterator(getCellCursor());
+	}
+
+	@Override
+	public ICellCursor getCellCursor() {
+		try {
+			return new CellXlsxStreamCursor(spreadSheet, part.getInputStream());
+		} catch (Exception e) {
+			throw new RuntimeException("Failed to read sheet " + name, e);
+		}
+	}
+
+	@Override
+	public void forEachCell(CellVisitor visitor) {
+		CellCursors.forEachCell(getCellCursor(), visitor);
+	}
+
+	@Override
+	public List<String> getPartNames() {
+		List<String> names = new ArrayList<String>();
+		names.add(SpreadSheetXlsxStream.zipEntryName(part));
+		names.addAll(spreadSheet.getSharedPartNames());
+		return names;
+	}
+}
+
+/**
+ * Pulls one &lt;c&gt; at a time out of a worksheet part. The stream is closed
+ * as soon as the end of &lt;sheetData&gt; is reached.
+ */
+class CellXlsxStreamCursor implements ICellCursor {
+
+	private final SpreadSheetXlsxStream spreadSheet;
+	private final Map<String,SharedFormula> sharedFormulas = new HashMap<String,SharedFormula>();
+	private final List<ArrayFormula> arrayFormulas = new ArrayList<ArrayFormula>();
+
+	private InputStream in;
+	private XMLStreamReader reader;
+	private int rowIdx = -1;
+	private int colIdx = -1;
+	private int styleIdx;
+	private CellValueKind kind;
+	private double number;
+	private String string;
+
+	CellXlsxStreamCursor(SpreadSheetXlsxStream spreadSheet, InputStream in) throws XMLStreamException {
+		this.spreadSheet = spreadSheet;
+		this.in = in;
+		this.reader = SpreadSheetXlsxStream.newXMLStreamReader(in);
+	}
+
+	@Override
+	public boolean next() {
+		if (reader == null) {
+			return false;
+		}
+		try {
+			if (readCell()) {
+				return true;
+			}
+		} catch (XMLStreamException e) {
+			close();
+			throw new RuntimeException("Failed to parse worksheet", e);
+		}
+		close();
+		return false;
+	}
+
+	@Override
+	public int getRowIndex() {
+		return rowIdx;
+	}
+
+	@Override
+	public int getColumnIndex() {
+		return colIdx;
+	}
+
+	@Override
+	public ICellStyle getCellStyle() {
+		return spreadSheet.getCellStyleAt(styleIdx);
+	}
+
+	@Override
+	public int getStyleIndex() {
+		return styleIdx;
+	}
+
+	@Override
+	public String getStringValue() {
+		return kind.format(number, string);
+	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		return kind;
+	}
+
+	@Override
+	public double getNumericValue() {
+		return number;
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return number != 0;
+	}
+
+	@Override
+	public ICell snapshot() {
+		return new CellXlsxStream(spreadSheet, rowIdx, colIdx, styleIdx, kind, number, string);
+	}
+
+	@Override
+	public void close() {
+		try {
+			if (reader != null) {
+				reader.close();
+			}
+			if (in != null) {
+				in.close();
+			}
+		} catch (Exception e) {
+			// nothing left to read anyway
+		}
+		reader = null;
+		in = null;
+	}
+
+	/**
+	 * Moves to the next &lt;c&gt; of &lt;sheetData&gt;, false at its end.
+	 */
+	private boolean readCell() throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				String tag = reader.getLocalName();
+				if ("c".equals(tag)) {
+					String r = reader.getAttributeValue(null, "r");
+					colIdx = (r == null) ? colIdx + 1 : parseColumn(r);
+					readCellContent();
+					return true;
+				} else if ("row".equals(tag)) {
+					String r = reader.getAttributeValue(null, "r");
+					rowIdx = (r == null) ? rowIdx + 1 : Integer.parseInt(r) - 1;
+					colIdx = -1;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT && "sheetData".equals(reader.getLocalName())) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Column of an A1 reference, without building a CellReference.
+	 */
+	private static int parseColumn(String ref) {
+		int col = 0;
+		for (int i = 0; i < ref.length(); i++) {
+			char ch = Character.toUpperCase(ref.charAt(i));
+			if ((ch >= 'A') && (ch <= 'Z')) {
+				col = col * 26 + (ch - 'A' + 1);
+			} else if (ch != '$') {
+				break;
+			}
+		}
+		return col - 1;
+	}
+
+	private void readCellContent() throws XMLStreamException {
+		String t = reader.getAttributeValue(null, "t");
+		String s = reader.getAttributeValue(null, "s");
+		styleIdx = (s == null) ? 0 : Integer.parseInt(s);
+		String formula = null;
+		String v = null;
+		StringBuilder inlineStr = null;
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				String tag = reader.getLocalName();
+				if ("f".equals(tag) && spreadSheet.usesCachedResults()) {
+					skipElement();
+					depth--;
+				} else if ("f".equals(tag)) {
+					formula = readFormula(rowIdx, colIdx);
+					depth--;
+				} else if ("v".equals(tag)) {
+					v = reader.getElementText();
+					depth--;
+				} else if ("is".equals(tag)) {
+					inlineStr = new StringBuilder();
+				} else if ("rPh".equals(tag)) {
+					skipElement();
+					depth--;
+				} else if ("t".equals(tag) && (inlineStr != null)) {
+					inlineStr.append(reader.getElementText());
+					depth--;
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+		if ((formula == null) && !arrayFormulas.isEmpty()) {
+			formula = findArrayFormula(rowIdx, colIdx);
+		}
+		setValue(t, formula, v, inlineStr);
+	}
+
+	/**
+	 * Same rules as XSSFCell.getCellType followed by CellExcel.getValueKind / getStringValue,
+	 * a formula cell read for its cached result is typed by t like any other.
+	 */
+	private void setValue(String t, String formula, String value, StringBuilder inlineStr) {
+		kind = CellValueKind.STRING;
+		number = 0;
+		if (formula != null) {
+			string = formula;
+		} else if ((t == null) || "n".equals(t)) {
+			if (value == null) {
+				string = "";
+			} else {
+				kind = CellValueKind.NUMERIC;
+				number = Double.parseDouble(value);
+			}
+		} else if ("s".equals(t)) {
+			string = (value == null) ? "" : spreadSheet.getSharedString(Integer.parseInt(value));
+		} else if ("inlineStr".equals(t)) {
+			string = (inlineStr == null) ? "" : inlineStr.toString();
+		} else if ("str".equals(t)) {
+			string = (value == null) ? "" : value;
+		} else if ("b".equals(t)) {
+			kind = CellValueKind.BOOLEAN;
+			number = ((value != null) && !"0".equals(value)) ? 1 : 0;
+		} else if ("e".equals(t)) {
+			string = String.valueOf((value == null) ? 0 : FormulaError.forString(value).getCode());
+		} else {
+			throw new IllegalStateException("Unknown cell type " + t);
+		}
+	}
+
+	private String readFormula(int rowIdx, int colIdx) throws XMLStreamException {
+		String type = reader.getAttributeValue(null, "t");
+		String si = reader.getAttributeValue(null, "si");
+		String ref = reader.getAttributeValue(null, "ref");
+		String text = reader.getElementText();
+		if ("shared".equals(type) && (si != null)) {
+			SharedFormula master = sharedFormulas.get(si);
+			if (text.length() > 0 && ref != null) {
+				sharedFormulas.put(si, new SharedFormula(text, rowIdx, colIdx));
+				return text;
+			}
+			if (master == null) {
+				return text;
+			}
+			return shiftFormula(master.formula, rowIdx - master.rowIdx, colIdx - master.colIdx);
+		}
+		if ("array".equals(type) && (ref != null)) {
+			arrayFormulas.add(new ArrayFormula(CellRangeAddress.valueOf(ref), text));
+		}
+		return text;
+	}
+
+	private String findArrayFormula(int rowIdx, int colIdx) {
+		for (ArrayFormula arrayFormula : arrayFormulas) {
+			if (arrayFormula.range.isInRange(rowIdx, colIdx)) {
+				return arrayFormula.formula;
+			}
+		}
+		return null;
+	}
+
+	private void skipElement() throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * Moves the relative A1 references of a shared formula from the master
+	 * cell to the given offset. String literals and quoted sheet names are
+	 * copied as is.
+	 */
+	static String shiftFormula(String formula, int dRow, int dCol) {
+		StringBuilder sb = new StringBuilder(formula.length() + 8);
+		int len = formula.length();
+		int i = 0;
+		while (i < len) {
+			char ch = formula.charAt(i);
+			if ((ch == '"') || (ch == '\'')) {
+				int end = formula.indexOf(ch, i + 1);
+				end = (end == -1) ? len : end + 1;
+				sb.append(formula, i, end);
+				i = end;
+				continue;
+			}
+			int end = (i > 0 && isNamePart(formula.charAt(i - 1))) ? -1 : matchCellRef(formula, i);
+			if (end == -1) {
+				sb.append(ch);
+				i++;
+				continue;
+			}
+			int p = i;
+			boolean absCol = formula.charAt(p) == '$';
+			if (absCol) p++;
+			int colStart = p;
+			while (Character.isLetter(formula.charAt(p))) p++;
+			String col = formula.substring(colStart, p).toUpperCase();
+			boolean absRow = formula.charAt(p) == '$';
+			if (absRow) p++;
+			int row = Integer.parseInt(formula.substring(p, end));
+			int colIdx = SpreadSheetUtils.convertFromLetter(col) + (absCol ? 0 : dCol);
+			row += absRow ? 0 : dRow;
+			sb.append(absCol ? "$" : "").append(SpreadSheetUtils.convertToLetter(colIdx))
+			  .append(absRow ? "$" : "").append(row);
+			i = end;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the end index of an A1 style reference starting at i, -1 if
+	 * there is none (function names like LOG10( and names are rejected).
+	 */
+	private static int matchCellRef(String formula, int i) {
+		int len = formula.length();
+		int p = i;
+		if (p < len && formula.charAt(p) == '$') p++;
+		int letters = 0;
+		while (p < len && Character.isLetter(formula.charAt(p)) && letters <= 3) {
+			p++;
+			letters++;
+		}
+		if (letters == 0 || letters > 3) return -1;
+		if (p < len && formula.charAt(p) == '$') p++;
+		int digits = 0;
+		while (p < len && Character.isDigit(formula.charAt(p))) {
+			p++;
+			digits++;
+		}
+		if (digits == 0) return -1;
+		if (p < len && (isNamePart(formula.charAt(p)) || formula.charAt(p) == '(')) return -1;
+		return p;
+	}
+
+	private static boolean isNamePart(char ch) {
+		return Character.isLetterOrDigit(ch) || ch == '_' || ch == '.';
+	}
+
+	private static class SharedFormula {
+		final String formula;
+		final int rowIdx;
+		final int colIdx;
+
+		SharedFormula(String formula, int rowIdx, int colIdx) {
+			this.formula = formula;
+			this.rowIdx = rowIdx;
+			this.colIdx = colIdx;
+		}
+	}
+
+	private static class ArrayFormula {
+		final CellRangeAddress range;
+		final String formula;
+
+		ArrayFormula(CellRangeAddress range, String formula) {
+			this.range = range;
+			this.formula = formula;
+		}
+	}
+}
+
+class CellXlsxStream implements ICell {
+
+	private final SpreadSheetXlsxStream spreadSheet;
+	private final int rowIdx;
+	private final int colIdx;
+	private final int styleIdx;
+	private final CellValueKind kind;
+	private final double number;
+	private final String string;
+
+	public CellXlsxStream(SpreadSheetXlsxStream spreadSheet, int rowIdx, int colIdx, int styleIdx,
+			CellValueKind kind, double number, String string) {
+		this.spreadSheet = spreadSheet;
+		this.rowIdx = rowIdx;
+		this.colIdx = colIdx;
+		this.styleIdx = styleIdx;
+		this.kind = kind;
+		this.number = number;
+		this.string = string;
+	}
+
+	@Override
+	public int getRowIndex() {
+		return rowIdx;
+	}
+
+	@Override
+	public int getColumnIndex() {
+		return colIdx;
+	}
+
+	@Override
+	public ICellStyle getCellStyle() {
+		return spreadSheet.getCellStyleAt(styleIdx);
+	}
+
+	@Override
+	public int getStyleIndex() {
+		return styleIdx;
+	}
+
+	@Override
+	public String getStringValue() {
+		return kind.format(number, string);
+	}
+
+	@Override
+	public CellValueKind getValueKind() {
+		return kind;
+	}
+
+	@Override
+	public double getNumericValue() {
+		return number;
+	}
+
+	@Override
+	public boolean getBooleanValue() {
+		return number != 0;
+	}
+}
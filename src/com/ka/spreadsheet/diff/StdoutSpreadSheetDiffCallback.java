@@ -1,67 +1,204 @@
 package com.ka.spreadsheet.diff;
 
 import java.io.File;
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-public class StdoutSpreadSheetDiffCallback implements SpreadSheetDiffCallback {
+/**
+ * Prints the differences as text, by default to System.out.
+ *
+ * Lines are collected in a {@link ReportWriter} and written out in large
+ * chunks, the last of them when the workbooks are reported to differ or
+ * on {@link #flush()}.
+ *
+ * The summaries keep rows and columns in {@link IndexSet}s. They list them
+ * for the whole workbook in the order first seen, or with
+ * {@link #setRangeSummary(boolean)} per sheet as sorted ranges with the
+ * number of diffs in each, like [1-50000 (120000), 60000 (1)].
+ */
+public class StdoutSpreadSheetDiffCallback extends ReportSpreadSheetDiffCallback {
+
+    private final Summary diffs = new Summary();
+    private final Summary extras1 = new Summary();
+    private final Summary extras2 = new Summary();
+    private boolean rangeSummary;
+
+    public StdoutSpreadSheetDiffCallback() {
+        this(System.out, false);
+    }
+
+    public StdoutSpreadSheetDiffCallback(OutputStream stream, boolean gzip) {
+        super(stream, gzip, Charset.defaultCharset());
+    }
+
+    public StdoutSpreadSheetDiffCallback(WritableByteChannel channel) {
+        super(channel, Charset.defaultCharset());
+    }
+
+    /**
+     * Whether the summaries list rows and columns per sheet as sorted ranges.
+     * Call before any diff is reported.
+     */
+    public void setRangeSummary(boolean rangeSummary) {
+        this.rangeSummary = rangeSummary;
+    }
 
-	private final Set<Object> sheets = new LinkedHashSet<Object>();
-	private final Set<Object> rows = new LinkedHashSet<Object>();
-	private final Set<Object> cols = new LinkedHashSet<Object>();
-    
-	private final Set<Object> sheets1 = new LinkedHashSet<Object>();
-	private final Set<Object> rows1 = new LinkedHashSet<Object>();
-	private final Set<Object> cols1 = new LinkedHashSet<Object>();
-    
-	private final Set<Object> sheets2 = new LinkedHashSet<Object>();
-	private final Set<Object> rows2 = new LinkedHashSet<Object>();
-	private final Set<Object> cols2 = new LinkedHashSet<Object>();
-    
     @Override
     public void reportWorkbooksDiffer(boolean differ, File file1, File file2) {
-    	reportSummary("DIFF", sheets, rows, cols);
-        reportSummary("EXTRA WB1", sheets1, rows1, cols1);
-        reportSummary("EXTRA WB2", sheets2, rows2, cols2);
-        System.out.println("-----------------------------------------");
-        System.out.println("Excel files " + file1 + " and " + file2 + " " + (differ ? "differ" : "match"));
+        reportSummary("DIFF", diffs);
+        reportSummary("EXTRA WB1", extras1);
+        reportSummary("EXTRA WB2", extras2);
+        out.append("-----------------------------------------").newLine();
+        out.append("Excel files ").append(String.valueOf(file1)).append(" and ").append(String.valueOf(file2))
+            .append(differ ? " differ" : " match").newLine();
+        flush();
     }
 
     @Override
     public void reportStyleDiff(String diff, CellPos c1, CellPos c2) {
-        sheets.add(c1.getSheetName());
-        rows.add(c1.getRow());
-        cols.add(c1.getColumn());
-        System.out.println("STYLE DIFF " + diff);
+        diffs.add(c1, rangeSummary);
+        out.append("STYLE DIFF ").append(String.valueOf(diff)).newLine();
     }
 
     @Override
     public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
-        if (inFirstSpreadSheet){
-            sheets1.add(c.getSheetName());
-            rows1.add(c.getRow());
-            cols1.add(c.getColumn());
-        } else {
-            sheets2.add(c.getSheetName());
-            rows2.add(c.getRow());
-            cols2.add(c.getColumn());
-        }
-        String wb = inFirstSpreadSheet ? "WB1" : "WB2";
-        System.out.println("EXTRA Cell in " + wb + " " + c.getCellPosition() +" => '" + c.getStringValue() + "'");
+        (inFirstSpreadSheet ? extras1 : extras2).add(c, rangeSummary);
+        out.append(inFirstSpreadSheet ? "EXTRA Cell in WB1 " : "EXTRA Cell in WB2 ");
+        appendCellPosition(c);
+        out.append(" => '").append(String.valueOf(c.getStringValue())).append('\'').newLine();
+    }
+
+    @Override
+    public void reportExtraRow(boolean inFirstSpreadSheet, String sheetName, int rowIndex) {
+        (inFirstSpreadSheet ? extras1 : extras2).addRow(sheetName, rowIndex, rangeSummary);
+        out.append(inFirstSpreadSheet ? "EXTRA Row in WB1 " : "EXTRA Row in WB2 ");
+        out.append(String.valueOf(sheetName)).append('!').append(SpreadSheetUtils.ROW_INTERNAL_TO_USER(rowIndex)).newLine();
     }
     
     @Override
     public void reportDiffCell(CellPos c1, CellPos c2) {
-        sheets.add(c1.getSheetName());
-        rows.add(c1.getRow());
-        cols.add(c1.getColumn());
-        System.out.println("DIFF  Cell at     " + c1.getCellPosition()+" => '"+ c1.getStringValue() +"' v/s '" + c2.getStringValue() + "'");
+        diffs.add(c1, rangeSummary);
+        out.append("DIFF  Cell at     ");
+        appendCellPosition(c1);
+        out.append(" => '").append(String.valueOf(c1.getStringValue()))
+            .append("' v/s '").append(String.valueOf(c2.getStringValue())).append('\'');
+        if (c2.getCell().getRowIndex() != c1.getCell().getRowIndex()) {
+            // rows are aligned
+            out.append(" (WB2 ");
+            appendCellPosition(c2);
+            out.append(')');
+        }
+        out.newLine();
+    }
+
+    private void appendCellPosition(CellPos c) {
+        ICell cell = c.getCell();
+        out.append(String.valueOf(c.getSheetName())).append('!').appendCell(cell.getRowIndex(), cell.getColumnIndex());
     }
     
-    private void reportSummary(String what, Set<Object> sheets, Set<Object> rows, Set<Object> cols) {
-        System.out.println("----------------- "+what+" -------------------");
-        System.out.println("Sheets: " + sheets);
-        System.out.println("Rows: " + rows);
-        System.out.println("Cols: " + cols);
+    private void reportSummary(String what, Summary summary) {
+        out.append("----------------- ").append(what).append(" -------------------").newLine();
+        out.append("Sheets: ").append(summary.sheets.keySet().toString()).newLine();
+        if (rangeSummary) {
+            for (Map.Entry<String,Indexes> sheet : summary.sheets.entrySet()) {
+                out.append(sheet.getKey()).append(" Rows: ");
+                appendIndexes(sheet.getValue().rows, false);
+                out.newLine();
+                out.append(sheet.getKey()).append(" Cols: ");
+                appendIndexes(sheet.getValue().cols, true);
+                out.newLine();
+            }
+        } else {
+            out.append("Rows: ");
+            appendIndexes(summary.all.rows, false);
+            out.newLine();
+            out.append("Cols: ");
+            appendIndexes(summary.all.cols, true);
+            out.newLine();
+        }
+    }
+
+    /**
+     * Appends indexes the way a set of row numbers or column letters is
+     * printed, in order first seen or as sorted ranges with their counts.
+     */
+    private void appendIndexes(IndexSet indexes, boolean columns) {
+        out.append('[');
+        boolean first = true;
+        if (rangeSummary) {
+            for (int i = indexes.nextSetIndex(0); i >= 0; ) {
+                int end = indexes.nextClearIndex(i) - 1;
+                first = appendSeparator(first);
+                appendIndex(i, columns);
+                if (end > i) {
+                    out.append('-');
+                    appendIndex(end, columns);
+                }
+                out.append(" (").append(String.valueOf(indexes.count(i, end))).append(')');
+                i = indexes.nextSetIndex(end + 1);
+            }
+        } else {
+            for (int run = 0; run < indexes.runCount(); run++) {
+                for (int i = indexes.runStart(run); i <= indexes.runEnd(run); i++) {
+                    first = appendSeparator(first);
+                    appendIndex(i, columns);
+                }
+            }
+        }
+        out.append(']');
+    }
+
+    private boolean appendSeparator(boolean first) {
+        if (!first) {
+            out.append(", ");
+        }
+        return false;
+    }
+
+    private void appendIndex(int index, boolean columns) {
+        if (columns) {
+            out.appendColumn(index);
+        } else {
+            out.append(SpreadSheetUtils.ROW_INTERNAL_TO_USER(index));
+        }
+    }
+
+    /**
+     * Sheets, rows and columns of the diffs or of the extra cells of a
+     * workbook. The sheets share the indexes of the workbook, unless they
+     * are kept per sheet.
+     */
+    private static class Summary {
+
+        final Map<String,Indexes> sheets = new LinkedHashMap<String,Indexes>();
+        final Indexes all = new Indexes();
+
+        void add(CellPos c, boolean perSheet) {
+            Indexes indexes = indexes(c.getSheetName(), perSheet);
+            indexes.rows.add(c.getCell().getRowIndex());
+            indexes.cols.add(c.getCell().getColumnIndex());
+        }
+
+        void addRow(String sheetName, int rowIndex, boolean perSheet) {
+            indexes(sheetName, perSheet).rows.add(rowIndex);
+        }
+
+        private Indexes indexes(String sheetName, boolean perSheet) {
+            Indexes indexes = sheets.get(sheetName);
+            if (indexes == null) {
+                indexes = perSheet ? new Indexes() : all;
+                sheets.put(sheetName, indexes);
+            }
+            return indexes;
+        }
+    }
+
+    private static class Indexes {
+
+        final IndexSet rows = new IndexSet();
+        final IndexSet cols = new IndexSet();
     }
 }
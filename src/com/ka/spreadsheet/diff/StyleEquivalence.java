@@ -0,0 +1,187 @@
+package com.ka.spreadsheet.diff;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares cell styles of two workbooks by style index.
+ *
+ * A workbook has few distinct styles compared to cells, so each pair of
+ * style indexes (one per workbook) is compared once, property by property,
+ * and the outcome is kept. Checking a cell then is a lookup of its pair in
+ * a table indexed by the style index of workbook 1, then of workbook 2,
+ * without allocating or hashing. Fonts are looked up once per font index
+ * and workbook.
+ *
+ * Safe to share between the threads of a parallel diff: the table is
+ * replaced, never changed, when a pair is added, so it is read without
+ * locking.
+ */
+public class StyleEquivalence {
+
+	private final ISpreadSheet ss1;
+	private final ISpreadSheet ss2;
+	// pairs[idx1][idx2], null where not compared yet
+	private volatile StylePair[][] pairs = new StylePair[0][];
+	private final Map<Short,IFont> fonts1 = new HashMap<Short,IFont>();
+	private final Map<Short,IFont> fonts2 = new HashMap<Short,IFont>();
+
+	public StyleEquivalence(ISpreadSheet ss1, ISpreadSheet ss2) {
+		this.ss1 = ss1;
+		this.ss2 = ss2;
+	}
+
+	/**
+	 * Returns null if the styles of both cells match, otherwise the difference
+	 * to report.
+	 */
+	public String diff(ISheet sheet1, ICell c1, ISheet sheet2, ICell c2) {
+		int idx1 = c1.getStyleIndex();
+		int idx2 = c2.getStyleIndex();
+		if ((idx1 < 0) || (idx2 < 0)) {
+			return null;
+		}
+		StylePair pair = lookup(pairs, idx1, idx2);
+		if (pair == null) {
+			pair = comparePair(idx1, idx2);
+		}
+
+		if (pair.styleMismatch != null) {
+			return "Styles of Cell " + new CellPos(sheet1, c1).getCellPosition() + " does not match " + new CellPos(sheet2, c2).getCellPosition() + " (" + pair.styleMismatch + ")";
+		}
+		if (isBlank(c1) && isBlank(c2)) {
+			return null;
+		}
+		if (pair.fontFailure != null) {
+			return pair.fontFailure;
+		}
+		if (pair.fontMismatch != null) {
+			return "Styles of Cell " + new CellPos(sheet1, c1).getCellPosition() + " does not match " + new CellPos(sheet2, c2).getCellPosition() + " (" + pair.fontMismatch + ") for content '" + c1.getStringValue() + "'";
+		}
+		return null;
+	}
+
+	private static boolean isBlank(ICell c) {
+		return (c.getValueKind() == CellValueKind.STRING) && c.getStringValue().trim().equals("");
+	}
+
+	private static StylePair lookup(StylePair[][] pairs, int idx1, int idx2) {
+		StylePair[] row = (idx1 < pairs.length) ? pairs[idx1] : null;
+		return ((row != null) && (idx2 < row.length)) ? row[idx2] : null;
+	}
+
+	private synchronized StylePair comparePair(int idx1, int idx2) {
+		StylePair pair = lookup(pairs, idx1, idx2);
+		if (pair != null) {
+			return pair;
+		}
+		ICellStyle s1 = ss1.getCellStyleAt(idx1);
+		ICellStyle s2 = ss2.getCellStyleAt(idx2);
+		if ((s1 == null) || (s2 == null)) {
+			pair = new StylePair(null, null, null);
+		} else {
+			String styleMismatch = compareStyles(s1, s2);
+			String fontFailure = null;
+			String fontMismatch = null;
+			if (styleMismatch == null) {
+				IFont f1 = null, f2 = null;
+				try {
+					f1 = getFont(ss1, fonts1, s1.getFontIndex());
+				} catch (Exception e) {
+					fontFailure = "failed to load font 1 #" + s1.getFontIndex();
+				}
+				if (fontFailure == null) {
+					try {
+						f2 = getFont(ss2, fonts2, s2.getFontIndex());
+					} catch (Exception e) {
+						fontFailure = "failed to load font 2 #" + s2.getFontIndex();
+					}
+				}
+				if ((f1 != null) && (f2 != null)) {
+					fontMismatch = compareFonts(f1, f2);
+				}
+			}
+			pair = new StylePair(styleMismatch, fontFailure, fontMismatch);
+		}
+		// readers may hold the old table, the new one shares all rows but the one changed
+		StylePair[][] table = Arrays.copyOf(pairs, Math.max(pairs.length, idx1 + 1));
+		StylePair[] row = (table[idx1] != null) ? table[idx1] : new StylePair[0];
+		row = Arrays.copyOf(row, Math.max(row.length, Math.max(idx2 + 1, 2 * row.length)));
+		row[idx2] = pair;
+		table[idx1] = row;
+		pairs = table;
+		return pair;
+	}
+
+	private static IFont getFont(ISpreadSheet ss, Map<Short,IFont> fonts, short index) {
+		Short key = Short.valueOf(index);
+		IFont font = fonts.get(key);
+		if ((font == null) && !fonts.containsKey(key)) {
+			font = ss.getFont(index);
+			fonts.put(key, font);
+		}
+		return font;
+	}
+
+	/**
+	 * Returns the first property that differs, or null.
+	 */
+	private static String compareStyles(ICellStyle s1, ICellStyle s2) {
+		String d;
+		if ((d = compare(s1.getLocked(), s2.getLocked(), "locked")) != null) return d;
+		if ((d = compare(s1.getAlignment(), s2.getAlignment(), "alignment")) != null) return d;
+		if ((d = compare(s1.getBorderBottom(), s2.getBorderBottom(), "borderBottom")) != null) return d;
+		if ((d = compare(s1.getBorderLeft(), s2.getBorderLeft(), "borderLeft")) != null) return d;
+		if ((d = compare(s1.getBorderRight(), s2.getBorderRight(), "borderRight")) != null) return d;
+		if ((d = compare(s1.getBorderTop(), s2.getBorderTop(), "borderTop")) != null) return d;
+		if ((d = compare(s1.getWrapText(), s2.getWrapText(), "wrapText")) != null) return d;
+		if ((d = compare(s1.getVerticalAlignment(), s2.getVerticalAlignment(), "verticalAlignment")) != null) return d;
+		if ((d = compare(s1.getTopBorderColor(), s2.getTopBorderColor(), "topBorderColor")) != null) return d;
+		if ((d = compare(s1.getRotation(), s2.getRotation(), "rotation")) != null) return d;
+		if ((d = compare(s1.getRightBorderColor(), s2.getRightBorderColor(), "rightBorderColor")) != null) return d;
+		if ((d = compare(s1.getLeftBorderColor(), s2.getLeftBorderColor(), "leftBorderColor")) != null) return d;
+		if ((d = compare(s1.getIndention(), s2.getIndention(), "indention")) != null) return d;
+		if ((d = compare(s1.getHidden(), s2.getHidden(), "hidden")) != null) return d;
+		if ((d = compare(s1.getFillPattern(), s2.getFillPattern(), "fillPattern")) != null) return d;
+		if ((d = compare(s1.getFillForegroundColorColor(), s2.getFillForegroundColorColor(), "fillForegroundColorColor")) != null) return d;
+		if ((d = compare(s1.getFillForegroundColor(), s2.getFillForegroundColor(), "fillForegroundColor")) != null) return d;
+		if ((d = compare(s1.getDataFormatString(), s2.getDataFormatString(), "dataFormatString")) != null) return d;
+		if ((d = compare(s1.getBottomBorderColor(), s2.getBottomBorderColor(), "bottomBordercolor")) != null) return d;
+		if ((d = compare(s1.getFillBackgroundColor(), s2.getFillBackgroundColor(), "fillBackgroundColor")) != null) return d;
+		if ((d = compare(s1.getFillBackgroundColorColor(), s2.getFillBackgroundColorColor(), "fillBackgroundColorColor")) != null) return d;
+		return null;
+	}
+
+	private static String compareFonts(IFont f1, IFont f2) {
+		String d;
+		if ((d = compare(f1.getBoldweight(), f2.getBoldweight(), "bold")) != null) return d;
+		if ((d = compare(f1.getColor(), f2.getColor(), "color")) != null) return d;
+		if ((d = compare(f1.getFontHeight(), f2.getFontHeight(), "fontHeight")) != null) return d;
+		if ((d = compare(f1.getFontName(), f2.getFontName(), "fontName")) != null) return d;
+		return null;
+	}
+
+	private static String compare(Object o1, Object o2, String description) {
+		if (o1 == null && o2 == null)
+			return null;
+
+		if (o1 == null || o2 == null || !o1.equals(o2)) {
+			return description + " do not match: " + o1 + " != " + o2;
+		}
+		return null;
+	}
+
+	private static class StylePair {
+
+		final String styleMismatch;
+		final String fontFailure;
+		final String fontMismatch;
+
+		StylePair(String styleMismatch, String fontFailure, String fontMismatch) {
+			this.styleMismatch = styleMismatch;
+			this.fontFailure = fontFailure;
+			this.fontMismatch = fontMismatch;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Tells, before anything is parsed, which parts of two workbooks are the
+ * same.
+ *
+ * For xlsx and ods only the zip central directories are read: two parts
+ * with equal CRC32 and size are taken as equal. Workbooks whose parts are
+ * all equal, like byte identical files, match without being read if they
+ * are ignored alike; a sheet pair whose parts ({@link ISheet#getPartNames()})
+ * are equal is not diffed, provided it has the same ignores on both sides.
+ * An xls file has no parts, it is only found identical to another one byte
+ * by byte.
+ */
+public class UnchangedSheets {
+
+	private final File file1;
+	private final File file2;
+	private final SpreadSheetFormat format;
+	private final Map<String,ZipPart> parts1;
+	private final Map<String,ZipPart> parts2;
+
+	/**
+	 * Nothing is found the same if either file cannot be read, reading it
+	 * for the diff will tell why.
+	 */
+	public UnchangedSheets(File file1, File file2) {
+		this.file1 = file1;
+		this.file2 = file2;
+		SpreadSheetFormat format = null;
+		Map<String,ZipPart> parts1 = null;
+		Map<String,ZipPart> parts2 = null;
+		try {
+			SpreadSheetFormat format1 = SpreadSheetFormat.sniff(file1);
+			if (format1 == SpreadSheetFormat.sniff(file2)) {
+				if ((format1 == SpreadSheetFormat.XLSX) || (format1 == SpreadSheetFormat.ODS)) {
+					parts1 = readParts(file1);
+					parts2 = readParts(file2);
+				}
+				format = format1;
+			}
+		} catch (IOException e) {
+			format = null;
+			parts1 = null;
+			parts2 = null;
+		}
+		this.format = format;
+		this.parts1 = parts1;
+		this.parts2 = parts2;
+	}
+
+	/**
+	 * True if both files are of the same known format and all their parts,
+	 * or all their bytes, are the same.
+	 */
+	public boolean isIdentical() throws IOException {
+		if (format == null) {
+			return false;
+		}
+		if (parts1 != null) {
+			return parts1.equals(parts2);
+		}
+		return isSameContent(file1, file2);
+	}
+
+	/**
+	 * True if diffing the two sheets cannot find anything: both are read
+	 * from parts which are the same, and are ignored alike.
+	 */
+	public boolean isUnchanged(ISheet sheet1, SheetIgnores ignores1, ISheet sheet2, SheetIgnores ignores2) {
+		if ((parts1 == null) || (sheet1 == null) || (sheet2 == null)) {
+			return false;
+		}
+		if ((ignores1 == null) ? (ignores2 != null) : !ignores1.equals(ignores2)) {
+			return false;
+		}
+		List<String> names1 = sheet1.getPartNames();
+		List<String> names2 = sheet2.getPartNames();
+		if ((names1 == null) || (names2 == null) || (names1.size() != names2.size())) {
+			return false;
+		}
+		for (int i = 0; i < names1.size(); i++) {
+			ZipPart part1 = parts1.get(names1.get(i));
+			if ((part1 == null) || !part1.equals(parts2.get(names2.get(i)))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static Map<String,ZipPart> readParts(File file) throws IOException {
+		Map<String,ZipPart> parts = new HashMap<String,ZipPart>();
+		ZipFile zip = new ZipFile(file);
+		try {
+			for (Enumeration<? extends ZipEntry> entries = zip.entries(); entries.hasMoreElements();) {
+				ZipEntry entry = entries.nextElement();
+				parts.put(entry.getName(), new ZipPart(entry.getCrc(), entry.getSize()));
+			}
+		} finally {
+			zip.close();
+		}
+		return parts;
+	}
+
+	private static boolean isSameContent(File file1, File file2) throws IOException {
+		if (file1.getCanonicalFile().equals(file2.getCanonicalFile())) {
+			return true;
+		}
+		if (file1.length() != file2.length()) {
+			return false;
+		}
+		InputStream in1 = new FileInputStream(file1);
+		try {
+			InputStream in2 = new FileInputStream(file2);
+			try {
+				byte[] buf1 = new byte[1 << 16];
+				byte[] buf2 = new byte[1 << 16];
+				int n;
+				while ((n = read(in1, buf1)) > 0) {
+					if ((read(in2, buf2) != n) || !equals(buf1, buf2, n)) {
+						return false;
+					}
+				}
+				return read(in2, buf2) == 0;
+			} finally {
+				in2.close();
+			}
+		} finally {
+			in1.close();
+		}
+	}
+
+	// fills buf unless the stream ends first
+	private static int read(InputStream in, byte[] buf) throws IOException {
+		int len = 0;
+		int n;
+		while ((len < buf.length) && ((n = in.read(buf, len, buf.length - len)) != -1)) {
+			len += n;
+		}
+		return len;
+	}
+
+	private static boolean equals(byte[] buf1, byte[] buf2, int len) {
+		for (int i = 0; i < len; i++) {
+			if (buf1[i] != buf2[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static class ZipPart {
+
+		final long crc;
+		final long size;
+
+		ZipPart(long crc, long size) {
+			this.crc = crc;
+			this.size = size;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			// an unknown crc or size never matches
+			return (o instanceof ZipPart) && (crc != -1) && (size != -1)
+				&& (crc == ((ZipPart) o).crc) && (size == ((ZipPart) o).size);
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) (crc ^ size);
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.ka.spreadsheet.diff;
+
+/**
+ * Tells whether two cells hold the same value.
+ *
+ * Numbers and booleans are compared as such, without formatting them. Two
+ * numbers also match if they are within the absolute or the relative
+ * tolerance of each other. Cells of different kinds are compared by their
+ * string values, as before.
+ */
+public class ValueComparator {
+
+	private final double absTol;
+	private final double relTol;
+
+	public ValueComparator(double absTol, double relTol) {
+		this.absTol = absTol;
+		this.relTol = relTol;
+	}
+
+	public boolean equal(ICell c1, ICell c2) {
+		CellValueKind kind = c1.getValueKind();
+		if (kind == c2.getValueKind()) {
+			if (kind == CellValueKind.NUMERIC) {
+				return equal(c1.getNumericValue(), c2.getNumericValue());
+			} else if (kind == CellValueKind.BOOLEAN) {
+				return c1.getBooleanValue() == c2.getBooleanValue();
+			}
+		}
+		return c1.getStringValue().equals(c2.getStringValue());
+	}
+
+	/**
+	 * True if numbers which differ may still match.
+	 */
+	boolean hasTolerance() {
+		return (absTol != 0) || (relTol != 0);
+	}
+
+	boolean equal(double d1, double d2) {
+		// same as comparing String.valueOf(d): NaN matches NaN, 0.0 does not match -0.0
+		if (Double.doubleToLongBits(d1) == Double.doubleToLongBits(d2)) {
+			return true;
+		}
+		if ((absTol == 0) && (relTol == 0)) {
+			return false;
+		}
+		double diff = Math.abs(d1 - d2);
+		return (diff <= absTol) || (diff <= relTol * Math.max(Math.abs(d1), Math.abs(d2)));
+	}
+}
@@ -0,0 +1,258 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Diffs big generated workbooks, see {@link WorkbookGenerator}, one pair per
+ * format, and fails when a diff runs out of memory, finds other diffs than
+ * the cells the generator changed, or diffs fewer cells per second than the
+ * baseline recorded for its shape, less the tolerance.
+ *
+ * ant scale-test runs it twice: with --generate in a big heap to write the
+ * missing workbooks, then in the heap under test to diff them. --record
+ * writes the measured throughput to the baseline file instead of checking it.
+ *
+ * Usage: ScaleTest --dir &lt;dir&gt; [--generate] [--formats xlsx,xls,ods] [--rows n]
+ * [--cols n] [--sheets n] [--baseline &lt;file&gt;] [--tolerance f] [--record]
+ */
+public class ScaleTest {
+
+	private File dir;
+	private boolean generate;
+	private String[] formats = {"xlsx", "xls", "ods"};
+	private int rows = 100000;
+	private int cols = 10;
+	private int sheets = 1;
+	private File baselineFile;
+	// the fraction of the baseline throughput a run may lose
+	private double tolerance = 0.3;
+	private boolean record;
+
+	public static void main(String[] args) throws Exception {
+		ScaleTest test = new ScaleTest();
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if ("--generate".equals(option)) {
+				test.generate = true;
+			} else if ("--record".equals(option)) {
+				test.record = true;
+			} else if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value of " + option);
+			} else if ("--dir".equals(option)) {
+				test.dir = new File(args[++i]);
+			} else if ("--formats".equals(option)) {
+				test.formats = args[++i].split(",");
+			} else if ("--rows".equals(option)) {
+				test.rows = Integer.parseInt(args[++i]);
+			} else if ("--cols".equals(option)) {
+				test.cols = Integer.parseInt(args[++i]);
+			} else if ("--sheets".equals(option)) {
+				test.sheets = Integer.parseInt(args[++i]);
+			} else if ("--baseline".equals(option)) {
+				test.baselineFile = new File(args[++i]);
+			} else if ("--tolerance".equals(option)) {
+				test.tolerance = Double.parseDouble(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+		if (test.dir == null) {
+			throw new IllegalArgumentException("No --dir");
+		}
+		if (test.generate) {
+			test.generate();
+		} else {
+			test.run();
+		}
+	}
+
+	private void generate() throws Exception {
+		dir.mkdirs();
+		for (String format : formats) {
+			WorkbookGenerator generator = generator(format);
+			for (boolean changed : new boolean[]{false, true}) {
+				File file = workbook(format, changed);
+				if (!file.isFile()) {
+					long start = System.nanoTime();
+					File tmp = new File(dir, "tmp_" + file.getName());
+					generator.write(tmp, changed);
+					if (!tmp.renameTo(file)) {
+						throw new IOException("Cannot rename " + tmp + " to " + file);
+					}
+					System.out.println("Wrote " + file + " in " + millis(start) + " ms");
+				}
+			}
+		}
+	}
+
+	private void run() throws Exception {
+		Map<String,Double> baseline = readBaseline();
+		List<String> failures = new ArrayList<String>();
+		System.out.println("Heap: " + (Runtime.getRuntime().maxMemory() >> 20) + " MB");
+		for (String format : formats) {
+			WorkbookGenerator generator = generator(format);
+			String shape = shape(format, generator);
+			File file1 = workbook(format, false);
+			File file2 = workbook(format, true);
+			if (!file1.isFile() || !file2.isFile()) {
+				failures.add(shape + ": no workbooks in " + dir + ", run with --generate first");
+				continue;
+			}
+			long cells = (long) generator.sheets * generator.rows * generator.cols;
+			long expectedDiffs = generator.changedCells();
+			resetPeakHeap();
+			CountingDiffCallback diffCallback = new CountingDiffCallback();
+			long start = System.nanoTime();
+			try {
+				SpreadSheetDiffer.doDiff(new String[]{file1.getPath(), file2.getPath()}, diffCallback);
+			} catch (OutOfMemoryError e) {
+				failures.add(shape + ": out of memory in a " + (Runtime.getRuntime().maxMemory() >> 20) + " MB heap");
+				continue;
+			}
+			long elapsed = Math.max(1, System.nanoTime() - start);
+			double cellsPerSec = cells * 1e9 / elapsed;
+			System.out.println(String.format("%s: %d cells in %d ms, %.0f cells/s, peak heap %d MB, %d diffs",
+				shape, cells, elapsed / 1000000, cellsPerSec, peakHeap() >> 20, diffCallback.diffs));
+			if ((diffCallback.diffs != expectedDiffs) || (diffCallback.extras != 0)) {
+				failures.add(shape + ": " + diffCallback.diffs + " diffs and " + diffCallback.extras
+					+ " extra cells, expected " + expectedDiffs + " diffs");
+			}
+			Double expected = baseline.get(shape);
+			if (record) {
+				baseline.put(shape, Math.floor(cellsPerSec));
+			} else if (expected == null) {
+				System.out.println(shape + ": no baseline, record one with --record");
+			} else if (cellsPerSec < expected * (1 - tolerance)) {
+				failures.add(String.format("%s: %.0f cells/s, the baseline is %.0f cells/s", shape, cellsPerSec, expected));
+			}
+		}
+		if (record) {
+			writeBaseline(baseline);
+		}
+		if (!failures.isEmpty()) {
+			for (String failure : failures) {
+				System.out.println("FAILED " + failure);
+			}
+			throw new AssertionError(failures.size() + " scale tests failed");
+		}
+		System.out.println("All scale tests pass");
+	}
+
+	private WorkbookGenerator generator(String format) {
+		WorkbookGenerator generator = new WorkbookGenerator();
+		generator.rows = "xls".equals(format) ? Math.min(rows, WorkbookGenerator.XLS_MAX_ROWS) : rows;
+		generator.cols = cols;
+		generator.sheets = sheets;
+		return generator;
+	}
+
+	private String shape(String format, WorkbookGenerator generator) {
+		return format + "." + generator.sheets + "x" + generator.rows + "x" + generator.cols;
+	}
+
+	private File workbook(String format, boolean changed) {
+		return new File(dir, "scale_" + shape(format, generator(format)).replace('.', '_') + (changed ? "_changed." : ".") + format);
+	}
+
+	/**
+	 * Cells per second by shape, one "shape = cells/s" per line.
+	 */
+	private Map<String,Double> readBaseline() throws IOException {
+		Map<String,Double> baseline = new TreeMap<String,Double>();
+		if ((baselineFile == null) || !baselineFile.isFile()) {
+			return baseline;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(baselineFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				int eq = line.indexOf('=');
+				if (line.startsWith("#") || (eq < 0)) {
+					continue;
+				}
+				baseline.put(line.substring(0, eq).trim(), Double.valueOf(line.substring(eq + 1).trim()));
+			}
+		}
+		return baseline;
+	}
+
+	private void writeBaseline(Map<String,Double> baseline) throws IOException {
+		if (baselineFile == null) {
+			throw new IllegalArgumentException("No --baseline to record to");
+		}
+		try (PrintStream out = new PrintStream(baselineFile, "UTF-8")) {
+			out.println("# Cells diffed per second by format.sheetsxrowsxcols, written by ScaleTest --record");
+			for (Map.Entry<String,Double> entry : baseline.entrySet()) {
+				out.println(entry.getKey() + " = " + String.format("%.0f", entry.getValue()));
+			}
+		}
+		System.out.println("Recorded the baseline to " + baselineFile);
+	}
+
+	private static void resetPeakHeap() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	private static long peakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+
+	private static long millis(long start) {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	/**
+	 * Counts the diffs instead of reporting them, so that only reading and
+	 * comparing are measured.
+	 */
+	private static class CountingDiffCallback implements SpreadSheetDiffCallback {
+
+		long diffs;
+		long extras;
+
+		@Override
+		public void reportDiffCell(CellPos c1, CellPos c2) {
+			diffs++;
+		}
+
+		@Override
+		public void reportExtraCell(boolean inFirstSpreadSheet, CellPos c) {
+			extras++;
+		}
+
+		@Override
+		public void reportExtraRow(boolean inFirstSpreadSheet, String sheetName, int rowIndex) {
+			extras++;
+		}
+
+		@Override
+		public void reportWorkbooksDiffer(boolean differ, File file1, File file2) {
+		}
+
+		@Override
+		public void reportStyleDiff(String diff, CellPos c1, CellPos c2) {
+		}
+	}
+}
@@ -1,10 +1,18 @@
 package com.ka.spreadsheet.diff;
 
+import static com.ka.spreadsheet.diff.TestUtils.assertEquals;
 import static com.ka.spreadsheet.diff.TestUtils.assertTrue;
 import static com.ka.spreadsheet.diff.TestUtils.verifyFileContentsSame;
 
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Files;
 
 import javax.annotation.Nullable;
 
@@ -58,10 +66,325 @@ public class SpreadSheetDifferSmokeTest {
 			new String[]{"test/resources/numeric_and_formula.xls", "test/resources/numeric_and_formula.ods"},
 			new File("test/resources/numeric_and_formula.xls.ods.out"),
 			null);
+		testDiff(
+			"Diff xlsx files on threads",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx", "--threads", "4"},
+			new File("test/resources/ss1_xlsx_ss2_xlsx.out"),
+			null);
+		testDiff(
+			"Numeric and formula xls odf on threads",
+			new String[]{"test/resources/numeric_and_formula.xls", "test/resources/numeric_and_formula.ods", "--threads", "2"},
+			new File("test/resources/numeric_and_formula.xls.ods.out"),
+			null);
+		testDiff(
+			"Numeric and formula xls xlsx with styles",
+			new String[]{"test/resources/numeric_and_formula.xls", "test/resources/numeric_and_formula.xlsx", "--diff-style"},
+			new File("test/resources/numeric_and_formula.xls.xlsx.style.out"),
+			null);
+		testDiff(
+			"Diff xlsx files with ignore file",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx", "--ignore-file", "test/resources/ss1_xlsx_ss2_xlsx.ignores"},
+			new File("test/resources/ss1_xlsx_ss2_xlsx_ignores.out"),
+			null);
+		testDiff(
+			"Diff xlsx files with ignore file starting with a spec",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx", "--ignore-file", "test/resources/spec_first.ignores"},
+			null,
+			new File("test/resources/spec_first_ignores.err"));
+		testDiff(
+			"Diff xlsx numbers with tolerance",
+			new String[]{"test/resources/tolerance1.xlsx", "test/resources/tolerance2.xlsx", "--abs-tol", "1e-6", "--rel-tol", "1e-8"},
+			new File("test/resources/tolerance1_tolerance2.out"),
+			null);
+		testDiff(
+			"Diff xlsx files with range summary",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/numeric_and_formula.xlsx", "--range-summary"},
+			new File("test/resources/ss1_xlsx_numeric_and_formula_xlsx_ranges.out"),
+			null);
+		testDiff(
+			"Diff xlsx files with range summary per sheet",
+			new String[]{"test/resources/sheets1.xlsx", "test/resources/sheets2.xlsx", "--range-summary"},
+			new File("test/resources/sheets1_xlsx_sheets2_xlsx_ranges.out"),
+			null);
+		testDiffMerged(
+			"Diff failing in the middle of the report",
+			new String[]{"test/resources/sheets1.xlsx", "test/resources/sheets2_broken.xlsx"},
+			new File("test/resources/sheets1_xlsx_sheets2_broken_xlsx.out"));
+		testDiff(
+			"Diff xlsx files as json lines",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx", "--format", "jsonl"},
+			new File("test/resources/ss1_xlsx_ss2_xlsx.jsonl.out"),
+			null);
+		testDiff(
+			"Diff xlsx files as csv",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx", "--format", "csv"},
+			new File("test/resources/ss1_xlsx_ss2_xlsx.csv.out"),
+			null);
+		testDiff(
+			"Diff xlsx files with rows aligned",
+			new String[]{"test/resources/align1.xlsx", "test/resources/align2.xlsx", "--align-rows"},
+			new File("test/resources/align1_align2_rows.out"),
+			null);
+		testDiff(
+			"Diff xlsx files with rows matched by key",
+			new String[]{"test/resources/key1.xlsx", "test/resources/key2.xlsx", "--key", "Sheet1:A,C"},
+			new File("test/resources/key1_key2_key.out"),
+			null);
+		testDiff(
+			"Diff xlsx files with rows matched by key on disk",
+			new String[]{"test/resources/key1.xlsx", "test/resources/key2.xlsx", "--key", "Sheet1:A,C", "--key-memory", "0"},
+			new File("test/resources/key1_key2_key.out"),
+			null);
+		testDiff(
+			"Diff xlsx files quietly",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx", "--quiet"},
+			null,
+			null);
+		testDiff(
+			"Diff xlsx files up to max diffs",
+			new String[]{"test/resources/key1.xlsx", "test/resources/key2.xlsx", "--max-diffs", "10"},
+			new File("test/resources/key1_key2_max10.out"),
+			null);
+		testDiff(
+			"Diff xlsx files up to max diffs on threads",
+			new String[]{"test/resources/key1.xlsx", "test/resources/key2.xlsx", "--max-diffs", "10", "--threads", "2"},
+			new File("test/resources/key1_key2_max10.out"),
+			null);
+		testDiff(
+			"Diff xlsx files by key up to max diffs on disk",
+			new String[]{"test/resources/key1.xlsx", "test/resources/key2.xlsx", "--key", "Sheet1:A,C", "--max-diffs", "3",
+				"--key-memory", "0"},
+			new File("test/resources/key1_key2_key_max3.out"),
+			null);
+		testDiff(
+			"Diff xlsx files in a region",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx", "--only", "Sheet1!A1:B2"},
+			new File("test/resources/ss1_xlsx_ss2_xlsx_only.out"),
+			null);
+		testDiff(
+			"Diff xlsx files in a region on threads",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx", "--only", "Sheet1!A1:B2", "--threads", "2"},
+			new File("test/resources/ss1_xlsx_ss2_xlsx_only.out"),
+			null);
+		testDiff(
+			"Diff ods files in a region",
+			new String[]{"test/resources/ss1.ods", "test/resources/ss2.ods", "--only", "Sheet1!A1:B2"},
+			new File("test/resources/ss1_ods_ss2_ods_only.out"),
+			null);
+		testDiff(
+			"Diff xlsx files in a missing sheet",
+			new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx", "--only", "Sheet2"},
+			new File("test/resources/ss1_xlsx_ss2_xlsx_only_missing.out"),
+			null);
+		testDiff(
+			"Diff xlsx files in a sheet missing from one",
+			new String[]{"test/resources/regions1.xlsx", "test/resources/regions2.xlsx", "--only", "A,B"},
+			new File("test/resources/regions1_xlsx_regions2_xlsx_only.out"),
+			null);
+		testDiff(
+			"Diff xlsx files in a sheet missing from one on threads",
+			new String[]{"test/resources/regions1.xlsx", "test/resources/regions2.xlsx", "--only", "A,B", "--threads", "2"},
+			new File("test/resources/regions1_xlsx_regions2_xlsx_only.out"),
+			null);
+		testDiff(
+			"Diff cached formula results of xls and xlsx files",
+			new String[]{"test/resources/numeric_and_formula.xls", "test/resources/numeric_and_formula_stale.xlsx", "--values"},
+			new File("test/resources/numeric_and_formula_xls_stale_xlsx_values.out"),
+			null);
+		testDiff(
+			"Diff evaluated formula results of xls and xlsx files",
+			new String[]{"test/resources/numeric_and_formula.xls", "test/resources/numeric_and_formula_stale.xlsx", "--evaluate"},
+			new File("test/resources/numeric_and_formula_xls_stale_xlsx_evaluate.out"),
+			null);
+		testDiff(
+			"Diff cached formula results of xls and ods files",
+			new String[]{"test/resources/numeric_and_formula.xls", "test/resources/numeric_and_formula.ods", "--values"},
+			new File("test/resources/numeric_and_formula.xls.ods.values.out"),
+			null);
+		File cacheDir = Files.createTempDirectory("excel_cmp_cache").toFile();
+		try {
+			// the first run writes the snapshots, the second one maps them
+			for (String run : new String[]{"writing", "reading"}) {
+				testDiff(
+					"Diff xlsx and ods files " + run + " snapshots",
+					new String[]{"test/resources/ss3.xlsx", "test/resources/ss3.ods", "--cache", cacheDir.getPath()},
+					new File("test/resources/ss3_xlsx_ss3_ods.out"),
+					null);
+			}
+		} finally {
+			for (File snapshot : cacheDir.listFiles()) {
+				snapshot.delete();
+			}
+			cacheDir.delete();
+		}
+		File reportDir = Files.createTempDirectory("excel_cmp_reports").toFile();
+		try {
+			testDiff(
+				"Diff one baseline with many candidates",
+				new String[]{"--baseline", "test/resources/ss1.xlsx", "test/resources/ss1.xlsx", "test/resources/ss2.xlsx",
+					"test/resources/ss1.ods", "--report-dir", reportDir.getPath(), "--threads", "2"},
+				new File("test/resources/baseline_ss1_xlsx.out"),
+				null);
+			verifyFileContentsSame(new File(reportDir, "ss2.xlsx.txt"), new File("test/resources/ss1_xlsx_ss2_xlsx.out"));
+			verifyFileContentsSame(new File(reportDir, "ss1.xlsx.txt"), new File("test/resources/ss1_xlsx_ss1_xlsx.out"));
+		} finally {
+			for (File report : reportDir.listFiles()) {
+				report.delete();
+			}
+			reportDir.delete();
+		}
+		File batchDir = Files.createTempDirectory("excel_cmp_batch").toFile();
+		try {
+			File dirA = new File(batchDir, "a");
+			File dirB = new File(batchDir, "b");
+			new File(dirA, "sub").mkdirs();
+			new File(dirB, "sub").mkdirs();
+			copy("ss1.xlsx", new File(dirA, "ss.xlsx"));
+			copy("ss2.xlsx", new File(dirB, "ss.xlsx"));
+			copy("ss3.ods", new File(dirA, "sub/ss3.ods"));
+			copy("ss3.ods", new File(dirB, "sub/ss3.ods"));
+			copy("ss1.ods", new File(dirA, "only_a.ods"));
+			copy("numeric_and_formula.xls", new File(dirB, "sub/only_b.xls"));
+			File reports = new File(batchDir, "reports");
+			testDiff(
+				"Diff two directory trees",
+				new String[]{"--dir-a", dirA.getPath(), "--dir-b", dirB.getPath(), "--report-dir", reports.getPath(),
+					"--threads", "2"},
+				new File("test/resources/batch_a_b.out"),
+				null);
+			assertTrue(new File(reports, "ss.xlsx.txt").isFile());
+			assertTrue(new File(reports, "sub/ss3.ods.txt").isFile());
+		} finally {
+			deleteTree(batchDir);
+		}
+		// the server runs in a process of its own, as for users, so the output checked is what the client got
+		Process server = startServer();
+		final int port = serverPort(server);
+		try {
+			testDiff(
+				"Diff xlsx files on a server",
+				new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx"},
+				port,
+				new File("test/resources/ss1_xlsx_ss2_xlsx.out"),
+				null);
+			testDiff(
+				"Diff missing file on a server",
+				new String[]{"test/resources/ss1.xlsx", "test/resources/missingfile"},
+				port,
+				null,
+				new File("test/resources/missing_file.err"));
+			// a client with another key than the server's does not send anything
+			byte[] key = Files.readAllBytes(DiffServer.keyFile(port).toPath());
+			Files.write(DiffServer.keyFile(port).toPath(), "wrong".getBytes("UTF-8"));
+			try {
+				testDiff(
+					"Diff refused by a client for a server without the key",
+					new String[]{"test/resources/ss1.xlsx", "test/resources/ss2.xlsx"},
+					port,
+					null,
+					new File("test/resources/wrong_server_key.err"));
+			} finally {
+				Files.write(DiffServer.keyFile(port).toPath(), key);
+			}
+			testRefusedWithoutKey(port);
+		} finally {
+			server.destroy();
+			server.waitFor();
+		}
+		assertTrue(!DiffServer.keyFile(port).exists());
 		System.out.println("All tests pass");
 	}
 	
+	private static void copy(String resource, File to) throws Exception {
+		Files.copy(new File("test/resources", resource).toPath(), to.toPath());
+	}
+
+	private static void deleteTree(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	private static Process startServer() throws Exception {
+		File java = new File(new File(System.getProperty("java.home"), "bin"), "java");
+		return new ProcessBuilder(java.getPath(), "-cp", System.getProperty("java.class.path"),
+			SpreadSheetDiffer.class.getName(), "--server", "--port", "0", "--threads", "2")
+			.redirectErrorStream(true)
+			.start();
+	}
+
+	/**
+	 * The port of server, from the line it prints once it serves.
+	 */
+	private static int serverPort(Process server) throws Exception {
+		String line = new BufferedReader(new InputStreamReader(server.getInputStream(), "UTF-8")).readLine();
+		if ((line == null) || !line.startsWith("Serving diffs on port ")) {
+			server.destroy();
+			throw new AssertionError("Server did not start: " + line);
+		}
+		return Integer.parseInt(line.substring("Serving diffs on port ".length()));
+	}
+
+	/**
+	 * Sends the server a request with a wrong proof of the key, and checks
+	 * it is refused on the stderr channel, with exit code -1.
+	 */
+	private static void testRefusedWithoutKey(int port) throws Exception {
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			DataOutputStream request = new DataOutputStream(socket.getOutputStream());
+			DataInputStream frames = new DataInputStream(socket.getInputStream());
+			request.write(new byte[DiffServer.NONCE_BYTES]);
+			request.flush();
+			frames.readFully(new byte[DiffServer.NONCE_BYTES + DiffServer.PROOF_BYTES]);
+			request.write(new byte[DiffServer.PROOF_BYTES]);
+			request.flush();
+			assertEquals(frames.readByte(), (byte) DiffServer.STDERR);
+			byte[] message = new byte[frames.readInt()];
+			frames.readFully(message);
+			assertEquals(new String(message, "UTF-8"), "Diff refused: wrong server key" + System.getProperty("line.separator"));
+			assertEquals(frames.readByte(), (byte) DiffServer.EXIT);
+			assertEquals(frames.readInt(), -1);
+		} finally {
+			socket.close();
+		}
+		System.out.println("Diff refused by the server without the key passed");
+	}
+
+	/**
+	 * Diffs with stdout and stderr going to the same file, to check the
+	 * order in which they are written.
+	 */
+	private static void testDiffMerged(String testName, String[] args, File expectedFile) throws Exception {
+		PrintStream oldOut = System.out;
+		PrintStream oldErr = System.err;
+		File outFile = File.createTempFile("testOutput", "out", TEMP_DIR);
+		outFile.deleteOnExit();
+		try (PrintStream out = new PrintStream(outFile)) {
+			System.setOut(out);
+			System.setErr(out);
+			SpreadSheetDiffer.doDiff(args);
+		} finally {
+			System.setOut(oldOut);
+			System.setErr(oldErr);
+		}
+		verifyFileContentsSame(outFile, expectedFile);
+		System.out.println(testName + " passed");
+	}
+
 	public static void testDiff(String testName, String[] args,
+		@Nullable File expectedOutFile, @Nullable File expectedErrFile) throws Exception {
+		testDiff(testName, args, -1, expectedOutFile, expectedErrFile);
+	}
+
+	/**
+	 * Diffs through a server on serverPort, in process if it is -1.
+	 */
+	public static void testDiff(String testName, String[] args, int serverPort,
 		@Nullable File expectedOutFile, @Nullable File expectedErrFile) throws Exception {
 		PrintStream oldOut = System.out;
 		PrintStream oldErr = System.err;
@@ -74,7 +397,11 @@ public class SpreadSheetDifferSmokeTest {
 		     PrintStream err = new PrintStream(errFile)) {
 			System.setOut(out);
 			System.setErr(err);
-			SpreadSheetDiffer.doDiff(args);
+			if (serverPort < 0) {
+				SpreadSheetDiffer.doDiff(args);
+			} else {
+				DiffClient.run(serverPort, args);
+			}
 			testCompleted = true;
 		} finally {
 			System.setOut(oldOut);
@@ -0,0 +1,332 @@
+package com.ka.spreadsheet.diff;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.IndexedColors;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * Writes xlsx, xls and ods workbooks of a given shape: sheets of rows x cols
+ * cells, a mix of strings, numbers and formulas in a number of styles. Every
+ * cell is a function of the seed and its position only, so the same shape and
+ * seed always give the same workbook. The changed variant differs in about
+ * diffDensity of the cells, see {@link #isChanged}.
+ *
+ * xlsx is written through SXSSF and ods as plain markup straight to content.xml, both in
+ * bounded memory whatever the number of rows. xls is built in memory and
+ * holds at most 65536 rows per sheet.
+ *
+ * Usage: WorkbookGenerator &lt;file.xlsx|xls|ods&gt; [--rows n] [--cols n] [--sheets n]
+ * [--strings f] [--formulas f] [--styles n] [--diff-density f] [--seed n] [--changed]
+ */
+public class WorkbookGenerator {
+
+	static final int XLS_MAX_ROWS = 65536;
+
+	private enum Kind {
+		NUMBER, STRING, FORMULA
+	}
+
+	int rows = 1000;
+	int cols = 10;
+	int sheets = 1;
+	// the fractions of string and formula cells, the rest are numbers
+	double strings = 0.3;
+	double formulas = 0.1;
+	int styles = 8;
+	double diffDensity = 0.01;
+	long seed = 1;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: WorkbookGenerator <file.xlsx|xls|ods> [--rows n] [--cols n] [--sheets n]"
+				+ " [--strings f] [--formulas f] [--styles n] [--diff-density f] [--seed n] [--changed]");
+			System.exit(-1);
+		}
+		WorkbookGenerator generator = new WorkbookGenerator();
+		boolean changed = false;
+		for (int i = 1; i < args.length; i++) {
+			String option = args[i];
+			if ("--changed".equals(option)) {
+				changed = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value of " + option);
+			}
+			String value = args[++i];
+			if ("--rows".equals(option)) {
+				generator.rows = Integer.parseInt(value);
+			} else if ("--cols".equals(option)) {
+				generator.cols = Integer.parseInt(value);
+			} else if ("--sheets".equals(option)) {
+				generator.sheets = Integer.parseInt(value);
+			} else if ("--strings".equals(option)) {
+				generator.strings = Double.parseDouble(value);
+			} else if ("--formulas".equals(option)) {
+				generator.formulas = Double.parseDouble(value);
+			} else if ("--styles".equals(option)) {
+				generator.styles = Integer.parseInt(value);
+			} else if ("--diff-density".equals(option)) {
+				generator.diffDensity = Double.parseDouble(value);
+			} else if ("--seed".equals(option)) {
+				generator.seed = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+		File file = new File(args[0]);
+		generator.write(file, changed);
+		System.out.println("Wrote " + file + ": " + generator.sheets + " x " + generator.rows + " x " + generator.cols
+			+ " cells, " + generator.changedCells() + " changed in the changed variant");
+	}
+
+	/**
+	 * Writes the workbook, or its changed variant, in the format of the
+	 * extension of file.
+	 */
+	void write(File file, boolean changed) throws IOException {
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".ods")) {
+			writeOds(file, changed);
+		} else if (name.endsWith(".xlsx")) {
+			SXSSFWorkbook workbook = new SXSSFWorkbook(1000);
+			workbook.setCompressTempFiles(true);
+			try {
+				writeWorkbook(workbook, file, changed);
+			} finally {
+				workbook.dispose();
+			}
+		} else if (name.endsWith(".xls")) {
+			if (rows > XLS_MAX_ROWS) {
+				throw new IllegalArgumentException("xls holds at most " + XLS_MAX_ROWS + " rows per sheet, not " + rows);
+			}
+			writeWorkbook(new HSSFWorkbook(), file, changed);
+		} else {
+			throw new IllegalArgumentException("Unknown format of " + file);
+		}
+	}
+
+	/**
+	 * The number of cells the changed variant differs in.
+	 */
+	long changedCells() {
+		long changed = 0;
+		for (int s = 0; s < sheets; s++) {
+			for (int r = 0; r < rows; r++) {
+				for (int c = 0; c < cols; c++) {
+					if (isChanged(s, r, c)) {
+						changed++;
+					}
+				}
+			}
+		}
+		return changed;
+	}
+
+	boolean isChanged(int sheet, int row, int col) {
+		return fraction(hash(sheet, row, col, 3)) < diffDensity;
+	}
+
+	private void writeWorkbook(Workbook workbook, File file, boolean changed) throws IOException {
+		List<CellStyle> cellStyles = new ArrayList<CellStyle>();
+		for (int i = 0; i < styles; i++) {
+			CellStyle style = workbook.createCellStyle();
+			Font font = workbook.createFont();
+			font.setBoldweight(((i & 1) != 0) ? Font.BOLDWEIGHT_BOLD : Font.BOLDWEIGHT_NORMAL);
+			font.setItalic((i & 2) != 0);
+			font.setFontHeightInPoints((short) (10 + i / 8));
+			style.setFont(font);
+			if ((i & 4) != 0) {
+				style.setFillForegroundColor(IndexedColors.LIGHT_YELLOW.getIndex());
+				style.setFillPattern(CellStyle.SOLID_FOREGROUND);
+			}
+			if ((i & 8) != 0) {
+				style.setDataFormat(workbook.createDataFormat().getFormat("0.00"));
+			}
+			cellStyles.add(style);
+		}
+		for (int s = 0; s < sheets; s++) {
+			Sheet sheet = workbook.createSheet(sheetName(s));
+			for (int r = 0; r < rows; r++) {
+				Row row = sheet.createRow(r);
+				for (int c = 0; c < cols; c++) {
+					boolean changedCell = changed && isChanged(s, r, c);
+					Cell cell = row.createCell(c);
+					switch (kind(s, r, c)) {
+					case FORMULA:
+						cell.setCellFormula(formula(s, r, c, changedCell));
+						break;
+					case STRING:
+						cell.setCellValue(string(s, r, c, changedCell));
+						break;
+					default:
+						cell.setCellValue(number(s, r, c, changedCell));
+					}
+					if (styles > 0) {
+						cell.setCellStyle(cellStyles.get(style(s, r, c)));
+					}
+				}
+			}
+		}
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			workbook.write(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void writeOds(File file, boolean changed) throws IOException {
+		ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			// the mimetype comes first and stored, as ODF wants it
+			byte[] mimetype = "application/vnd.oasis.opendocument.spreadsheet".getBytes("US-ASCII");
+			ZipEntry entry = new ZipEntry("mimetype");
+			entry.setMethod(ZipEntry.STORED);
+			entry.setSize(mimetype.length);
+			CRC32 crc = new CRC32();
+			crc.update(mimetype);
+			entry.setCrc(crc.getValue());
+			zip.putNextEntry(entry);
+			zip.write(mimetype);
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("META-INF/manifest.xml"));
+			zip.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<manifest:manifest xmlns:manifest=\"urn:oasis:names:tc:opendocument:xmlns:manifest:1.0\" manifest:version=\"1.2\">\n"
+				+ " <manifest:file-entry manifest:full-path=\"/\" manifest:media-type=\"application/vnd.oasis.opendocument.spreadsheet\"/>\n"
+				+ " <manifest:file-entry manifest:full-path=\"content.xml\" manifest:media-type=\"text/xml\"/>\n"
+				+ "</manifest:manifest>\n").getBytes("UTF-8"));
+			zip.closeEntry();
+
+			zip.putNextEntry(new ZipEntry("content.xml"));
+			Writer out = new BufferedWriter(new OutputStreamWriter(zip, "UTF-8"), 1 << 16);
+			writeOdsContent(out, changed);
+			out.flush();
+			zip.closeEntry();
+		} finally {
+			zip.close();
+		}
+	}
+
+	private void writeOdsContent(Writer out, boolean changed) throws IOException {
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+			+ "<office:document-content xmlns:office=\"" + SpreadSheetOdsStream.OFFICE_NS + "\""
+			+ " xmlns:table=\"" + SpreadSheetOdsStream.TABLE_NS + "\""
+			+ " xmlns:text=\"" + SpreadSheetOdsStream.TEXT_NS + "\""
+			+ " xmlns:style=\"urn:oasis:names:tc:opendocument:xmlns:style:1.0\""
+			+ " xmlns:fo=\"urn:oasis:names:tc:opendocument:xmlns:xsl-fo-compatible:1.0\" office:version=\"1.2\">\n");
+		out.write("<office:automatic-styles>\n");
+		for (int i = 0; i < styles; i++) {
+			out.write("<style:style style:name=\"ce" + i + "\" style:family=\"table-cell\">");
+			if ((i & 4) != 0) {
+				out.write("<style:table-cell-properties fo:background-color=\"#ffff99\"/>");
+			}
+			out.write("<style:text-properties fo:font-weight=\"" + (((i & 1) != 0) ? "bold" : "normal")
+				+ "\" fo:font-style=\"" + (((i & 2) != 0) ? "italic" : "normal")
+				+ "\" fo:font-size=\"" + (10 + i / 8) + "pt\"/></style:style>\n");
+		}
+		out.write("</office:automatic-styles>\n<office:body><office:spreadsheet>\n");
+		for (int s = 0; s < sheets; s++) {
+			out.write("<table:table table:name=\"" + sheetName(s) + "\">\n");
+			for (int r = 0; r < rows; r++) {
+				out.write("<table:table-row>");
+				for (int c = 0; c < cols; c++) {
+					boolean changedCell = changed && isChanged(s, r, c);
+					out.write("<table:table-cell");
+					if (styles > 0) {
+						out.write(" table:style-name=\"ce" + style(s, r, c) + "\"");
+					}
+					String text;
+					switch (kind(s, r, c)) {
+					case FORMULA:
+						out.write(" table:formula=\"of:=" + odsFormula(s, r, c, changedCell)
+							+ "\" office:value-type=\"float\" office:value=\"0\"");
+						text = "0";
+						break;
+					case STRING:
+						// strings are plain letters and digits, nothing to escape
+						text = string(s, r, c, changedCell);
+						out.write(" office:value-type=\"string\"");
+						break;
+					default:
+						text = String.valueOf(number(s, r, c, changedCell));
+						out.write(" office:value-type=\"float\" office:value=\"" + text + "\"");
+					}
+					out.write("><text:p>" + text + "</text:p></table:table-cell>");
+				}
+				out.write("</table:table-row>\n");
+			}
+			out.write("</table:table>\n");
+		}
+		out.write("</office:spreadsheet></office:body></office:document-content>\n");
+	}
+
+	private static String sheetName(int sheet) {
+		return "Sheet" + (sheet + 1);
+	}
+
+	private Kind kind(int sheet, int row, int col) {
+		double f = fraction(hash(sheet, row, col, 1));
+		if (f < formulas) {
+			return Kind.FORMULA;
+		}
+		return (f < formulas + strings) ? Kind.STRING : Kind.NUMBER;
+	}
+
+	private int style(int sheet, int row, int col) {
+		return (int) ((hash(sheet, row, col, 2) >>> 1) % styles);
+	}
+
+	private double number(int sheet, int row, int col, boolean changed) {
+		double number = ((hash(sheet, row, col, 4) >>> 1) % 100000000) / 100.0;
+		return changed ? number + 1 : number;
+	}
+
+	private String string(int sheet, int row, int col, boolean changed) {
+		return (changed ? "changed " : "text ") + Long.toString(hash(sheet, row, col, 4) >>> 16, 36);
+	}
+
+	/**
+	 * The formula references the first cell of the row, A1 style.
+	 */
+	private String formula(int sheet, int row, int col, boolean changed) {
+		return "$A" + (row + 1) + "*" + (col + (changed ? 2 : 1));
+	}
+
+	private String odsFormula(int sheet, int row, int col, boolean changed) {
+		return "[.$A" + (row + 1) + "]*" + (col + (changed ? 2 : 1));
+	}
+
+	private long hash(int sheet, int row, int col, int salt) {
+		// splitmix64 of all inputs
+		long z = seed * 0x9E3779B97F4A7C15L + ((long) sheet << 48) + ((long) row << 16) + col * 31L + salt * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private static double fraction(long hash) {
+		return (hash >>> 11) * 0x1.0p-53;
+	}
+}